@@ -0,0 +1,123 @@
+import java.util.Arrays;
+
+/**
+ * The ledger's accounts, stored by account id in primitive arrays.
+ *
+ * Each address is interned once into a dense int id, the index of its balance and signature count in the balances and signatureCounts arrays.
+ * Ids are found through an open-addressing hash table of ids, probed linearly and kept at most half full, so looking an account up or changing it
+ * allocates nothing and boxes nothing. Accounts are never removed, so ids stay valid for the life of the table, and ids in order are the order
+ * accounts were first seen in.
+ *
+ * All methods are synchronized: the main loop updates the table while other threads may read balances.
+ */
+public class AccountTable {
+    private static final int INITIAL_CAPACITY = 16384;
+
+    private String[] addresses;
+    private long[] balances;
+    private int[] signatureCounts;
+    private int size;
+    private int[] slots; // id + 1 of the account hashed to each slot, 0 for an empty slot
+
+    public AccountTable() {
+        this.addresses = new String[INITIAL_CAPACITY];
+        this.balances = new long[INITIAL_CAPACITY];
+        this.signatureCounts = new int[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+        this.size = 0;
+    }
+
+    /**
+     * @param address Address to look up
+     * @return int The address's account id, or -1 if it has no account
+     */
+    public synchronized int getId(String address) {
+        int mask = slots.length - 1;
+        for (int slot = mix(address.hashCode()) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (addresses[id].equals(address)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the address's account id, creating the account with a balance and signature count of 0 if it doesn't exist yet.
+     *
+     * @param address Address to look up
+     * @return int The address's account id
+     */
+    public synchronized int intern(String address) {
+        int mask = slots.length - 1;
+        int slot = mix(address.hashCode()) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (addresses[id].equals(address)) {
+                return id;
+            }
+        }
+        if (size == addresses.length) {
+            grow();
+            return intern(address);
+        }
+        int id = size++;
+        addresses[id] = address;
+        slots[slot] = id + 1;
+        return id;
+    }
+
+    /**
+     * @return int Number of accounts; ids run from 0 to size() - 1
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized String getAddress(int id) {
+        return addresses[id];
+    }
+
+    public synchronized long getBalance(int id) {
+        return balances[id];
+    }
+
+    public synchronized void setBalance(int id, long balance) {
+        balances[id] = balance;
+    }
+
+    public synchronized int getSignatureCount(int id) {
+        return signatureCounts[id];
+    }
+
+    public synchronized void setSignatureCount(int id, int signatureCount) {
+        signatureCounts[id] = signatureCount;
+    }
+
+    /**
+     * Doubles the account arrays and rebuilds the id table at twice their size.
+     */
+    private void grow() {
+        int capacity = addresses.length * 2;
+        addresses = Arrays.copyOf(addresses, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        signatureCounts = Arrays.copyOf(signatureCounts, capacity);
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(addresses[id].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Spreads String.hashCode()'s bits, so that addresses differing only near the end don't land in neighbouring slots.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
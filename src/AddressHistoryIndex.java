@@ -0,0 +1,290 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Index from each address to the main chain transactions involving it, so an address's history is read from the blocks it appears in instead of
+ * scanning the whole chain.
+ *
+ * Each address maps to its positions in ascending order, each packed into a long as (height << 32) | (transaction index + 1); transaction index
+ * -1 is the block's mining reward. Blockchain adds a block as it's applied to the ledger and removes it again when a reorganization rolls it back,
+ * so the index always follows the ledger's chain.
+ *
+ * The index is kept in memory and persisted as an append-only log of added and removed blocks, each record CRC-checked the same way as the
+ * ledger's log. Loading replays the log, dropping a torn record at the end; Blockchain then indexes whatever stored blocks the log is missing.
+ * Main loop only.
+ */
+public class AddressHistoryIndex {
+    private static final byte ADD_BLOCK = 1;
+    private static final byte REMOVE_BLOCK = 2;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private File indexFile;
+    private RandomAccessFile log;
+    private HashMap<String, Positions> positions;
+    private int indexedHeight = -1; // Height of the top block indexed
+
+    /**
+     * One address's positions, in ascending order.
+     */
+    private static class Positions {
+        long[] values = new long[4];
+        int size = 0;
+
+        void add(long position) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = position;
+        }
+    }
+
+    /**
+     * @param indexFileName File the index is persisted in
+     */
+    public AddressHistoryIndex(String indexFileName) {
+        this.indexFile = new File(indexFileName);
+        this.positions = new HashMap<String, Positions>();
+        try {
+            replayLog();
+            log = new RandomAccessFile(indexFile, "rw");
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] Unable to read address history index " + indexFileName + "!");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * @return int Height of the top block in the index, or -1 if it's empty
+     */
+    public int getIndexedHeight() {
+        return indexedHeight;
+    }
+
+    /**
+     * Indexes a block that was just applied to the ledger. Blocks at or below the indexed height are already in the index and are skipped.
+     *
+     * @param block Block on top of the indexed chain
+     */
+    public void addBlock(Block block) {
+        if (block.blockNum <= indexedHeight) {
+            return;
+        }
+        ArrayList<String> addresses = new ArrayList<String>();
+        ArrayList<Integer> transactionIndexes = new ArrayList<Integer>();
+        addresses.add(block.certificate.redeemAddress);
+        transactionIndexes.add(-1);
+        ArrayList<Transaction> transactions = block.getParsedTransactions();
+        if (transactions != null) {
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction transaction = transactions.get(i);
+                HashSet<String> involved = new HashSet<String>();
+                involved.add(transaction.getInputAddress());
+                for (int j = 0; j < transaction.getOutputCount(); j++) {
+                    involved.add(transaction.getOutputAddress(j));
+                }
+                for (String address : involved) {
+                    addresses.add(address);
+                    transactionIndexes.add(i);
+                }
+            }
+        }
+        writeRecord(ADD_BLOCK, block.blockNum, addresses, transactionIndexes);
+        applyAdd(block.blockNum, addresses, transactionIndexes);
+    }
+
+    /**
+     * Removes the top indexed block, when a reorganization rolls it back out of the ledger.
+     *
+     * @param block The block at the indexed height
+     */
+    public void removeBlock(Block block) {
+        if (block.blockNum != indexedHeight) {
+            return;
+        }
+        HashSet<String> involved = new HashSet<String>();
+        involved.add(block.certificate.redeemAddress);
+        ArrayList<Transaction> transactions = block.getParsedTransactions();
+        if (transactions != null) {
+            for (int i = 0; i < transactions.size(); i++) {
+                involved.add(transactions.get(i).getInputAddress());
+                for (int j = 0; j < transactions.get(i).getOutputCount(); j++) {
+                    involved.add(transactions.get(i).getOutputAddress(j));
+                }
+            }
+        }
+        ArrayList<String> addresses = new ArrayList<String>(involved);
+        writeRecord(REMOVE_BLOCK, block.blockNum, addresses, null);
+        applyRemove(block.blockNum, addresses);
+    }
+
+    /**
+     * Empties the index, for when it no longer matches the stored chain and has to be rebuilt.
+     */
+    public void clear() {
+        positions.clear();
+        indexedHeight = -1;
+        try {
+            log.setLength(0);
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO CLEAR ADDRESS HISTORY INDEX!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param address Address to look up
+     * @return int Number of transactions involving the address, counting mining rewards
+     */
+    public int getHistoryCount(String address) {
+        Positions addressPositions = positions.get(address);
+        return addressPositions == null ? 0 : addressPositions.size;
+    }
+
+    /**
+     * Returns one page of an address's history, newest first.
+     *
+     * @param address  Address to look up
+     * @param page     Page number, from 0
+     * @param pageSize Transactions per page
+     * @return long[] Positions on the page, each (height << 32) | (transaction index + 1); see getHeight() and getTransactionIndex()
+     */
+    public long[] getHistory(String address, int page, int pageSize) {
+        Positions addressPositions = positions.get(address);
+        long start = (long) page * pageSize;
+        if (addressPositions == null || page < 0 || pageSize <= 0 || start >= addressPositions.size) {
+            return new long[0];
+        }
+        int count = (int) Math.min(pageSize, addressPositions.size - start);
+        long[] history = new long[count];
+        for (int i = 0; i < count; i++) {
+            history[i] = addressPositions.values[addressPositions.size - 1 - (int) start - i];
+        }
+        return history;
+    }
+
+    /**
+     * @param position A position from getHistory()
+     * @return int Height of the block holding the transaction
+     */
+    public static int getHeight(long position) {
+        return (int) (position >>> 32);
+    }
+
+    /**
+     * @param position A position from getHistory()
+     * @return int Index of the transaction in its block, or -1 for the mining reward
+     */
+    public static int getTransactionIndex(long position) {
+        return (int) (position & 0xFFFFFFFFL) - 1;
+    }
+
+    private void applyAdd(int height, ArrayList<String> addresses, ArrayList<Integer> transactionIndexes) {
+        for (int i = 0; i < addresses.size(); i++) {
+            Positions addressPositions = positions.get(addresses.get(i));
+            if (addressPositions == null) {
+                addressPositions = new Positions();
+                positions.put(addresses.get(i), addressPositions);
+            }
+            addressPositions.add(((long) height << 32) | (transactionIndexes.get(i) + 1));
+        }
+        indexedHeight = height;
+    }
+
+    private void applyRemove(int height, ArrayList<String> addresses) {
+        for (int i = 0; i < addresses.size(); i++) {
+            Positions addressPositions = positions.get(addresses.get(i));
+            if (addressPositions == null) {
+                continue;
+            }
+            while (addressPositions.size > 0 && getHeight(addressPositions.values[addressPositions.size - 1]) >= height) {
+                addressPositions.size--;
+            }
+            if (addressPositions.size == 0) {
+                positions.remove(addresses.get(i));
+            }
+        }
+        indexedHeight = height - 1;
+    }
+
+    /**
+     * Record format: [int payload length][int CRC32 of payload], then the payload:
+     * [byte ADD_BLOCK or REMOVE_BLOCK][int height][int count]([UTF address][int transaction index, ADD_BLOCK only])*
+     */
+    private void writeRecord(byte type, int height, ArrayList<String> addresses, ArrayList<Integer> transactionIndexes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + addresses.size() * 48);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // Length and checksum, filled in below
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeInt(height);
+            out.writeInt(addresses.size());
+            for (int i = 0; i < addresses.size(); i++) {
+                out.writeUTF(addresses.get(i));
+                if (type == ADD_BLOCK) {
+                    out.writeInt(transactionIndexes.get(i));
+                }
+            }
+            out.close();
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            ByteBuffer.wrap(record).putInt(record.length - 8).putInt((int) crc.getValue());
+            log.seek(log.length());
+            log.write(record);
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO WRITE ADDRESS HISTORY INDEX!");
+            e.printStackTrace();
+        }
+    }
+
+    private void replayLog() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(indexFile, "rw");
+        long length = in.length();
+        long position = 0;
+        while (length - position >= 8) {
+            in.seek(position);
+            int recordLength = in.readInt();
+            int checksum = in.readInt();
+            if (recordLength < 0 || recordLength > MAX_RECORD_SIZE || recordLength > length - position - 8) {
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = recordIn.readByte();
+            int height = recordIn.readInt();
+            int count = recordIn.readInt();
+            ArrayList<String> addresses = new ArrayList<String>(count);
+            ArrayList<Integer> transactionIndexes = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; i++) {
+                addresses.add(recordIn.readUTF());
+                if (type == ADD_BLOCK) {
+                    transactionIndexes.add(recordIn.readInt());
+                }
+            }
+            if (type == ADD_BLOCK) {
+                applyAdd(height, addresses, transactionIndexes);
+            } else {
+                applyRemove(height, addresses);
+            }
+            position += 8 + recordLength;
+        }
+        if (position < length) {
+            System.out.println("Discarding " + (length - position) + " bytes of incomplete address history index after block " + indexedHeight);
+            in.setLength(position);
+        }
+        in.close();
+    }
+}
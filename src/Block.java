@@ -5,11 +5,9 @@
 
 import org.omg.PortableServer.THREAD_POLICY_ID;
 
-import java.io.UnsupportedEncodingException;
 import java.security.cert.*;
 import java.util.*;
 import java.security.*;
-import javax.xml.bind.DatatypeConverter;
 
 /*
 * This class provides all functionality related to block verification and usage.
@@ -35,6 +33,8 @@ public class Block {
     public ArrayList<String> transactions;
     public String minerSignature;
     public long minerSignatureIndex;
+    private ArrayList<Transaction> parsedTransactions; // Cached by getParsedTransactions()
+    private Boolean signaturesValid; // Cached result of validateSignatures(), null until the signatures have been checked
 
     /**
     * Constructure for Block Object. A block is made for any confirmed or potential network block, and requires all pieces of data in this constructure
@@ -96,13 +96,12 @@ public class Block {
                     transactionsString += transactions.get(i) + "*";
                 }
             }
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
+            if (transactionsString.length() > 2) {
+                transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
+            }
             String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-            this.blockHash = DatatypeConverter.printHexBinary(messageDigest.digest(blockData.getBytes("UTF-8")));
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
+            this.blockHash = HashUtility.sha256Hex(blockData);
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
@@ -115,49 +114,41 @@ public class Block {
     */
     public Block(String rawBlock) {
         /*
-        * Using a workaround for the unknow number of transactions, which would each be split into multiple parts as they
-        * contain a comma as part of the signature. As such, all part up to and including the list of transactions are parsed
-        * manually. Then, remainder can be separated using the split command.
+        * Raw block layout, as written by getRawBlock():
+        * {timestamp:blockNum:previousBlockHash:difficulty:winningNonce},{ledgerHash},{transactions},{certificateMessage},{certificateSignature},
+        * {certificateSignatureIndex},{blockHash},{minerSignature},{minerSignatureIndex}
+        * Signatures and transactions contain commas but never braces, so the sections are split on the "},{" between them.
         **/
-        String[] parts = new String[11];
-        parts[0] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); // Account for comma
-        parts[1] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); // Account for comma, again
-        parts[2] = rawBlock.substring(0, rawBlock.indexOf("{") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); // Account for comma a third time
-        String[] partsInitial = rawBlock.split(",");
-        for (int i = 3; i < 11; i++) {
-            parts[i] = partsInitial[i - 3];
+        String[] parts = new String[0];
+        if (rawBlock.startsWith("{") && rawBlock.endsWith("}")) {
+            parts = rawBlock.substring(1, rawBlock.length() - 1).split("\\},\\{", -1);
         }
-
-        System.out.println("Block parts: " + parts.length);
-        for (int i = 0; i < parts.length; i++) {
-            System.out.println("        " + i + ": " + parts[i]);
+        if (parts.length != 9) {
+            System.out.println("[CRITICAL ERROR] Malformed raw block with " + parts.length + " sections!");
+            this.transactions = new ArrayList<String>();
+            return;
         }
-
-        String firstPart = parts[0].replace("{", "");
-        firstPart = firstPart.replaceFirst("}", "");
-        String[] firstPartParts = firstPart.split(":"); // Great name, huh?
+        String[] firstPartParts = parts[0].split(":"); // Great name, huh?
         try {
             this.timestamp = Long.parseLong(firstPartParts[0]);
             this.blockNum = Integer.parseInt(firstPartParts[1]);
             this.previousBlockHash = firstPartParts[2];
             this.difficulty = Long.parseLong(firstPartParts[3]);
             this.winningNonce = Integer.parseInt(firstPartParts[4]);
-            this.ledgerHash = parts[1].replace("{", "").replace("}", "");
-            String transactionsString = parts[2].replace("{", "".replace("}", ""));
+            this.ledgerHash = parts[1];
+            String transactionsString = parts[2];
             this.transactions = new ArrayList<String>();
-            String[] rawTransactions = transactionsString.split("\\*"); // Transactions are pearated by an asterisk, as the colon, double-colon and comma are all used in other places, and would be pain to use here.
-
-            for (int i = 0; i < rawTransactions.length; i++) {
-                this.transactions.add(rawTransactions[i]);
+            if (transactionsString.length() > 0) {
+                String[] rawTransactions = transactionsString.split("\\*"); // Transactions are pearated by an asterisk, as the colon, double-colon and comma are all used in other places, and would be pain to use here.
+                for (int i = 0; i < rawTransactions.length; i++) {
+                    this.transactions.add(rawTransactions[i]);
+                }
             }
 
-            this.certificate = new Certificate(parts[3] + "," + parts[4] + "," + parts + "," + parts[6]);
-            // parts[7] us a block hash
-            this.minerSignature = parts[8].replace("{", "" + "," + parts[9].replace("}", ""));
-            this.minerSignatureIndex = Integer.parseInt(parts[10].replace("{", "").replace("}", ""));
+            this.certificate = new Certificate("{" + parts[3] + "},{" + parts[4] + "},{" + parts[5] + "}");
+            // parts[6] is the block hash, which is recomputed below
+            this.minerSignature = parts[7];
+            this.minerSignatureIndex = Long.parseLong(parts[8]);
             try {
                 transactionsString = "";
                 //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
@@ -166,15 +157,12 @@ public class Block {
                         transactionsString += transactions.get(i) + "*";
                     }
                 }
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
                 if (transactionsString.length() > 2) {
                     transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
                 }
                 String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                this.blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (UnsupportedEncodingException e) {
+                this.blockHash = HashUtility.sha256Hex(blockData);
+            } catch (Exception e) {
                 e.printStackTrace();
             }
         } catch (Exception e) {
@@ -200,6 +188,8 @@ public class Block {
      * - Miner signature is valid
      * - Transactions are formatted correctly
      *
+     * Only the proof-of-stake miner check depends on the chain; everything else is done by validateSignatures(), whose result is cached.
+     *
      * @return boolean Whether the self-contained block is valid. Does not represent inclusion in the network, or existence of the previous block.
      *
      * */
@@ -214,200 +204,127 @@ public class Block {
                 return false;
             }
             for (int i = blockNum; i > blockNum - 500; i--) {
-                if (blockchain.getBlock(i).getMiner().equals(certificate.redeemAddress)) {
+                if (blockchain.getBlockMiner(i).equals(certificate.redeemAddress)) {
                     return false; // Address has sent coins in the last 500
                 }
             }
-            try {
-                String transactionsString = "";
-                //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-                for (int i = 0; i < transactions.size(); i++) {
-                    if (transactions.get(i).length() > 10) {
-                        transactionsString += transactions.get(i) + "*";
-                    }
-                }
-                // Recalculate block hash
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                if (transactionsString.length() > 2) {
-                    transactionsString += transactionsString.substring(0, transactionsString.length() - 1);
-                }
-                String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                String blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-                String fullBlock = blockData + ",{" + blockHash + "}"; //This is the message signed by the block miner
-                MerkleAddressUtility MerkleAddressUtility = new MerkleAddressUtility();
-                if (!MerkleAddressUtility.verifyMerkleSignature(fullBlock, minerSignature, certificate.redeemAddress, minerSignatureIndex)) {
-                    System.out.println("Block did'nt verify for " + certificate.redeemAddress);
-                    System.out.println("Signature mismatch error");
-                    System.out.println("fullBlock: " + fullBlock);
-                    System.out.println("minerSignature: " + minerSignature);
-                    return false; // Block mining signature is not valid
-                }
+        }
+        return validateSignatures();
+    }
 
-                if (transactions.size() == 1 && transactions.get(0).equals("")) {
-                    return true;
-                } else if (transactions.size() == 0) {
-                    // Block has n explicit transactions
-                    return true;
-                }
+    /**
+     * Runs every check that depends only on the block itself: the certificate, the certificate score, the miner signature and all transaction
+     * signatures. These are by far the most expensive part of validation (every signature check is a Lamport/Merkle verification), and their
+     * outcome can't change, so the result is computed once per Block object and cached--a block that waits in the orphan pool, or is checked
+     * again when it connects, doesn't pay for its signatures twice.
+     *
+     * @return boolean Whether the block's certificate and signatures are all valid
+     */
+    public synchronized boolean validateSignatures() {
+        if (signaturesValid == null) {
+            signaturesValid = verifySignatures();
+        }
+        return signaturesValid;
+    }
 
-                for (int i = 0; i < transactions.size(); i++) {
-                    /**
-                     * Transaction format
-                     * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
-                     * */
-                    try {
-                        String tempTransaction = transactions.get(i);
-                        String[] transactionParts = tempTransaction.split(";");
-                        if (transactionParts.length % 2 != 0 || transactionParts.length < 6) {
-                            System.out.println("Error validating block: transactionParts.length = " + transactionParts.length);
-                            for (int j = 0; j < transactionParts.length; j++) {
-                                System.out.println("           " + j + ": " + transactionParts[j]);
-                            }
-                            return false; //Each address should line up with an output, and no explicit transaction is possible with fewer than six parts (see above)
-                        }
-                        for (int j = 0; j < transactionParts.length - 2; j += 2) {
-                            if (!MerkleAddressUtility.isAddressFormattedCorrectly(transactionParts[j])) {
-                                System.out.println("Error validating block: address " + transactionParts[j] + " is invalid");
-                                return false; // Address in transaction is misformatted
-                            }
-                        }
-                        long inputAmount = Long.parseLong(transactionParts[1]);
-                        long outputAmount = 0L;
-                        for (int j = 3; j < transactionParts.length - 2; j += 2) {
-                            outputAmount += Long.parseLong(transactionParts[j]);
-                        }
-                        if (inputAmount - outputAmount < 0) {
-                            System.out.println("Error validating block: more coins output than input!");
-                            return false; // Coints cant be created out of thin air!
-                        }
-                        String transactionData = "";
-                        for (int j = 0; j < transactionParts.length - 2; j++) {
-                            transactionData += transactionParts[j] + ";";
-                        }
-                        transactionData = transactionData.substring(0, transactionData.length() - 1);
-                        if (!MerkleAddressUtility.verifyMerkleSignature(transactionData, transactionParts[transactionParts.length - 2], transactionParts[0], Long.parseLong(transactionParts[transactionParts.length - 1]))) {
-                            System.out.println("Error validating block: signature does not match!");
-                            return false; // Signature doesn'< match></>
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return false;
-                    }
-                }
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+    private boolean verifySignatures() {
+        if (difficulty == 150000) {
+            if (!certificate.validateCertificate()) {
+                System.out.println("Certificate validation error");
+                return false; // Certificate is not valid
             }
-        } else if (difficulty == 150000) {
-            try {
-                if (!certificate.validateCertificate()) {
-                    System.out.println("Certificate validation error");
-                    return false; // Certificate is not valid
-                }
 
-                if (winningNonce > certificate.maxNonce) {
-                    System.out.println("Winning nonce error");
-                    return false; // winningNonce is outside of the nonce range!
-                }
+            if (winningNonce > certificate.maxNonce) {
+                System.out.println("Winning nonce error");
+                return false; // winningNonce is outside of the nonce range!
+            }
 
-                if (blockNum != certificate.blockNum) {
-                    System.out.println("Block height does not match certificate height1");
-                    return false; // Certificate and block height are not equal
+            if (blockNum != certificate.blockNum) {
+                System.out.println("Block height does not match certificate height1");
+                return false; // Certificate and block height are not equal
+            }
+            long certificateScore = certificate.getScoreAtNonce(winningNonce);// lower score is better; cached per certificate and nonce
+            long target = Long.MAX_VALUE / (difficulty / 2);
+            if (certificateScore >= target) {
+                System.out.println("Certificate score error");
+                return false; // Certificate doesnt fall blow the target
+            }
+        } else if (difficulty != 100000) {
+            return false;
+        }
+        try {
+            String transactionsString = "";
+            //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
+            for (int i = 0; i < transactions.size(); i++) {
+                if (transactions.get(i).length() > 10) {
+                    transactionsString += transactions.get(i) + "*";
                 }
-                long certificateScore = certificate.getScoreAtNonce(winningNonce);// lower score is better
-                long target = Long.MAX_VALUE / (difficulty / 2);
-                if (certificateScore < target) {
-                    System.out.println("Certificate score error");
-                    return false; // Certificate doesnt fall blow the target
+            }
+            // Recalculate block hash
+            if (transactionsString.length() > 2) {
+                transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
+            }
+            String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
+            String blockHash = HashUtility.sha256Hex(blockData);
+            String fullBlock = blockData + ",{" + blockHash + "}"; //This is the message signed by the block miner
+            MerkleAddressUtility MerkleAddressUtility = new MerkleAddressUtility();
+            if (!MerkleAddressUtility.verifyMerkleSignature(fullBlock, minerSignature, certificate.redeemAddress, minerSignatureIndex)) {
+                System.out.println("Block didnt verify for " + certificate.redeemAddress + " with index " + minerSignatureIndex);
+                System.out.println("Signature mismatch error");
+                System.out.println("fullBlock: " + fullBlock);
+                System.out.println("minerSignature: " + minerSignature);
+                return false; //Block mining signature is not valid
+            }
+            if (transactions.size() == 1 && transactions.get(0).equals("")) {
+                // Block has no explicit transactions
+                return true;
+            } else if (transactions.size() == 0) {
+                // Block has no explicit transaction
+                return true;
+            }
+            // Transaction signatures are collected while checking the format, then verified as one batch
+            ArrayList<Transaction> parsedTransactions = getParsedTransactions();
+            if (parsedTransactions == null) {
+                System.out.println("Error validating block is misformatted");
+                return false;// Each address should line up
+            }
+            String[] transactionMessages = new String[parsedTransactions.size()];
+            MerkleSignature[] transactionSignatures = new MerkleSignature[parsedTransactions.size()];
+            String[] transactionSenders = new String[parsedTransactions.size()];
+            long[] transactionSignatureIndexes = new long[parsedTransactions.size()];
+            for (int i = 0; i < parsedTransactions.size(); i++) {
+                Transaction transaction = parsedTransactions.get(i);
+                if (!MerkleAddressUtility.isAddressFormattedCorrectly(transaction.getInputAddress())) {
+                    System.out.println("Error vaildating block: address " + transaction.getInputAddress() + " is invalid.");
+                    return false;
                 }
-                String transactionsString = "";
-                //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-                for (int i = 0; i < transactions.size(); i++) {
-                    if (transactions.get(i).length() > 10) {
-                        transactionsString += transactions.get(i) + "*";
+                for (int j = 0; j < transaction.getOutputCount(); j++) {
+                    if (!MerkleAddressUtility.isAddressFormattedCorrectly(transaction.getOutputAddress(j))) {
+                        System.out.println("Error vaildating block: address " + transaction.getOutputAddress(j) + " is invalid.");
+                        return false;
                     }
                 }
-                // Recalculate block hash
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                if (transactionsString.length() > 2) {
-                    transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
-                }
-                String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                String blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-                String fullBlock = blockData + ",{" + blockHash + "}"; //This is the message signed by the block miner
-                MerkleAddressUtility MerkleAddressUtility = new MerkleAddressUtility();
-                if (!MerkleAddressUtility.verifyMerkleSignature(fullBlock, minerSignature, certificate.redeemAddress, minerSignatureIndex)) {
-                    System.out.println("Block didnt verify for " + certificate.redeemAddress + " with index " + minerSignatureIndex);
-                    System.out.println("Signature mismatch error");
-                    System.out.println("fullBlock: " + fullBlock);
-                    System.out.println("minerSignature: " + minerSignature);
-                    return false; //Block mining signature is not valid
-                }
-                if (transactions.size() == 1 && transactions.get(0).equals("")) {
-                    // Block has no explicit transactions
-                    return true;
-                } else if (transactions.size() == 0) {
-                    // Block has no explicit transaction
-                    return true;
+                if (transaction.getFee() < 0) {
+                    System.out.println("Error validating block: more coins output than input!");
+                    return false; // Coins cant be create out the thin air!
                 }
-                for (int i = 0; i < transactions.size(); i++) {
-                    /**
-                     * Transaction format:
-                     * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
-                     *
-                     **/
-                    try {
-                        String tempTransaction = transactions.get(i);
-                        String[] transactionParts = tempTransaction.split(";");
-                        if (transactionParts.length % 2 != 0 || transactionParts.length < 6) {
-                            System.out.println("Error validating block is misformatted");
-                            for (int j = 0; j < transactionParts.length; j++) {
-                                System.out.println("       " + j + ": " + transactionParts[j]);
-                            }
-                            return false;// Each address should line up
-                        }
-                        for (int j = 0; j < transactionParts.length - 2; j += 2) {
-                            if (!MerkleAddressUtility.isAddressFormattedCorrectly(transactionParts[j])) {
-                                System.out.println("Error vaildating block: address " + transactionParts[j] + " is invalid.");
-                                return false;
-                            }
-                        }
-                        long inputAmount = Long.parseLong(transactionParts[1]);
-                        long outputAmount = 0L;
-                        for (int j = 3; j < transactionParts.length - 2; j += 2) {
-                            outputAmount += Long.parseLong(transactionParts[j]);
-                        }
-                        if (inputAmount - outputAmount < 0) {
-                            System.out.println("Error validating block: more coins output than input!");
-                            return false; // Coins cant be create out the thin air!
-                        }
-                        String transactionData = "";
-                        for (int j = 0; j < transactionParts.length - 2; j++) {
-                            transactionData += transactionParts[j] + ";";
-                        }
-                        transactionData = transactionData.substring(0, transactionData.length() - 1);
-                        if (!MerkleAddressUtility.verifyMerkleSignature(transactionData, transactionParts[transactionParts.length - 2], transactionParts[0], Long.parseLong(transactionParts[transactionParts.length - 1]))) {
-                            System.out.println("Error validating block: signature does not match!");
-                            return false;
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return false;
-                    }
+                transactionMessages[i] = transaction.getSignedMessage();
+                transactionSignatures[i] = transaction.getSignature();
+                transactionSenders[i] = transaction.getInputAddress();
+                transactionSignatureIndexes[i] = transaction.getSignatureIndex();
+            }
+            boolean[] signaturesMatch = MerkleAddressUtility.verifyMerkleSignatures(transactionMessages, transactionSignatures, transactionSenders, transactionSignatureIndexes);
+            for (int i = 0; i < signaturesMatch.length; i++) {
+                if (!signaturesMatch[i]) {
+                    System.out.println("Error validating block: signature does not match!");
+                    return false;
                 }
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-                return false;
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-                return false;
             }
-            return true;
-        } else {
+        } catch (Exception e) {
+            e.printStackTrace();
             return false;
         }
-        return false;
+        return true;
     }
 
     /**
@@ -421,27 +338,76 @@ public class Block {
      */
     public ArrayList<String> getTransactionsInvolvingAddress(String addressToFind) {
         ArrayList<String> relevantTransactionParts = new ArrayList<String>();
-        for (int i = 0; i < transactions.size(); i++) {
-            String tempTransaction = transactions.get(i);
-            //InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
-            String[] transactionParts = tempTransaction.split(";");
-            String sender = transactionParts[0];
+        if (addressToFind.equals(certificate.redeemAddress)) {
+            relevantTransactionParts.add("COINBASE" + ":" + "100" + ":" + certificate.redeemAddress);
+        }
+        ArrayList<Transaction> parsedTransactions = getParsedTransactions();
+        if (parsedTransactions == null) {
+            return relevantTransactionParts;
+        }
+        for (int i = 0; i < parsedTransactions.size(); i++) {
+            Transaction transaction = parsedTransactions.get(i);
+            if (transaction.involvesAddress(addressToFind)) {
+                addTransactionParts(transaction, addressToFind, relevantTransactionParts);
+            }
+        }
+        return relevantTransactionParts;
+    }
+
+    /**
+     * Like getTransactionsInvolvingAddress(), for a single transaction already known to involve the address, such as one found through the
+     * AddressHistoryIndex.
+     *
+     * @param transactionIndex Index of the transaction in the block, or -1 for the mining reward
+     * @param addressToFind    Address the transaction involves
+     * @return ArrayList<String> Simplified-transaction-format parts of the transaction involving the address
+     */
+    public ArrayList<String> getTransactionInvolvingAddress(int transactionIndex, String addressToFind) {
+        ArrayList<String> relevantTransactionParts = new ArrayList<String>();
+        if (transactionIndex < 0) {
             if (addressToFind.equals(certificate.redeemAddress)) {
                 relevantTransactionParts.add("COINBASE" + ":" + "100" + ":" + certificate.redeemAddress);
             }
-            if (sender.equalsIgnoreCase(addressToFind)) {
-                for (int j = 2; j < transactionParts.length - 2; j++) {
-                    relevantTransactionParts.add(sender + ":" + transactionParts[j + 1] + ":" + transactionParts[j]);
+            return relevantTransactionParts;
+        }
+        ArrayList<Transaction> parsedTransactions = getParsedTransactions();
+        if (parsedTransactions != null && transactionIndex < parsedTransactions.size()) {
+            addTransactionParts(parsedTransactions.get(transactionIndex), addressToFind, relevantTransactionParts);
+        }
+        return relevantTransactionParts;
+    }
+
+    private static void addTransactionParts(Transaction transaction, String addressToFind, ArrayList<String> relevantTransactionParts) {
+        String sender = transaction.getInputAddress();
+        for (int j = 0; j < transaction.getOutputCount(); j++) {
+            if (sender.equals(addressToFind) || transaction.getOutputAddress(j).equals(addressToFind)) {
+                relevantTransactionParts.add(sender + ":" + transaction.getOutputAmount(j) + ":" + transaction.getOutputAddress(j));
+            }
+        }
+    }
+
+    /**
+     * Returns the block's explicit transactions, parsed. They're parsed the first time this is called and the same objects are returned after that,
+     * so validation, ledger updates and history lookups don't each re-split the transaction Strings.
+     *
+     * @return ArrayList<Transaction> The parsed transactions, or null if any transaction in the block is malformed
+     */
+    public synchronized ArrayList<Transaction> getParsedTransactions() {
+        if (parsedTransactions == null) {
+            ArrayList<Transaction> parsed = new ArrayList<Transaction>();
+            for (int i = 0; i < transactions.size(); i++) {
+                if (transactions.get(i).length() <= 10) {
+                    continue; // Empty transaction list, see getRawBlock()
                 }
-            } else {
-                for (int j = 0; j < transactionParts.length - 2; j += 2) {
-                    if (transactionParts[j].equalsIgnoreCase(addressToFind)) {
-                        relevantTransactionParts.add(sender + ":" + transactionParts[j + 1] + ":" + transactionParts);
-                    }
+                Transaction transaction = Transaction.fromString(transactions.get(i));
+                if (transaction == null) {
+                    return null;
                 }
+                parsed.add(transaction);
             }
+            parsedTransactions = parsed;
         }
-        return relevantTransactionParts;
+        return parsedTransactions;
     }
 
     /**
@@ -450,18 +416,26 @@ public class Block {
      * @return String The raw block
      **/
     public String getRawBlock() {
-        String rawBlock = "";
-        rawBlock = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{";
-        String transactionString = "";
+        StringBuilder rawBlock = new StringBuilder();
+        rawBlock.append("{").append(timestamp).append(":").append(blockNum).append(":").append(previousBlockHash).append(":").append(difficulty).append(":").append(winningNonce).append("},{").append(ledgerHash).append("},{");
+        boolean firstTransaction = true;
         for (int i = 0; i < transactions.size(); i++) {
             if (transactions.get(i).length() > 10) {
-                transactionString += transactions.get(i) + "*";
+                if (!firstTransaction) {
+                    rawBlock.append("*");
+                }
+                rawBlock.append(transactions.get(i));
+                firstTransaction = false;
             }
         }
-        if (transactionString.length() > 2) {
-            transactionString = transactionString.substring(0, transactionString.length() - 1);
-        }
-        rawBlock += transactionString + "}," + certificate.getFullCertificate() + ",{" + blockHash + "},{" + minerSignature + "},{" + minerSignatureIndex + "}";
-        return rawBlock;
+        rawBlock.append("},").append(certificate.getFullCertificate()).append(",{").append(blockHash).append("},{").append(minerSignature).append("},{").append(minerSignatureIndex).append("}");
+        return rawBlock.toString();
+    }
+
+    /**
+     * @return String The raw block, see getRawBlock()
+     */
+    public String toString() {
+        return getRawBlock();
     }
 }
@@ -4,10 +4,6 @@
 
 import com.sun.org.apache.regexp.internal.RE;
 
-import javax.xml.bind.DatatypeConverter;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 /**
@@ -65,23 +61,16 @@ public class BlockGenerator {
         }
 
         block += transactionString + "}," + certificate.getFullCertificate();
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            String blockHash = DatatypeConverter.printHexBinary(md.digest(block.getBytes("UTF-8")));
-            block += ",{" + blockHash + "}";
-            System.out.println("pre-block: " + block);
-            String signature = new MerkleAddressUtility().getMerkleSignature(block, privateKey, minerSignatureIndex, signingAddress);
-            System.out.println("signature: " + signature);
-            block += ",{" + signature + "},{" + minerSignatureIndex + "}";
-            return block;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            System.out.println("[CRITICAL ERROR] UNABLE TO SIGN A BLOCK!");
-            return null;
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        String blockHash = HashUtility.sha256Hex(block);
+        block += ",{" + blockHash + "}";
+        System.out.println("pre-block: " + block);
+        String signature = new MerkleAddressUtility().getMerkleSignature(block, privateKey, minerSignatureIndex, signingAddress);
+        if (signature == null) {
             System.out.println("[CRITICAL ERROR] UNABLE TO SIGN A BLOCK!");
             return null;
         }
+        System.out.println("signature: " + signature);
+        block += ",{" + signature + "},{" + minerSignatureIndex + "}";
+        return block;
     }
 }
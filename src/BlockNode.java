@@ -0,0 +1,45 @@
+/**
+ * One entry in the Blockchain's block tree. Every block within the fork window gets a node, keyed by its hash; forks are simply nodes that share
+ * a parent, so a fork never copies the blocks below it.
+ *
+ * The parent link is null for the oldest node still held in memory--anything below that is on the stored main chain and is read from the BlockStore.
+ */
+public class BlockNode {
+    public final Block block;
+    public BlockNode parent; // Cut to null when the parent is pruned from memory
+    public final int height; // Equal to block.blockNum; the chain ending in this node holds height + 1 blocks
+
+    /**
+     * @param block Block this node holds
+     * @param parent Node of the previous block, or null if the previous block is no longer held in memory
+     */
+    public BlockNode(Block block, BlockNode parent) {
+        this.block = block;
+        this.parent = parent;
+        this.height = block.blockNum;
+    }
+
+    /**
+     * @return String Hash of the block this node holds
+     */
+    public String getBlockHash() {
+        return block.blockHash;
+    }
+
+    /**
+     * Walks parent links down to the given height.
+     *
+     * @param targetHeight Height of the ancestor to find, at most this node's height
+     * @return BlockNode The ancestor at targetHeight, or null if it isn't held in memory
+     */
+    public BlockNode getAncestor(int targetHeight) {
+        BlockNode node = this;
+        while (node != null && node.height > targetHeight) {
+            node = node.parent;
+        }
+        if (node == null || node.height != targetHeight) {
+            return null;
+        }
+        return node;
+    }
+}
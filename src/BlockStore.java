@@ -0,0 +1,506 @@
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Append-only, segmented block storage. Replaces the old practice of appending raw block text to blockchain.dta and re-parsing the entire
+ * file on every startup.
+ *
+ * Blocks are written once to segment files (blk00000.dat, blk00001.dat, ...) inside the store folder. Each record in a segment is laid out as:
+ * [int payloadLength][32-byte block hash][int blockNum][payload], where the payload is the UTF-8 raw block (see Block.getRawBlock()).
+ *
+ * Two indexes sit next to the segments:
+ * - hash.idx holds one fixed-width record per stored block (32-byte hash, int segment, long offset), for every block we have ever seen, forks included.
+ * - height.idx holds one fixed-width record per height of the main (longest) chain (int segment, long offset), so block N lives at byte N * 12.
+ *
+ * Both indexes are read into memory when the store is opened, so looking a block up by height or by hash is one seek into a segment file.
+ * Reorganizations only ever rewrite the tail of height.idx; block data itself is never rewritten.
+ *
+ * Undo records (see BlockUndo) for blocks inside the fork window are kept as one small file per block in the undo/ sub-folder, named by block hash.
+ * They are deleted once a block can no longer be reorganized away.
+ *
+ * Reads go through read-only memory maps of the segment files and hand out StoredBlock views, which decode fields lazily. Serving an old block
+ * to a peer therefore costs one UTF-8 decode of the mapped bytes, with no parsing and no long-lived Block on the heap. Only full (sealed)
+ * segments are mapped, once each; records in the segment currently being appended to are read into a buffer of their own, so appends never
+ * cause a re-map.
+ */
+public class BlockStore {
+    public static final long MAX_SEGMENT_SIZE = 128L * 1024L * 1024L; // Start a new segment once the current one passes 128 MB
+    private static final int RECORD_HEADER_SIZE = 4 + 32 + 4;
+    private static final int HASH_INDEX_RECORD_SIZE = 32 + 4 + 8;
+    private static final int HEIGHT_INDEX_RECORD_SIZE = 4 + 8;
+
+    private File storeFolder;
+    private ArrayList<RandomAccessFile> segments;
+    private ArrayList<MappedByteBuffer> mappedSegments;
+    private RandomAccessFile hashIndexFile;
+    private RandomAccessFile heightIndexFile;
+
+    // Block locations are packed into a single long: segment number in the top 24 bits, offset inside the segment in the lower 40 bits.
+    private HashMap<String, Long> hashIndex;
+    private long[] heightIndex;
+    private int mainChainLength;
+
+    /**
+     * Opens (or creates) the block store inside storeFolder, and loads both indexes into memory. No block data is read.
+     *
+     * @param storeFolder Folder holding the segment and index files
+     */
+    public BlockStore(String storeFolder) {
+        this.storeFolder = new File(storeFolder);
+        this.segments = new ArrayList<RandomAccessFile>();
+        this.mappedSegments = new ArrayList<MappedByteBuffer>();
+        this.hashIndex = new HashMap<String, Long>(16384);
+        this.heightIndex = new long[1024];
+        this.mainChainLength = 0;
+        try {
+            if (!this.storeFolder.exists()) {
+                this.storeFolder.mkdirs();
+            }
+            int segmentNum = 0;
+            while (getSegmentFile(segmentNum).exists()) {
+                segments.add(new RandomAccessFile(getSegmentFile(segmentNum), "rw"));
+                segmentNum++;
+            }
+            if (segments.size() == 0) {
+                segments.add(new RandomAccessFile(getSegmentFile(0), "rw"));
+            }
+            hashIndexFile = new RandomAccessFile(new File(this.storeFolder, "hash.idx"), "rw");
+            heightIndexFile = new RandomAccessFile(new File(this.storeFolder, "height.idx"), "rw");
+            loadIndexes();
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO OPEN BLOCK STORE " + storeFolder + "!");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Reads hash.idx and height.idx into memory. A partially-written trailing record (from a crash mid-append) is dropped, as is any
+     * index record pointing past the end of its segment.
+     */
+    private void loadIndexes() throws IOException {
+        long[] segmentLengths = new long[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            segmentLengths[i] = segments.get(i).length();
+        }
+        long hashRecords = hashIndexFile.length() / HASH_INDEX_RECORD_SIZE;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(storeFolder, "hash.idx"))));
+        byte[] hash = new byte[32];
+        for (long i = 0; i < hashRecords; i++) {
+            in.readFully(hash);
+            int segment = in.readInt();
+            long offset = in.readLong();
+            if (segment < segmentLengths.length && offset + RECORD_HEADER_SIZE <= segmentLengths[segment]) {
+                hashIndex.put(DatatypeConverter.printHexBinary(hash), packLocation(segment, offset));
+            }
+        }
+        in.close();
+        hashIndexFile.setLength(hashRecords * HASH_INDEX_RECORD_SIZE);
+
+        long heightRecords = heightIndexFile.length() / HEIGHT_INDEX_RECORD_SIZE;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(storeFolder, "height.idx"))));
+        for (long i = 0; i < heightRecords; i++) {
+            int segment = in.readInt();
+            long offset = in.readLong();
+            if (segment >= segmentLengths.length || offset + RECORD_HEADER_SIZE > segmentLengths[segment]) {
+                break; // Main chain can't continue past a block we don't have
+            }
+            ensureHeightCapacity(mainChainLength + 1);
+            heightIndex[mainChainLength] = packLocation(segment, offset);
+            mainChainLength++;
+        }
+        in.close();
+        heightIndexFile.setLength((long) mainChainLength * HEIGHT_INDEX_RECORD_SIZE);
+    }
+
+    /**
+     * Appends a block to the current segment and records it in the hash index. Storing a block that is already present is a no-op.
+     * Storing a block does NOT put it on the main chain, see setMainChainBlock().
+     *
+     * @param block Block to store
+     * @return boolean Whether the block is now in the store
+     */
+    public synchronized boolean putBlock(Block block) {
+        if (block == null || block.blockHash == null || block.blockHash.length() != 64) {
+            return false;
+        }
+        if (hashIndex.containsKey(block.blockHash)) {
+            return true;
+        }
+        try {
+            String rawBlock = block.getRawBlock();
+            // Everything read back from the store is reparsed, so a block whose raw form doesn't parse back to the same hash must never go in
+            if (!block.blockHash.equals(new Block(rawBlock).blockHash)) {
+                System.out.println("[CRITICAL ERROR] Block " + block.blockNum + " does not round-trip through its raw form; not storing it!");
+                return false;
+            }
+            byte[] payload = rawBlock.getBytes("UTF-8");
+            byte[] hash = DatatypeConverter.parseHexBinary(block.blockHash);
+            RandomAccessFile segment = segments.get(segments.size() - 1);
+            if (segment.length() > 0 && segment.length() + RECORD_HEADER_SIZE + payload.length > MAX_SEGMENT_SIZE) {
+                segment = new RandomAccessFile(getSegmentFile(segments.size()), "rw");
+                segments.add(segment);
+            }
+            int segmentNum = segments.size() - 1;
+            long offset = segment.length();
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.length);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(payload.length);
+            out.write(hash);
+            out.writeInt(block.blockNum);
+            out.write(payload);
+            segment.seek(offset);
+            segment.write(record.toByteArray());
+
+            // Index record goes in only after the block data is fully written
+            record = new ByteArrayOutputStream(HASH_INDEX_RECORD_SIZE);
+            out = new DataOutputStream(record);
+            out.write(hash);
+            out.writeInt(segmentNum);
+            out.writeLong(offset);
+            hashIndexFile.seek(hashIndexFile.length());
+            hashIndexFile.write(record.toByteArray());
+
+            hashIndex.put(block.blockHash, packLocation(segmentNum, offset));
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO SAVE BLOCK " + block.blockHash + " TO BLOCK STORE!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Points the main chain at height to an already-stored block. Everything above height is dropped from the main chain, so a reorganization
+     * is done by calling this once per height from the fork point upward.
+     *
+     * @param height Height on the main chain, at most getMainChainLength()
+     * @param blockHash Hash of a block previously stored with putBlock()
+     * @return boolean Whether the main chain was updated
+     */
+    public synchronized boolean setMainChainBlock(int height, String blockHash) {
+        Long location = hashIndex.get(blockHash);
+        if (location == null || height < 0 || height > mainChainLength) {
+            return false;
+        }
+        try {
+            heightIndexFile.setLength((long) height * HEIGHT_INDEX_RECORD_SIZE);
+            heightIndexFile.seek((long) height * HEIGHT_INDEX_RECORD_SIZE);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(HEIGHT_INDEX_RECORD_SIZE);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(getSegment(location));
+            out.writeLong(getOffset(location));
+            heightIndexFile.write(record.toByteArray());
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO UPDATE MAIN CHAIN INDEX AT HEIGHT " + height + "!");
+            e.printStackTrace();
+            return false;
+        }
+        ensureHeightCapacity(height + 1);
+        heightIndex[height] = location;
+        mainChainLength = height + 1;
+        return true;
+    }
+
+    /**
+     * Drops every main chain entry at or above newLength. Blocks stay in the store and remain reachable by hash.
+     *
+     * @param newLength New length of the main chain
+     */
+    public synchronized void truncateMainChain(int newLength) {
+        if (newLength < 0 || newLength >= mainChainLength) {
+            return;
+        }
+        try {
+            heightIndexFile.setLength((long) newLength * HEIGHT_INDEX_RECORD_SIZE);
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO TRUNCATE MAIN CHAIN INDEX!");
+            e.printStackTrace();
+        }
+        mainChainLength = newLength;
+    }
+
+    /**
+     * @return int Number of blocks on the main chain (the highest block is getMainChainLength() - 1)
+     **/
+    public synchronized int getMainChainLength() {
+        return mainChainLength;
+    }
+
+    /**
+     * Checks whether a block has been stored, on any chain.
+     *
+     * @param blockHash Hash of the block
+     * @return boolean Whether the block is in the store
+     */
+    public synchronized boolean hasBlock(String blockHash) {
+        return hashIndex.containsKey(blockHash);
+    }
+
+    /**
+     * Checks whether the main chain entry at height is the given block. Answered purely from the in-memory indexes.
+     *
+     * @param height Height on the main chain
+     * @param blockHash Hash of the block to check for
+     * @return boolean Whether blockHash sits on the main chain at height
+     */
+    public synchronized boolean isMainChainBlock(int height, String blockHash) {
+        if (height < 0 || height >= mainChainLength) {
+            return false;
+        }
+        Long location = hashIndex.get(blockHash);
+        return location != null && location == heightIndex[height];
+    }
+
+    /**
+     * Returns a lazily-parsed view of the main chain block at height.
+     *
+     * @param height Height on the main chain
+     * @return StoredBlock View of the stored block, or null if there is no block at that height
+     */
+    public synchronized StoredBlock getStoredBlock(int height) {
+        if (height < 0 || height >= mainChainLength) {
+            return null;
+        }
+        return readRecord(heightIndex[height]);
+    }
+
+    /**
+     * Returns a lazily-parsed view of any stored block (main chain or fork) by its hash.
+     *
+     * @param blockHash Hash of the block
+     * @return StoredBlock View of the stored block, or null if it isn't stored
+     */
+    public synchronized StoredBlock getStoredBlockByHash(String blockHash) {
+        Long location = hashIndex.get(blockHash);
+        if (location == null) {
+            return null;
+        }
+        return readRecord(location);
+    }
+
+    /**
+     * Returns the raw block String of the main chain block at height, without parsing it.
+     *
+     * @param height Height on the main chain
+     * @return String Raw block, or null if there is no block at that height
+     */
+    public String getRawBlock(int height) {
+        StoredBlock storedBlock = getStoredBlock(height);
+        if (storedBlock == null) {
+            return null;
+        }
+        return storedBlock.getRawBlock();
+    }
+
+    /**
+     * Returns the main chain block at height.
+     *
+     * @param height Height on the main chain
+     * @return Block The block, or null if there is no block at that height
+     */
+    public Block getBlock(int height) {
+        StoredBlock storedBlock = getStoredBlock(height);
+        if (storedBlock == null) {
+            return null;
+        }
+        return storedBlock.toBlock();
+    }
+
+    /**
+     * Returns any stored block (main chain or fork) by its hash.
+     *
+     * @param blockHash Hash of the block
+     * @return Block The block, or null if it isn't stored
+     */
+    public Block getBlockByHash(String blockHash) {
+        StoredBlock storedBlock = getStoredBlockByHash(blockHash);
+        if (storedBlock == null) {
+            return null;
+        }
+        return storedBlock.toBlock();
+    }
+
+    /**
+     * Saves the undo record of a block, replacing any earlier one.
+     *
+     * @param blockHash Hash of the block the undo record belongs to
+     * @param undo Undo record to save
+     * @return boolean Whether the undo record was saved
+     */
+    public boolean putUndo(String blockHash, BlockUndo undo) {
+        try {
+            File undoFolder = new File(storeFolder, "undo");
+            if (!undoFolder.exists()) {
+                undoFolder.mkdirs();
+            }
+            FileOutputStream out = new FileOutputStream(new File(undoFolder, blockHash + ".rev"));
+            out.write(undo.toBytes());
+            out.close();
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO SAVE UNDO RECORD FOR BLOCK " + blockHash + "!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads the undo record of a block.
+     *
+     * @param blockHash Hash of the block
+     * @return BlockUndo The undo record, or null if none is stored
+     */
+    public BlockUndo getUndo(String blockHash) {
+        File undoFile = new File(storeFolder, "undo/" + blockHash + ".rev");
+        if (!undoFile.exists()) {
+            return null;
+        }
+        try {
+            byte[] bytes = new byte[(int) undoFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(undoFile));
+            in.readFully(bytes);
+            in.close();
+            return BlockUndo.fromBytes(bytes);
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO READ UNDO RECORD FOR BLOCK " + blockHash + "!");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the undo record of a block, once it has fallen too far below the tip to ever be reorganized away.
+     *
+     * @param blockHash Hash of the block
+     */
+    public void deleteUndo(String blockHash) {
+        File undoFile = new File(storeFolder, "undo/" + blockHash + ".rev");
+        if (undoFile.exists()) {
+            undoFile.delete();
+        }
+    }
+
+    /**
+     * Flushes and closes all files backing the store.
+     */
+    public synchronized void close() {
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                segments.get(i).close();
+            }
+            hashIndexFile.close();
+            heightIndexFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns a view over the record at the packed location, backed by the segment's memory map, or by a buffer holding just the record if it's
+     * in the segment still being appended to.
+     *
+     * @param location Packed segment/offset location
+     * @return StoredBlock View of the record, or null on a read error
+     */
+    private StoredBlock readRecord(long location) {
+        try {
+            int segmentNum = getSegment(location);
+            int offset = (int) getOffset(location);
+            if (segmentNum == segments.size() - 1) {
+                return new StoredBlock(readActiveRecord(segments.get(segmentNum).getChannel(), offset));
+            }
+            MappedByteBuffer map = getMappedSegment(segmentNum, offset + RECORD_HEADER_SIZE);
+            int length = map.getInt(offset);
+            map = getMappedSegment(segmentNum, offset + RECORD_HEADER_SIZE + length);
+            ByteBuffer record = map.duplicate();
+            record.position(offset);
+            record.limit(offset + RECORD_HEADER_SIZE + length);
+            return new StoredBlock(record.slice());
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO READ BLOCK FROM BLOCK STORE!");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads one record from the segment being appended to, with positional reads that leave the channel's own position alone.
+     *
+     * @param channel The active segment's channel
+     * @param offset  Offset of the record
+     * @return ByteBuffer The record, starting at position 0
+     */
+    private static ByteBuffer readActiveRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(channel, lengthBuffer, offset);
+        int length = lengthBuffer.getInt(0);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > channel.size()) {
+            throw new IOException("Block record extends past the end of the active segment");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        readFully(channel, record, offset);
+        record.flip();
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only map of a full segment covering at least the first minimumLength bytes. Full segments never change, so each is
+     * mapped once, whole.
+     *
+     * @param segmentNum Segment to map
+     * @param minimumLength Number of bytes the map must cover
+     * @return MappedByteBuffer Map of the segment
+     */
+    private MappedByteBuffer getMappedSegment(int segmentNum, long minimumLength) throws IOException {
+        while (mappedSegments.size() <= segmentNum) {
+            mappedSegments.add(null);
+        }
+        MappedByteBuffer map = mappedSegments.get(segmentNum);
+        if (map == null) {
+            FileChannel channel = segments.get(segmentNum).getChannel();
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mappedSegments.set(segmentNum, map);
+        }
+        if (map.capacity() < minimumLength) {
+            throw new IOException("Block record extends past the end of segment " + segmentNum);
+        }
+        return map;
+    }
+
+    private void ensureHeightCapacity(int capacity) {
+        if (capacity > heightIndex.length) {
+            heightIndex = Arrays.copyOf(heightIndex, Math.max(capacity, heightIndex.length * 2));
+        }
+    }
+
+    private File getSegmentFile(int segmentNum) {
+        return new File(storeFolder, String.format("blk%05d.dat", segmentNum));
+    }
+
+    private static long packLocation(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private static int getSegment(long location) {
+        return (int) (location >>> 40);
+    }
+
+    private static long getOffset(long location) {
+        return location & 0xFFFFFFFFFFL;
+    }
+}
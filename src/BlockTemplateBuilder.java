@@ -0,0 +1,180 @@
+import java.util.*;
+
+/**
+ * Keeps a ready-to-mine transaction set for the next block, so that submitting a certificate doesn't have to sort and re-validate the whole
+ * pending pool on the RPC path.
+ *
+ * For every sender in the pool, the builder keeps that sender's includable run: the queued transactions starting at the next unused signature
+ * index, with no gaps, for as long as the sender's confirmed balance covers them. Runs are only recomputed for senders whose queue changed, or
+ * for everyone when the chain tip moves (balances and signature indexes change then). The template itself is assembled from the runs by fee per
+ * byte--each step takes the best-paying next transaction of any sender--until the maximum block size is reached, and is cached until something
+ * changes.
+ *
+ * The builder belongs to a PendingTransactionContainer and is only ever called with the container's lock held.
+ */
+public class BlockTemplateBuilder {
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1000000; // Characters of transaction text
+
+    private CurecoinDatabaseMaster databaseMaster;
+    private PendingTransactionContainer pool;
+    private int maxBlockSize;
+
+    private HashMap<String, ArrayList<PendingTransactionContainer.PoolEntry>> includableRuns;
+    private HashSet<String> changedSenders;
+    private String tipHash;
+    private ArrayList<String> template;
+
+    /**
+     * Position in one sender's includable run while the template is assembled.
+     */
+    private static class RunCursor {
+        final ArrayList<PendingTransactionContainer.PoolEntry> run;
+        int position;
+
+        RunCursor(ArrayList<PendingTransactionContainer.PoolEntry> run) {
+            this.run = run;
+        }
+
+        PendingTransactionContainer.PoolEntry next() {
+            return run.get(position);
+        }
+    }
+
+    private static final Comparator<RunCursor> BEST_FEE_FIRST = new Comparator<RunCursor>() {
+        public int compare(RunCursor first, RunCursor second) {
+            int byFeeRate = Double.compare(second.next().feeRate, first.next().feeRate);
+            if (byFeeRate != 0) {
+                return byFeeRate;
+            }
+            return Long.compare(first.next().arrival, second.next().arrival);
+        }
+    };
+
+    /**
+     * @param databaseMaster Database to read balances and signature indexes from
+     * @param pool           Pending pool the template is built from
+     * @param maxBlockSize   Maximum total length of transaction text in a template
+     */
+    public BlockTemplateBuilder(CurecoinDatabaseMaster databaseMaster, PendingTransactionContainer pool, int maxBlockSize) {
+        this.databaseMaster = databaseMaster;
+        this.pool = pool;
+        this.maxBlockSize = maxBlockSize;
+        reset();
+    }
+
+    /**
+     * Forgets everything; called when the pool is emptied.
+     */
+    public void reset() {
+        includableRuns = new HashMap<String, ArrayList<PendingTransactionContainer.PoolEntry>>();
+        changedSenders = new HashSet<String>();
+        tipHash = null;
+        template = null;
+    }
+
+    /**
+     * Marks a sender's queue as changed, so its run is recomputed before the next template.
+     *
+     * @param address Sending address whose queue changed
+     */
+    public void senderChanged(String address) {
+        changedSenders.add(address);
+        template = null;
+    }
+
+    /**
+     * @param maxBlockSize New maximum total length of transaction text in a template
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+        template = null;
+    }
+
+    /**
+     * @return int Maximum total length of transaction text in a template
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Returns the transactions to put in the next block. Only runs of changed senders are recomputed; if nothing changed since the last call,
+     * the cached template is returned as is.
+     *
+     * @return ArrayList<String> Transactions, in an order valid for block inclusion
+     */
+    public ArrayList<String> getTemplate() {
+        String currentTipHash = databaseMaster.getLastestBlock().blockHash;
+        if (!currentTipHash.equals(tipHash)) {
+            // Every balance and signature index may have moved
+            tipHash = currentTipHash;
+            includableRuns.clear();
+            changedSenders.clear();
+            changedSenders.addAll(pool.getSenders());
+            template = null;
+        }
+        if (template != null) {
+            return new ArrayList<String>(template);
+        }
+        for (String address : changedSenders) {
+            ArrayList<PendingTransactionContainer.PoolEntry> run = buildIncludableRun(address);
+            if (run.isEmpty()) {
+                includableRuns.remove(address);
+            } else {
+                includableRuns.put(address, run);
+            }
+        }
+        changedSenders.clear();
+
+        template = new ArrayList<String>();
+        PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>(Math.max(1, includableRuns.size()), BEST_FEE_FIRST);
+        for (ArrayList<PendingTransactionContainer.PoolEntry> run : includableRuns.values()) {
+            cursors.add(new RunCursor(run));
+        }
+        int templateSize = 0;
+        while (!cursors.isEmpty()) {
+            RunCursor cursor = cursors.poll();
+            PendingTransactionContainer.PoolEntry entry = cursor.next();
+            if (templateSize + entry.text.length() > maxBlockSize) {
+                continue; // Everything after this in the sender's run depends on it, so the whole rest of the run is left out
+            }
+            template.add(entry.text);
+            templateSize += entry.text.length();
+            cursor.position++;
+            if (cursor.position < cursor.run.size()) {
+                cursors.add(cursor);
+            }
+        }
+        return new ArrayList<String>(template);
+    }
+
+    /**
+     * Walks a sender's queue from the next unused signature index for as long as indexes are consecutive and the confirmed balance covers the
+     * running total. Entries at indexes already spent on chain are skipped, so a stale head the pool hasn't pruned yet can't hide the rest.
+     */
+    private ArrayList<PendingTransactionContainer.PoolEntry> buildIncludableRun(String address) {
+        ArrayList<PendingTransactionContainer.PoolEntry> run = new ArrayList<PendingTransactionContainer.PoolEntry>();
+        Collection<PendingTransactionContainer.PoolEntry> queue = pool.getSenderQueue(address);
+        if (queue == null) {
+            return run;
+        }
+        long expectedIndex = databaseMaster.getAddressSignatureIndex(address) + 1;
+        long balance = databaseMaster.getAddressBalance(address);
+        long spent = 0L;
+        for (PendingTransactionContainer.PoolEntry entry : queue) {
+            if (entry.transaction.getSignatureIndex() < expectedIndex) {
+                continue; // Stale, its index is already used on chain
+            }
+            if (entry.transaction.getSignatureIndex() != expectedIndex) {
+                break; // Gap
+            }
+            spent += entry.transaction.getInputAmount();
+            if (spent > balance) {
+                break;
+            }
+            run.add(entry);
+            expectedIndex++;
+        }
+        return run;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Undo record for one block: the net balance and signature count change the block made to every address it touched, including the mining reward.
+ * LedgerManager fills one in while a block is applied (see beginUndoRecord()/endUndoRecord()), and rolls a block back by subtracting it again
+ * (see applyUndo()). This is what lets a reorganization stop at the fork point, instead of reversing every transaction back to the genesis block.
+ */
+public class BlockUndo {
+    public int blockNum;
+    private LinkedHashMap<String, long[]> deltas; // address -> {balanceDelta, signatureCountDelta}
+
+    /**
+     * @param blockNum Number of the block this undo record belongs to
+     */
+    public BlockUndo(int blockNum) {
+        this.blockNum = blockNum;
+        this.deltas = new LinkedHashMap<String, long[]>();
+    }
+
+    /**
+     * Records a balance change for an address. Multiple changes to the same address are summed.
+     *
+     * @param address Address whose balance changed
+     * @param delta Amount the balance changed by
+     */
+    public void addBalanceDelta(String address, long delta) {
+        getDelta(address)[0] += delta;
+    }
+
+    /**
+     * Records a signature count change for an address. Multiple changes to the same address are summed.
+     *
+     * @param address Address whose signature count changed
+     * @param delta Amount the signature count changed by
+     */
+    public void addSignatureCountDelta(String address, int delta) {
+        getDelta(address)[1] += delta;
+    }
+
+    /**
+     * @return Set<String> All addresses touched by the block, in the order they were first touched
+     */
+    public Set<String> getAddresses() {
+        return deltas.keySet();
+    }
+
+    public long getBalanceDelta(String address) {
+        long[] delta = deltas.get(address);
+        return delta == null ? 0L : delta[0];
+    }
+
+    public int getSignatureCountDelta(String address) {
+        long[] delta = deltas.get(address);
+        return delta == null ? 0 : (int) delta[1];
+    }
+
+    /**
+     * Serializes the undo record for storage.
+     *
+     * @return byte[] Serialized undo record
+     */
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(blockNum);
+            out.writeInt(deltas.size());
+            for (Map.Entry<String, long[]> entry : deltas.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeInt((int) entry.getValue()[1]);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deserializes an undo record written by toBytes().
+     *
+     * @param bytes Serialized undo record
+     * @return BlockUndo The undo record, or null if bytes is malformed
+     */
+    public static BlockUndo fromBytes(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            BlockUndo undo = new BlockUndo(in.readInt());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                undo.addBalanceDelta(address, in.readLong());
+                undo.addSignatureCountDelta(address, in.readInt());
+            }
+            return undo;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private long[] getDelta(String address) {
+        long[] delta = deltas.get(address);
+        if (delta == null) {
+            delta = new long[2];
+            deltas.put(address, delta);
+        }
+        return delta;
+    }
+}
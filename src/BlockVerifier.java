@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Verification stage that sits in front of Blockchain.addBlock(). Parsing a block and checking its certificate, miner signature and transaction
+ * signatures doesn't depend on chain state, and it's where nearly all of the time goes during initial sync--so it's done here, on a pool of worker
+ * threads, one block per task. The result is cached on each Block (see Block.validateSignatures()), so when the main loop later connects the
+ * block, only the chain-dependent work is left.
+ *
+ * Blocks come back out of getVerifiedBlocks() in the order they were submitted, which keeps the connect stage deterministic and avoids needless
+ * trips through the orphan pool when a peer sends blocks in height order.
+ */
+public class BlockVerifier {
+    private ExecutorService workers;
+    private LinkedList<Future<VerifiedBlock>> pending;
+
+    /**
+     * A raw block as it was received, together with the Block parsed from it. The raw String is kept for relaying, so peers get exactly what we got.
+     */
+    public static class VerifiedBlock {
+        public final String rawBlock;
+        public final Block block;
+
+        public VerifiedBlock(String rawBlock, Block block) {
+            this.rawBlock = rawBlock;
+            this.block = block;
+        }
+    }
+
+    /**
+     * Starts one worker thread per available processor.
+     */
+    public BlockVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount Number of worker threads to verify blocks with
+     */
+    public BlockVerifier(int threadCount) {
+        this.pending = new LinkedList<Future<VerifiedBlock>>();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlockVerifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a raw block to be parsed and have its signatures verified on a worker thread.
+     *
+     * @param rawBlock The raw block, as received
+     */
+    public synchronized void submit(final String rawBlock) {
+        pending.add(workers.submit(new Callable<VerifiedBlock>() {
+            public VerifiedBlock call() {
+                Block block = new Block(rawBlock);
+                block.validateSignatures();
+                return new VerifiedBlock(rawBlock, block);
+            }
+        }));
+    }
+
+    /**
+     * Returns every block whose verification has finished, stopping at the first block still being worked on so that submission order is kept.
+     * Blocks that failed to parse are dropped. A block that failed verification is still returned--addBlock() will reject it from the cached result.
+     *
+     * @return ArrayList<VerifiedBlock> Finished blocks, in submission order
+     */
+    public synchronized ArrayList<VerifiedBlock> getVerifiedBlocks() {
+        ArrayList<VerifiedBlock> verifiedBlocks = new ArrayList<VerifiedBlock>();
+        while (pending.size() > 0 && pending.getFirst().isDone()) {
+            try {
+                verifiedBlocks.add(pending.removeFirst().get());
+            } catch (Exception e) {
+                System.out.println("Unable to parse block received from peer");
+                e.printStackTrace();
+            }
+        }
+        return verifiedBlocks;
+    }
+
+    /**
+     * Waits for every submitted block to finish verifying, then returns them all in submission order.
+     *
+     * @return ArrayList<VerifiedBlock> All submitted blocks
+     */
+    public synchronized ArrayList<VerifiedBlock> getAllVerifiedBlocks() {
+        ArrayList<VerifiedBlock> verifiedBlocks = new ArrayList<VerifiedBlock>();
+        while (pending.size() > 0) {
+            try {
+                verifiedBlocks.add(pending.removeFirst().get());
+            } catch (Exception e) {
+                System.out.println("Unable to parse block");
+                e.printStackTrace();
+            }
+        }
+        return verifiedBlocks;
+    }
+
+    /**
+     * @return int Number of blocks submitted but not yet handed back
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the worker threads. Blocks already queued are abandoned.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -13,11 +13,11 @@ import java.util.*;
 *
 * As the blockchain has the most up-to-date infomation about blockchain data, it makes perfect sense for the ledger, which is based purely on the blockchain
 * to be managed by the Blockchain object. Initial plans were to have separate Blockchain objects for each fork in a chain but overhead of cloning Blockchain
-* objects seemed unwarranted. Significant optimazatoin still needs to be done on the fork management-climbing all the way down the shorter chain and back
-* the longer chain is NOT a permanat solution, and I hope to have respetable fork management overhead by 2.0.0a2.
+* objects seemed unwarranted. On a reorganization, the ledger is rolled back only to the fork point using the undo record stored for each applied block
+* (see BlockUndo), and the longer chain is then applied from there--so the cost scales with the fork depth, not with the chain height.
 *
-* Additionally, there is no need to store indentical blocks between multiple forks. The overhead of a fork suddenly requireing double the blockchain storage
-* unacceptable. It's works, I think. But unacceptable for production code, so that'll certainly change, hopefully by 2.0.0a2 or 2.0.0a3, depending on my schedule
+* Additionally, there is no need to store indentical blocks between multiple forks. Blocks live in a tree of BlockNode objects keyed by hash, so a fork only
+* adds its own blocks, attaching a block is a single parent lookup, and the tip of the longest chain is cached rather than searched for.
 *
 * As blocks are added to the blockchain, the ledger is updated. While working beautifully in small-scale testing, I'm sure the signature count synchronization
 * between signed transactions and blocks will trip up at some point, and send the Blockchain object into either a loop of dispair, or an irrecoverable error.
@@ -33,15 +33,27 @@ import java.util.*;
 * rejects all future signatures from that keypair. Important to keep this in mind--
 * */
 public class Blockchain {
-    ArrayList<ArrayList<Block>> chains = new ArrayList<ArrayList<Block>>();
+    // Every block within FORK_WINDOW of the best tip, on any fork, keyed by block hash. Older blocks are only in blockStore.
+    private HashMap<String, BlockNode> blockIndex = new HashMap<String, BlockNode>();
 
-    private ArrayList<Block> blockQueue;
+    // Top of the longest chain; cached so tip queries don't have to search the tree
+    private BlockNode bestTip;
+
+    // Blocks that arrived before their previous block, waiting to be connected
+    private OrphanBlockPool orphanPool;
 
     public LedgerManager ledgerManager;
 
-    private String dbFolder;
+    private BlockStore blockStore;
+
+    private AddressHistoryIndex historyIndex; // Follows the blocks applied to the ledger
 
-    private boolean gotGenesisBlock = false;
+    private LinkedHashSet<String> signingAddresses; // Addresses that used up a signature index since takeSigningAddresses() was last called
+
+    // Forks are only tracked FORK_WINDOW blocks deep; blocks below that are final, and are read back from blockStore on demand.
+    private static final int FORK_WINDOW = 11;
+
+    private String dbFolder;
 
     /**
     * Constructor for Blockchain object. A Blockchain object represents an entire chain of blocks. Only one is created
@@ -49,25 +61,84 @@ public class Blockchain {
     *
     * This blockchain object will handle all forks--it keeps a record of forks for ten blocks. After a fork falls more than 10 blocks behind, it is deleted.
     *
-    * Block are stored in a 2D ArrayList, where one demension is the blockchain 'version' (forks), and the other dimension is the block
+    * Blocks are kept in a tree of BlockNode objects keyed by hash, where each node points at its parent. Forks share every node below the fork point.
     * @param dbFolder Folder for database to be contaioned inside.
     **/
 
     public Blockchain(String dbFolder) {
         this.dbFolder = dbFolder;
         this.ledgerManager = new LedgerManager(dbFolder + "/AccountBalance.bal");
-        this.blockQueue = new ArrayList<Block>();
+        this.orphanPool = new OrphanBlockPool();
+        this.blockStore = new BlockStore(dbFolder + "/blocks");
+        this.historyIndex = new AddressHistoryIndex(dbFolder + "/history.idx");
+        this.signingAddresses = new LinkedHashSet<String>();
     }
 
-    public int getBlockchainLength() {
-        int longestChain = 0;
-        for (int i = 0; i < chains.size(); i++) {
-            if (chains.get(i).size() > longestChain) {
-                longestChain = chains.get(i).size();
+    /**
+     * Opens the main chain from the block store instead of replaying every block. Only the top FORK_WINDOW blocks are read into the block tree;
+     * the rest of the chain stays in the store. If the ledger was saved at a lower height than the stored chain (for example after a crash between
+     * storing a block and saving the ledger), the missing blocks are applied to the ledger.
+     *
+     * @return boolean Whether a chain was loaded. False means the store is empty and the chain has to be imported.
+     */
+    public boolean loadFromBlockStore() {
+        int storedLength = blockStore.getMainChainLength();
+        if (storedLength == 0) {
+            return false;
+        }
+        BlockNode node = null;
+        for (int i = Math.max(0, storedLength - FORK_WINDOW); i < storedLength; i++) {
+            node = new BlockNode(blockStore.getBlock(i), node);
+            blockIndex.put(node.getBlockHash(), node);
+        }
+        bestTip = node;
+        for (int i = ledgerManager.lastBlockNum + 1; i < storedLength; i++) {
+            if (!applyBlockToLedger(getBlock(i))) {
+                System.out.println("[CRITICAL ERROR] Stored block " + i + " doesn't apply to the ledger; the ledger stays at block " + ledgerManager.lastBlockNum + "!");
+                break;
+            }
+        }
+        // The history index is written after the ledger, so it can only be behind it--unless it's from some other chain, in which case it's rebuilt
+        if (historyIndex.getIndexedHeight() > ledgerManager.lastBlockNum) {
+            historyIndex.clear();
+        }
+        if (historyIndex.getIndexedHeight() < ledgerManager.lastBlockNum) {
+            System.out.println("Indexing address history from block " + (historyIndex.getIndexedHeight() + 1) + " to " + ledgerManager.lastBlockNum + "...");
+            for (int i = historyIndex.getIndexedHeight() + 1; i <= ledgerManager.lastBlockNum; i++) {
+                historyIndex.addBlock(getBlock(i));
             }
         }
+        System.out.println("Loaded " + storedLength + " blocks from block store.");
+        return true;
+    }
+
+    /**
+     * Returns the number of blocks on the stored main chain.
+     *
+     * @return int Stored main chain length
+     */
+    public int getStoredChainLength() {
+        return blockStore.getMainChainLength();
+    }
+
+    /**
+     * Returns the node at the given height on the longest chain, if it is still held in memory.
+     *
+     * @param height Height (block number) to look up
+     * @return BlockNode The node, or null if the height is below the fork window or above the best tip
+     */
+    private BlockNode getMainChainNode(int height) {
+        if (bestTip == null || height > bestTip.height || height < 0) {
+            return null;
+        }
+        return bestTip.getAncestor(height);
+    }
 
-        return longestChain;
+    public int getBlockchainLength() {
+        if (bestTip == null) {
+            return 0;
+        }
+        return bestTip.height + 1;
     }
 
     /**
@@ -76,38 +147,40 @@ public class Blockchain {
     * @return long Curreny difficulty on longest chain
     **/
     public long getDifficulty() {
-        int longestChainIndex = -1;
-        int longestChainSize = -1;
-        for (int i = 0; i < chains.size(); i++) {
-            if (chains.get(i).size() > longestChainSize) {
-                longestChainSize = chains.get(i).size();
-                longestChainIndex = i;
-            }
-        }
-        return chains.get(longestChainIndex).get(longestChainSize - 1).difficulty;
+        return bestTip.block.difficulty;
     }
 
     /**
-    * This method is called periodically to attempt to add all queued block to the blockchain
+    * Attempts to connect queued (orphan) blocks whose previous block is now part of the block tree. addBlock() already does this for the
+    * children of every block it connects, so this is only a safety net; it looks at each missing parent once rather than re-validating the whole queue.
     **/
 
     public void tryBlockQueue() {
-        boolean addedABlock = false;
-        do
-        { // Some block in the queue may be attempted before other dependency blocks, so while we are able to add blocks, we will continue to add them.
-            addedABlock = false;
-            for (int i = 0; i < blockQueue.size(); i++) {
-                if (blockQueue.get(i).validateBlock(this)) {
-                    if (addBlock(blockQueue.get(i), false)) {
-                        addedABlock = true;
-                        blockQueue.remove(i);
-                        i--; // Compenstate for changing ArrayList size, don't> want to skip an element!
-                    }
-                } else {
-                    blockQueue.remove(i);
+        ArrayList<String> missingParents = orphanPool.getMissingParents();
+        for (int i = 0; i < missingParents.size(); i++) {
+            if (blockIndex.containsKey(missingParents.get(i))) {
+                connectOrphans(missingParents.get(i));
+            }
+        }
+    }
+
+    /**
+     * Connects every orphan that descends from the given block, breadth-first. Only the direct children of a block that just connected are tried,
+     * so each orphan is attempted once per parent arrival instead of once per pass over the whole pool.
+     *
+     * @param blockHash Hash of a block that was just connected
+     */
+    private void connectOrphans(String blockHash) {
+        ArrayList<String> connectedHashes = new ArrayList<String>();
+        connectedHashes.add(blockHash);
+        for (int i = 0; i < connectedHashes.size(); i++) {
+            ArrayList<Block> children = orphanPool.removeChildren(connectedHashes.get(i));
+            for (int j = 0; j < children.size(); j++) {
+                if (connectBlock(children.get(j), false)) {
+                    connectedHashes.add(children.get(j).blockHash);
                 }
             }
-        } while (addedABlock);
+        }
     }
 
     /**
@@ -118,15 +191,61 @@ public class Blockchain {
     * @return Block Block at blockNum in longest chain
     **/
     public Block getBlock(int blockNum) {
-        int longestChainLength = 0;
-        int longestChain = -1;
-        for (int i = 0; i < chains.size(); i++) {
-            if (chains.get(i).size() > longestChainLength) {
-                longestChain = i;
-                longestChainLength = chains.get(i).size();
-            }
+        BlockNode node = getMainChainNode(blockNum);
+        if (node != null) {
+            return node.block;
+        }
+        if (blockNum < 0 || blockNum >= getBlockchainLength()) {
+            return null;
         }
-        return chains.get(longestChain).get(blockNum);
+        return blockStore.getBlock(blockNum);
+    }
+
+    /**
+     * Retrieves the raw String of the block at blockNum on the longest chain. Blocks that aren't held in memory are returned straight from the
+     * block store without being parsed.
+     *
+     * @param blockNum The block number to retrieve
+     * @return String The raw block, or null if there is no such block
+     */
+    public String getRawBlock(int blockNum) {
+        BlockNode node = getMainChainNode(blockNum);
+        if (node != null) {
+            return node.block.getRawBlock();
+        }
+        if (blockNum < 0 || blockNum >= getBlockchainLength()) {
+            return null;
+        }
+        return blockStore.getRawBlock(blockNum);
+    }
+
+    /**
+     * Returns the miner (certificate redeem address) of the block at blockNum on the longest chain. Blocks that aren't held in memory are
+     * answered from the stored record without parsing their transactions.
+     *
+     * @param blockNum The block number to look up
+     * @return String Address of the block miner
+     */
+    public String getBlockMiner(int blockNum) {
+        BlockNode node = getMainChainNode(blockNum);
+        if (node != null) {
+            return node.block.getMiner();
+        }
+        return blockStore.getStoredBlock(blockNum).getMiner();
+    }
+
+    /**
+     * Retrieves any known block, on any chain, by its hash.
+     *
+     * @param blockHash Hash of the block
+     * @return Block The block, or null if it has never been stored
+     */
+    public Block getBlockByHash(String blockHash) {
+        BlockNode node = blockIndex.get(blockHash);
+        if (node != null) {
+            return node.block;
+        }
+        return blockStore.getBlockByHash(blockHash);
     }
 
     /**
@@ -138,45 +257,51 @@ public class Blockchain {
     *
     * @return boolean Whether adding the block was unsuccessful. Most common source of returning false is a block that doesn'< verify></>*/
     public boolean addBlock(Block block, boolean fromBlockchainFile) {
+        if (!connectBlock(block, fromBlockchainFile)) {
+            return false;
+        }
+        connectOrphans(block.blockHash);
+        return true;
+    }
+
+    /**
+     * Validates a block and connects it to the block tree, updating the ledger if it extends or overtakes the longest chain. A block whose
+     * previous block is unknown gets only its stateless checks and waits in the orphan pool. Does not look at orphans waiting for this block.
+     *
+     * @param block Block to connect
+     * @param fromBlockchainFile Whether the block was read in from file
+     * @return boolean Whether the block was connected
+     */
+    private boolean connectBlock(Block block, boolean fromBlockchainFile) {
         System.out.println("Attempting to add block " + block.blockNum + " with hash " + block.blockHash);
         try {
             boolean isPOS = false;
             if (block.difficulty == 100000) {
                 isPOS = true;
             }
-            if (block.difficulty != 150000 || !isPOS) {
+            if (block.difficulty != 150000 && !isPOS) {
                 System.out.println("Block detected with wrong difficulty");
                 return false;
             }
 
-            // A bit of cleanup--remove chain that are more than 10 blocks shorter than the largest chain.
-            int largestChainLength = 0;
-            ArrayList<Block> largestChain = new ArrayList<Block>();
-            String largestChainLastBlockHash = "";
-            for (int i = 0; i < chains.size(); i++) {
-                if (chains.get(i).size() > largestChainLength) {
-                    largestChain = chains.get(i);
-                    largestChainLength = chains.get(i).size();
-                    largestChainLastBlockHash = chains.get(i).get(chains.get(i).size() - 1).blockHash;
-                }
-            }
-
-            // Now we have the longest chain, we remove any chains that are less than largestChainLength - 10
-            for (int i = 0; i < chains.size(); i++) {
-                if (chains.get(i).size() < largestChainLength) {
-                    chains.remove(i);
-                    i--;
-                }
-            }
-            if (!block.validateBlock(this)) {
-                return false; // Block is not a valid block
+            // Inititally, check for duplicate blocks
+            if (blockIndex.containsKey(block.blockHash) || orphanPool.contains(block.blockHash)) {
+                // Duplicate bloc; block has already bean added. This happens all the time, as multiple peers all broadcast the same block
+                System.out.println("Duplicate block received from peer");
+                return false;
             }
 
-            //Block looks fine on its own--we don't know how it's going to play with the chain. If the block's number is larger than the largest chain + 1, we'll put the block in a queue to attempt to add later.
+            //If we don't have the previous block yet but it could still turn up (the block isn't below the fork window), we'll put the block in the orphan pool to add once its parent connects.
             // Block numbering start at 0.
-            if (block.blockNum > largestChainLength) {
+            int largestChainLength = getBlockchainLength();
+            boolean parentMissing = bestTip == null ? block.blockNum > 0 : !blockIndex.containsKey(block.previousBlockHash);
+            if (parentMissing && block.blockNum > largestChainLength - FORK_WINDOW) {
+                // Chain-dependent checks have to wait for the parent, but signatures can be checked (and their result cached) right away
+                if (!block.validateSignatures()) {
+                    return false; // Block is not a valid block
+                }
                 // Add it to the queue.
-                blockQueue.add(block);
+                orphanPool.addOrphan(block);
                 /*
                  * In the future, the addBlock() method may be changed to return an int, with values representing things like block above existing heights, validation error, block not on any chains, etc.
                  * For now, the boolean indicates simply whether immediate addition of the block to some internal blockchain was successful.
@@ -187,197 +312,230 @@ public class Blockchain {
                 return false;
             }
 
-            // If no chains exits and this is the first block, we'll create our first chain:
-            if (!gotGenesisBlock) {
-                gotGenesisBlock = true;
-                chains.add(new ArrayList<Block>());
-                largestChain = chains.get(0);
-                largestChainLastBlockHash = block.blockHash;
+            if (!block.validateBlock(this)) {
+                return false; // Block is not a valid block
+            }
+
+            // If no chains exits and this is the first block, it becomes the root of the block tree:
+            if (bestTip == null) {
                 if (ledgerManager.lastBlockNum < 0) {
-                    //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                    ArrayList<String> tranasctionsToApply = new ArrayList<String>();
-                    for (int i = 0; i < block.transactions.size(); i++) {
-                        tranasctionsToApply.add(block.transactions.get(i));
-                    }
-                    int loopCount = 0;
-                    int transactionsApplied = 0;
-                    // Yippee let's add our first chunk of transactions if we need to!
-                    while (tranasctionsToApply.size() > transactionsApplied && !tranasctionsToApply.get(0).equals("")) {
-                        loopCount++;
-                        for (int k = 0; k < tranasctionsToApply.size(); k++) {
-                            if (ledgerManager.executeTransaction(tranasctionsToApply.get(k))) {
-                                tranasctionsToApply.remove(k); // Executed correctly
-                                k--; // Compensate for changed ArrayList size
-                            }
-                        }
-                        if (loopCount > 10000) {
-                            System.out.println("Infinite block detected! Hash: " + block.blockHash + " and height: " + block.blockNum);
-                            System.out.println(tranasctionsToApply.size());
-                            System.exit(-1);
-                        }
+                    // Yippee let's add our first chunk of transactions (and pay the mining fee) if we need to!
+                    if (!applyBlockToLedger(block)) {
+                        return false;
                     }
                 }
-
-                ledgerManager.adjustAddressBalance(chains.get(0).get(0).certificate.redeemAddress, 100); //Pay mining fee
-                ledgerManager.adjustAddressSignatureCount(chains.get(0).get(0).certificate.redeemAddress, 1);
+                BlockNode genesisNode = new BlockNode(block, null);
+                blockIndex.put(block.blockHash, genesisNode);
+                bestTip = genesisNode;
                 if (!fromBlockchainFile) {
                     writeBlockToFile(block);
                 }
+                updateMainChainIndex();
                 return true;
             }
 
-            // Inititally, check for duplicate blocks
-            for (int i = 0; i < chains.size(); i++) {
-                if (chains.get(i).get(chains.get(i).size() - 1).blockHash.equals(block.blockHash)) {
-                    // Duplicate bloc; block has already bean added. This happens all the time, as multiple peers all broadcast the same block
-                    System.out.println("Duplicate block received from peer");
-                    return false;
-                }
+            // Then, we look up the block's parent. Any block within the fork window can be built on, whether it's on the longest chain or not.
+            BlockNode parent = blockIndex.get(block.previousBlockHash);
+            if (parent == null || parent.height + 1 != block.blockNum) {
+                // Didnt fit on nay existing blockchain
+                System.out.println("Block didnt fit!");
+                return false;
             }
+            BlockNode node = new BlockNode(block, parent);
+            blockIndex.put(block.blockHash, node);
 
-            // Then, we will see whether it goes well onto the ends of any existing chains
-            for (int i = 0; i < chains.size(); i++) {
-                // Block numbering starts at 0
-                if (chains.get(i).get(chains.get(i).size() - 1).blockHash.equals(block.previousBlockHash) && chains.get(i).size() == block.blockNum) {
-                    chains.get(i).add(block);
-                    if (chains.get(i).size() > largestChainLength) {
-                        if (!chains.get(i).get(chains.get(i).size() - 2).blockHash.equals(largestChainLastBlockHash)) {
-                            //Future implementations will be MUCH more efficient--they'll reverse down the fork and ride it back up.
-                            //However, during the developmental time squeeze that is two hours before 2.0.0a1 launch when I realized the logic I had here wasn't good, this seemed like a great idea.
-                            for (int j = largestChain.size(); j > 0; j--) {
-                                ArrayList<String> transactionsToReverse = largestChain.get(j).transactions;
-                                for (int k = 0; k < transactionsToReverse.size(); k++) {
-                                    ledgerManager.reverseTransaction(transactionsToReverse.get(k));
-                                }
-                                ledgerManager.adjustAddressBalance(largestChain.get(j).certificate.redeemAddress, -100);
-                                ledgerManager.adjustAddressSignatureCount(largestChain.get(j).certificate.redeemAddress, -1);
-                            }
-                            //The ledger is completely empty, basically. Good job. Efficiency at its finest. I WILL FIX THIS
-                            for (int j = 0; j < chains.get(i).size(); j++) {
-                                //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                                ArrayList<String> transactionsToApply = new ArrayList<String>();
-                                for (int k = 0; k < block.transactions.size(); k++) {
-                                    transactionsToApply.add(block.transactions.get(k));
-                                }
-                                int loopCount = 0;
-                                while (transactionsToApply.size() > 0) {
-                                    loopCount++;
-                                    for (int k = 0; k < transactionsToApply.size(); k++) {
-                                        System.out.println("Attempting to execute transaction: " + transactionsToApply.get(k).substring(0, 45) + "..." + transactionsToApply.get(k).substring(transactionsToApply.get(k).length() - 20));
-                                        if (ledgerManager.executeTransaction(transactionsToApply.get(k))) {
-                                            System.out.println("Successfully executed transaction!");
-                                            transactionsToApply.remove(k); // Executed correctly
-                                            k--; //Compensate for changed ArrayList size
-                                        } else {
-                                            System.out.println("Didnt execute transaction...");
-                                        }
-                                    }
-                                    if (loopCount > 10000) {
-                                        System.out.println("Infinite block detected! Hash: " + chains.get(i).get(j).blockHash + " and height: " + chains.get(i).get(j).blockNum);
-                                        System.exit(-1);
-                                    }
-                                }
-                                ledgerManager.adjustAddressBalance(chains.get(i).get(j).certificate.redeemAddress, 100);
-                                ledgerManager.adjustAddressSignatureCount(chains.get(i).get(j).certificate.redeemAddress, 1);
-
-                            }
-                        } else {
-                            // We need to execute all the transactions....
-                            if (ledgerManager.lastBlockNum < block.blockNum) {
-                                //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                                ArrayList<String> transactionsToApply = new ArrayList<String>();
-                                for (int k = 0; k < block.transactions.size(); k++) {
-                                    transactionsToApply.add(block.transactions.get(k));
-                                }
-                                int loopCount = 0;
-                                int completedTransactions = 0;
-                                while (transactionsToApply.size() > completedTransactions) {
-                                    loopCount++;
-                                    for (int k = 0; k < transactionsToApply.size(); k++) {
-                                        if (ledgerManager.executeTransaction(transactionsToApply.get(k))) {
-                                            transactionsToApply.remove(k);
-                                            k--;
-                                        } else if (transactionsToApply.get(k).equals("")) {
-                                            completedTransactions++;
-                                        }
-                                    }
-                                    if (loopCount > 10000) {
-                                        System.out.println("Infinite block detected! Hash: " + block.blockHash + " and height: " + block.blockNum);
-                                        System.exit(-1);
-                                    }
-                                }
-                                ledgerManager.adjustAddressBalance(block.certificate.redeemAddress, 100);
-                                ledgerManager.adjustAddressSignatureCount(block.certificate.redeemAddress, 1);
-
-                            }
-                        }
-                    }
-                    if (!fromBlockchainFile) {
-                        writeBlockToFile(block);
-                    }
-                    return true;
-                } else {
-                    System.out.println("Something went wrong with stacking...");
-                    System.out.println(chains.get(i).get(chains.get(i).size() - 1).blockHash);
-                    System.out.println(chains.get(i).get(chains.get(i).size() - 1).blockHash);
-                }
-            }
-            boolean foundPlaceForBlock = false;
-            for (int i = 0; i < chains.size(); i++) {
-                ArrayList<Block> tempChain = chains.get(i);
-                for (int j = tempChain.size() - 11; j < tempChain.size(); j++) {
-                    if (j < 0) {
-                        j = 0;
-                    }
-                    if (tempChain.get(j).blockHash.equals(block.previousBlockHash)) {
-                        ArrayList<Block> newChain = new ArrayList<Block>();
-                        for (int k = 0; k < j; k++) {
-                            newChain.add(tempChain.get(k));
+            if (node.height > bestTip.height) {
+                if (parent == bestTip) {
+                    // We need to execute all the transactions....
+                    if (ledgerManager.lastBlockNum < block.blockNum) {
+                        if (!ledgerHashMatches(block) || !applyBlockToLedger(block)) {
+                            blockIndex.remove(block.blockHash);
+                            return false;
                         }
-                        newChain.add(block);
-                        foundPlaceForBlock = true;
-                        j = tempChain.size();
-                        i = chains.size();
                     }
+                } else if (!reorganizeTo(node)) {
+                    blockIndex.remove(block.blockHash);
+                    return false;
                 }
+                bestTip = node;
             }
-            if (foundPlaceForBlock) {
-                // Might be stuff here in the future...
-            } else {
-                // Didnt fit on nay existing blockchain
-                System.out.println("Block didnt fit!");
-                return false;
+            if (!fromBlockchainFile) {
+                writeBlockToFile(block);
             }
+            updateMainChainIndex();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        if (!fromBlockchainFile) {
-            writeBlockToFile(block);
+        return true;
+    }
+
+    /**
+     * Switches the ledger from the current best tip over to newTip. The old chain is rolled back to the fork point with the undo records
+     * stored for each applied block, and the new chain is applied from there--so the cost is proportional to the fork depth, not the chain height.
+     *
+     * @param newTip Tip of the chain that just became the longest
+     * @return boolean Whether the reorganization was possible. False leaves the ledger untouched.
+     */
+    private boolean reorganizeTo(BlockNode newTip) {
+        // Find the fork point by walking both branches down to the same node
+        BlockNode oldBranch = bestTip;
+        BlockNode newBranch = newTip;
+        ArrayList<BlockNode> blocksToApply = new ArrayList<BlockNode>();
+        while (newBranch != null && newBranch.height > oldBranch.height) {
+            blocksToApply.add(newBranch);
+            newBranch = newBranch.parent;
+        }
+        ArrayList<BlockUndo> undosToApply = new ArrayList<BlockUndo>();
+        ArrayList<BlockNode> blocksRolledBack = new ArrayList<BlockNode>();
+        while (oldBranch != null && newBranch != null && oldBranch != newBranch) {
+            BlockUndo undo = blockStore.getUndo(oldBranch.getBlockHash());
+            if (undo == null) {
+                System.out.println("[CRITICAL ERROR] Missing undo record for block " + oldBranch.height + " with hash " + oldBranch.getBlockHash() + ", unable to reorganize!");
+                return false;
+            }
+            undosToApply.add(undo);
+            blocksRolledBack.add(oldBranch);
+            blocksToApply.add(newBranch);
+            oldBranch = oldBranch.parent;
+            newBranch = newBranch.parent;
+        }
+        if (oldBranch == null || newBranch == null) {
+            System.out.println("[CRITICAL ERROR] Fork of block " + newTip.height + " with hash " + newTip.getBlockHash() + " is deeper than " + FORK_WINDOW + " blocks, unable to reorganize!");
+            return false;
+        }
+        System.out.println("Reorganizing from block " + bestTip.height + " back to fork point " + oldBranch.height + ", then up to block " + newTip.height);
+        for (int i = 0; i < undosToApply.size(); i++) {
+            ledgerManager.applyUndo(undosToApply.get(i));
+            historyIndex.removeBlock(blocksRolledBack.get(i).block);
+        }
+        for (int i = blocksToApply.size() - 1; i >= 0; i--) {
+            if (!ledgerHashMatches(blocksToApply.get(i).block) || !applyBlockToLedger(blocksToApply.get(i).block)) {
+                // The new branch doesn't fit the ledger it claims to build on. The failed block left the ledger untouched; put the old branch back
+                for (int j = i + 1; j < blocksToApply.size(); j++) {
+                    ledgerManager.applyUndo(blockStore.getUndo(blocksToApply.get(j).getBlockHash()));
+                    historyIndex.removeBlock(blocksToApply.get(j).block);
+                }
+                for (int j = blocksRolledBack.size() - 1; j >= 0; j--) {
+                    applyBlockToLedger(blocksRolledBack.get(j).block);
+                }
+                return false;
+            }
         }
         return true;
     }
 
     /**
-     * Writes a block to the blockchain file
+     * Checks a block's ledgerHash against the ledger it is about to be applied to. Blocks below LedgerCommitment.ACTIVATION_HEIGHT were made
+     * before ledger hashes were filled in and may carry all zeros; from that height on, a missing or all-zero ledger hash is rejected like any
+     * other mismatch.
+     *
+     * @param block Block about to be applied
+     * @return boolean Whether the block's ledger hash matches the ledger
+     */
+    private boolean ledgerHashMatches(Block block) {
+        if (block.blockNum < LedgerCommitment.ACTIVATION_HEIGHT && (block.ledgerHash == null || block.ledgerHash.equals(LedgerCommitment.NO_COMMITMENT))) {
+            return true;
+        }
+        if (block.ledgerHash == null) {
+            System.out.println("Block " + block.blockNum + " with hash " + block.blockHash + " has no ledger hash");
+            return false;
+        }
+        String ledgerHash = ledgerManager.getLedgerHash();
+        if (!block.ledgerHash.equalsIgnoreCase(ledgerHash)) {
+            System.out.println("Block " + block.blockNum + " with hash " + block.blockHash + " has ledger hash " + block.ledgerHash + ", but the ledger hashes to " + ledgerHash);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies a block's transactions and mining reward to the ledger, then saves the ledger at that block's height. A block that doesn't apply
+     * leaves the ledger as it was.
+     *
+     * @param block Block to apply
+     * @return boolean Whether the block was applied
+     */
+    private boolean applyBlockToLedger(Block block) {
+        LedgerManager.BlockApplyResult result = ledgerManager.applyBlock(block);
+        if (!result.isApplied()) {
+            System.out.println("Unable to apply block " + block.blockNum + " with hash " + block.blockHash + " to the ledger: " + result);
+            return false;
+        }
+        blockStore.putUndo(block.blockHash, result.undo);
+        ledgerManager.writeToFile();
+        historyIndex.addBlock(block);
+        signingAddresses.add(block.certificate.redeemAddress);
+        ArrayList<Transaction> transactions = block.getParsedTransactions();
+        for (int i = 0; i < transactions.size(); i++) {
+            signingAddresses.add(transactions.get(i).getInputAddress());
+        }
+        return true;
+    }
+
+    /**
+     * Returns every address whose signature count went up since the last call: the senders and miners of all blocks applied to the ledger,
+     * including each block of the new branch in a reorganization. Pending transactions from these addresses may now reuse a spent index.
+     *
+     * @return Set<String> Addresses that signed something on chain since the last call
+     */
+    public Set<String> takeSigningAddresses() {
+        LinkedHashSet<String> addresses = signingAddresses;
+        signingAddresses = new LinkedHashSet<String>();
+        return addresses;
+    }
+
+    /**
+     * Points the block store's main chain index at the longest chain, and drops blocks that have fallen out of the fork window from the block tree.
+     * Only the top FORK_WINDOW heights can differ from what is already indexed, so this is constant work per added block.
+     */
+    private void updateMainChainIndex() {
+        if (bestTip == null) {
+            return;
+        }
+        if (blockStore.getMainChainLength() > bestTip.height + 1) {
+            blockStore.truncateMainChain(bestTip.height + 1);
+        }
+        ArrayList<BlockNode> windowNodes = new ArrayList<BlockNode>();
+        for (BlockNode node = bestTip; node != null; node = node.parent) {
+            windowNodes.add(node);
+        }
+        for (int i = windowNodes.size() - 1; i >= 0; i--) {
+            BlockNode node = windowNodes.get(i);
+            if (!blockStore.isMainChainBlock(node.height, node.getBlockHash())) {
+                blockStore.putBlock(node.block);
+                blockStore.setMainChainBlock(node.height, node.getBlockHash());
+            }
+        }
+        int lowestHeldHeight = bestTip.height - FORK_WINDOW + 1;
+        Iterator<BlockNode> nodes = blockIndex.values().iterator();
+        while (nodes.hasNext()) {
+            BlockNode node = nodes.next();
+            if (node.height < lowestHeldHeight) {
+                // Blocks this deep can no longer be reorganized away, so their undo records aren't needed anymore
+                blockStore.deleteUndo(node.getBlockHash());
+                nodes.remove();
+            } else if (node.parent != null && node.parent.height < lowestHeldHeight) {
+                node.parent = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a block to the block store. The block is reachable by hash afterwards; it only joins the stored main chain through updateMainChainIndex().
      *
      * @return boolean Wheter write was successful
      **/
     public boolean writeBlockToFile(Block block) {
         System.out.println("Writing a block to file...");
-        try (FileWriter fileWriter = new FileWriter(dbFolder + "/blockchain.dta", true);
-             BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-             PrintWriter out = new PrintWriter(bufferedWriter)) {
-            out.print(block.getRawBlock());
-        } catch (Exception e) {
+        if (!blockStore.putBlock(block)) {
             System.out.println("ERROR: UNABLE TO SAVE BLOCK TO DATABASE!");
-            e.printStackTrace();
             return false;
         }
         return true;
     }
 
     /**
-     * Saves entire blockchain to a file, useful to save the state of the blockchain so it doesn't have to be redownloaded later.
+     * Exports the stored main chain to a text file in the legacy one-raw-block-per-line format, e.g. for sharing a bootstrap file.
      * Blockchain is stored to a file called "blockchain.dta" inside the provided dbFolder.
      *
      * @param dbFolder Folder to save blockchain file in
@@ -386,10 +544,8 @@ public class Blockchain {
     public boolean saveToFile(String dbFolder) {
         try {
             PrintWriter out = new PrintWriter(new File(dbFolder + "/blockchain.dta"));
-            for (int i = 0; i < chains.size(); i++) {
-                for (int j = 0; j < chains.get(i).size(); j++) {
-                    out.println(chains.get(i).get(j).getRawBlock());
-                }
+            for (int i = 0; i < getBlockchainLength(); i++) {
+                out.println(getRawBlock(i));
             }
             out.close();
         } catch (FileNotFoundException e) {
@@ -401,32 +557,49 @@ public class Blockchain {
     }
 
     /**
-     * Calls getTransactionsInvolvingAddress() on all Block objects in the current Blockchain to get all relevant transactions.
+     * Looks up one page of the transactions involving an address, newest first, through the address history index. Only the blocks holding
+     * the page's transactions are read.
      *
-     * @param addressToFind Address to search through all block transaction pools for
-     * @return ArrayList<String> All transactions in simplified form blocknum:sender:amount:receiver of
+     * @param addressToFind Address to look up
+     * @param page          Page number, from 0
+     * @param pageSize      Transactions per page
+     * @return ArrayList<String> The page's transactions in simplified form blocknum:sender:amount:receiver
      */
-    public ArrayList<String> getAllTransactionsInvolvingAddress(String addressToFind) {
-        int longestChainLength = 0;
-        int longestChainNum = -1;
-        for (int i = 0; i < chains.size(); i++) {
-            if (chains.get(i).size() > longestChainLength) {
-                longestChainNum = i;
-                longestChainLength = chains.get(i).size();
+    public ArrayList<String> getTransactionsInvolvingAddress(String addressToFind, int page, int pageSize) {
+        ArrayList<String> transactions = new ArrayList<String>();
+        long[] positions = historyIndex.getHistory(addressToFind, page, pageSize);
+        Block block = null;
+        for (int i = 0; i < positions.length; i++) {
+            int height = AddressHistoryIndex.getHeight(positions[i]);
+            if (block == null || block.blockNum != height) {
+                block = getBlock(height);
+                if (block == null) {
+                    continue;
+                }
+            }
+            ArrayList<String> transactionParts = block.getTransactionInvolvingAddress(AddressHistoryIndex.getTransactionIndex(positions[i]), addressToFind);
+            for (int j = 0; j < transactionParts.size(); j++) {
+                transactions.add(block.blockNum + ":" + transactionParts.get(j));
             }
         }
+        return transactions;
+    }
 
-        ArrayList<Block> longestChain = chains.get(longestChainNum);
-
-        ArrayList<String> allTransactions = new ArrayList<String>();
+    /**
+     * @param address Address to look up
+     * @return int Number of transactions involving the address on the main chain, counting mining rewards
+     */
+    public int getTransactionCountInvolvingAddress(String address) {
+        return historyIndex.getHistoryCount(address);
+    }
 
-        for (int i = 0; i < longestChain.size(); i++) {
-            ArrayList<String> transactionsFromBlock = longestChain.get(i).getTransactionsInvolvingAddress(addressToFind);
-            for (int j = 0; j < transactionsFromBlock.size(); j++) {
-                allTransactions.add(longestChain.get(i).blockNum + ":" + transactionsFromBlock.get(j));
-            }
-        }
-        return allTransactions;
+    /**
+     * Passthrough method to the LedgerManager object.
+     *
+     * @return String Hash of the ledger at the top of the longest chain, which the next block must carry as its ledgerHash
+     */
+    public String getLedgerHash() {
+        return ledgerManager.getLedgerHash();
     }
 
     /**
@@ -0,0 +1,61 @@
+import java.util.*;
+
+/**
+ * A thread-safe, size-bounded map that forgets its least recently used entry once it is full. Used wherever a result is expensive to compute but
+ * safe to remember, such as signature verification, without letting the cache grow with the life of the node.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class BoundedCache<K, V> {
+    private final Map<K, V> entries;
+
+    /**
+     * @param maxEntries Number of entries to hold before the least recently used one is evicted
+     */
+    public BoundedCache(final int maxEntries) {
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * @param key Key to look up
+     * @return V The cached value, or null if there is none
+     */
+    public V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @param key Key to store the value under
+     * @param value Value to cache
+     */
+    public void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * @param key Key to look up
+     * @return boolean Whether a value is cached for key
+     */
+    public boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key Key to forget
+     */
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return int Number of cached entries
+     */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -1,9 +1,6 @@
 /**
  * Created by huy on 4/19/17.
  */
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -31,6 +28,11 @@ public class Certificate {
     public long signatureIndex;
     public String signatureData;
     public final Map<String, String> authorities;
+    // Certificates are checked again every time a block carrying them is re-validated, so both results are remembered across Certificate objects.
+    private static final int CERTIFICATE_CACHE_SIZE = 10000;
+    private static BoundedCache<String, Boolean> certificateValidity = new BoundedCache<String, Boolean>(CERTIFICATE_CACHE_SIZE); // Keyed on getValidityCacheKey()
+    private static BoundedCache<String, Long> nonceScores = new BoundedCache<String, Long>(CERTIFICATE_CACHE_SIZE); // Keyed on certificate message and nonce
+    private static MerkleAddressUtility merkleAddressUtility = new MerkleAddressUtility();
 
     /**
     * Constructor for Certificate object. A constructed certificate object is not neccessarily a valid certificate for the network--be sure to call validateCertificate()!
@@ -96,17 +98,27 @@ public class Certificate {
     * - Signature signs the certificate mesage properly and is valid for the given signature index
     * - redeemAddress is formatted correctly, the hash (last four charactors) matches the TreeRoot
     * - arbitraryData is 40 or fewer characters
+    * The result is cached, so a certificate carried by a block that gets validated many times is only checked once.
     *
     * @return boolean Whether the certificate is valid
     **/
     public boolean validateCertificate() {
+        String cacheKey = getValidityCacheKey();
+        Boolean valid = certificateValidity.get(cacheKey);
+        if (valid == null) {
+            valid = validateCertificateUncached();
+            certificateValidity.put(cacheKey, valid);
+        }
+        return valid;
+    }
+
+    private boolean validateCertificateUncached() {
         String authorityAddress = "";
         if (authorities.containsKey(authorityName)) {
             authorityAddress = authorities.get(authorityName);
         } else {
             return false; // Not valid authority
         }
-        MerkleAddressUtility merkleAddressUtility = new MerkleAddressUtility();
         if (!merkleAddressUtility.verifyMerkleSignature(getCertificateMessage(), signatureData, authorityAddress, signatureIndex)) {
             return false; // Signature is not valid
         }
@@ -127,13 +139,8 @@ public class Certificate {
     * Used only for mining, lower difficulty scores are better. Peers do not need to run this when confirming certificates.
     * When a peer checks a certificate for mining rights, it simply checks the nonce profide by a peer.
     * Theoretically, a certificate could have serveral nonces which solve a block.
-    * Performance is more than adequate for intended purpose. Anyone suggesting I multithread this will be ignored.
-    * As this is only called by the niner once, and then never used again for given certificate, it just has to work well.
-    * On one core of an i7-3770K clocked at 3.9GHz, this can perform approximately 647,249 nonce checks per second. YMMV.
-    * Using FAH as an example, say WU was wordth 30,000 'points' and for each point, FAH gave you one nonce in the certificate.
-    * That seems reasonable.
-    * So this method would take 0.04635 seconds on high-end desktop. You ran a GPU for hours to finish that WU
-    * You can afford to wait 0.04635 to check see if you earned any coins>
+    * This scans the whole range on the calling thread. Mining through submitcert uses NonceScanner instead, which splits the range across
+    * worker threads, stops as soon as a nonce beats the target, and doesn't hold up the main loop while it runs.
     * Originally, the certificate used for mining was going to have the signature used in the hash.
     * However, this provides no additional security (transitive property; if the signature matches the message and the message
     * when a nonce is appended hashes to below the difficulty, it is a legitimate address.) and was removed for performance
@@ -150,93 +157,64 @@ public class Certificate {
     * @return String Best nonce in certificate range with the corresponding difficulty. Format: "bestNonce:difficulty"
     */
     public String getMinCertificateScoreWithNonce() {
-        long score = Long.MAX_VALUE;
-        int bestNonce = -1;
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            String certificateMessage = getCertificateMessage();
-//            System.out.println();
-            for (int i = 0; i < maxNonce; i++) {
-                String certificateWithNonce = certificateMessage + ",{" + i + "}"; // Nonce is added in {}'s to fullCertificate for mining.
-
-                byte[] hash = messageDigest.digest(certificateWithNonce.getBytes("UTF-8"));
-                long tempScore = 0L;
-                for (int j = 0; j < 8; j++) {
-                    tempScore = (hash[j] & 0xff) + (tempScore << 8); // This take the first 8 bytes of the hash, and turns it into a long.
-                }
-
-                /**
-                * Quick lesson on binary
-                * We get to invent the rules here, because difficulty targets is really an arbitrary idea. It could be implemented in a number of way that are opposite of each other
-                * and still work perfectly fine. That being said, my method seems simple. I take the firest 8 bytes of the hash, and turn that into a number.
-                * Let's review binary:
-                * {binary=decimal*
-                * 1 = 1
-                * 10 = 2
-                * ........
-                * Cool. So you'll notice that the number is bigger for two same-length pieces of binary when the first digit is a zero.
-                * This means the most sigificant bit is the left-most-bit.
-                * The above are examples of UNSIGNED conversion.
-                * Cause negative numbers are occasionally useful, Java's Long is signed. That means the first bit dictates whether the number is positive or negative.
-                * In what might appear counter-intuitive at first, if the first digit is a 1, the long is negative. If it is a 0, the long is positive.
-                * As a result, the largest possible unsigned values will start with a 1 as that signed bit position (left-most-bit) normally represents 2^63 on its own.
-                * Since a hash can be simplified as a mental exercise to spit out 'random' or unpredictable data which has no propensity towards any patterns, this first
-                * bit has a 50 percent chance every hash to be a 1. If it's a 1, it's a huge number anyway (2^63 plus change).
-                * As a result, there's no reason to even care about any negative longs, as they actually represent the biggest numbers (if longs were unsigned).
-                *
-                * 111111111111111111111111111111111111111111111111111111111111 is actually a negative number when converted, because a long is signed.
-                * If tempDiff is negative, it means its most significant bit is a 1, so if it wasn't signed, it would be huge.
-                * For this reason, it's incredibly safe to discard all negative numbers. If the Curecoin network difficulty is so easy that a Long represented in binary
-                * starting with a 1 can solve it, I'll start folding on a raspberry pie and fix it. There would have to be, on average, only one certificate per three
-                * minutes, with only ONE allowed nonce (0) for the difficulty to drop this low. Aka Curecoin would have to be abandoned. By everyone. At the same time.
-                * In that event, allowing the block time to slip to 6 minutes (the result of discarding a potential solution to the minimum difficulty 50 percent of the
-                * time) probably isn't my biggest concern.
-                */
-                if (tempScore < score && tempScore > 0) { //Longs are signed. Half of them will be negative, on average. Just throw out the negative ones. In unsigned-land, they're super huge and not suitable for mining anyhow. Read above. :)
-                    score = tempScore;
-                    bestNonce = i;
-                }
-            }
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return (bestNonce + ":" + score);
+        /**
+        * Quick lesson on binary
+        * We get to invent the rules here, because difficulty targets is really an arbitrary idea. It could be implemented in a number of way that are opposite of each other
+        * and still work perfectly fine. That being said, my method seems simple. I take the firest 8 bytes of the hash, and turn that into a number.
+        * Let's review binary:
+        * {binary=decimal*
+        * 1 = 1
+        * 10 = 2
+        * ........
+        * Cool. So you'll notice that the number is bigger for two same-length pieces of binary when the first digit is a zero.
+        * This means the most sigificant bit is the left-most-bit.
+        * The above are examples of UNSIGNED conversion.
+        * Cause negative numbers are occasionally useful, Java's Long is signed. That means the first bit dictates whether the number is positive or negative.
+        * In what might appear counter-intuitive at first, if the first digit is a 1, the long is negative. If it is a 0, the long is positive.
+        * As a result, the largest possible unsigned values will start with a 1 as that signed bit position (left-most-bit) normally represents 2^63 on its own.
+        * Since a hash can be simplified as a mental exercise to spit out 'random' or unpredictable data which has no propensity towards any patterns, this first
+        * bit has a 50 percent chance every hash to be a 1. If it's a 1, it's a huge number anyway (2^63 plus change).
+        * As a result, there's no reason to even care about any negative longs, as they actually represent the biggest numbers (if longs were unsigned).
+        *
+        * 111111111111111111111111111111111111111111111111111111111111 is actually a negative number when converted, because a long is signed.
+        * If tempDiff is negative, it means its most significant bit is a 1, so if it wasn't signed, it would be huge.
+        * For this reason, it's incredibly safe to discard all negative numbers. If the Curecoin network difficulty is so easy that a Long represented in binary
+        * starting with a 1 can solve it, I'll start folding on a raspberry pie and fix it. There would have to be, on average, only one certificate per three
+        * minutes, with only ONE allowed nonce (0) for the difficulty to drop this low. Aka Curecoin would have to be abandoned. By everyone. At the same time.
+        * In that event, allowing the block time to slip to 6 minutes (the result of discarding a potential solution to the minimum difficulty 50 percent of the
+        * time) probably isn't my biggest concern.
+        */
+        long[] nonceAndScore = NonceScanner.scanRange(NonceScanner.getNoncePrefix(this), 0, maxNonce, 0, null);
+        return (nonceAndScore[0] + ":" + nonceAndScore[1]);
     }
 
     /**
     * This method will return the difficulty-realated score at a given nonce. Generally, this method will be called when peers verify a certificate is under the difficulty
     * required to mine a block. The lower the score, the better. The score represents the long-representation of the first 64 bits of the hash of the certificate
-    * with the provided nonce appended.
+    * message with the provided nonce appended--the same hash getMinCertificateScoreWithNonce() mines with.
     *
     * @param nonce Integer to check the score of
     *
     * @return long The score (lower is better) of the certificate at given nonce
     **/
     public long getScoreAtNonce(int nonce) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            String fullCertificate = getFullCertificate();
-            String certificateWithNonce =fullCertificate+",{"+nonce+"}"; // Nonce is added in {}'s to fullCertificate for mining.
-            byte[] hash = messageDigest.digest(certificateWithNonce.getBytes("UTF-8"));
-            long score = 0L;
-            for (int i = 0; i < 8; i++) {
-                score = (hash[i] & 0xff) + (score << 8); // This takes the first 8 bytes of the hash, and turns it into a long. Works out nicely, as a Long is 64 bits.
-            }
-
-            if (score < 0) {
-                 /* Negative numbers mean the most significant bit (left-most-bit) is a 1. That's big. Not small. So it shouldn't be negative.                As explained above in excruciating detail (see the comment in getMinCertificateScoreWithNonce() for more info) difficulties with a starting 1 are worthless. */
-                score = Long.MAX_VALUE;
-            }
-            return score;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            System.out.println("[CRITICAL ERROR] Unable to run getScoreAtNonce(" + nonce + ") on a certificate!");
-            e.printStackTrace();
+        String cacheKey = getCertificateMessage() + nonce;
+        Long score = nonceScores.get(cacheKey);
+        if (score == null) {
+            score = NonceScanner.getScore(NonceScanner.getNoncePrefix(this), nonce);
+            nonceScores.put(cacheKey, score);
         }
-        return Long.MAX_VALUE; // In case of a significant problem dont tell anyone it's fine to use this certificate for mining. That could create some attack vector.
+        return score;
+    }
+
+    /**
+    * The message identifies the certificate; the signature and its index are folded in as a hash, so a forged signature over a valid message
+    * doesn't share its cached result, and the key doesn't carry the whole signature around.
+    *
+    * @return String Key for the certificate validity cache
+    */
+    private String getValidityCacheKey() {
+        return getCertificateMessage() + HashUtility.sha256Hex(signatureData + "," + signatureIndex);
     }
 
     /*
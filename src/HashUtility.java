@@ -0,0 +1,90 @@
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Shared hashing service. Every thread gets its own SHA-256 and SHA-512 MessageDigest, created on first use and reused from then on, so hashing
+ * neither pays for MessageDigest.getInstance() on every call nor shares a digest between threads.
+ *
+ * All methods are static and thread-safe.
+ */
+public class HashUtility {
+    private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            return newDigest("SHA-256");
+        }
+    };
+    private static final ThreadLocal<MessageDigest> sha512 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            return newDigest("SHA-512");
+        }
+    };
+
+    /**
+     * @param data Bytes to hash
+     * @return byte[] The 32-byte SHA256 of data
+     */
+    public static byte[] sha256(byte[] data) {
+        MessageDigest digest = sha256.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    /**
+     * @param text String to hash, as UTF-8
+     * @return byte[] The 32-byte SHA256 of text
+     */
+    public static byte[] sha256(String text) {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param text String to hash, as UTF-8
+     * @return String Uppercase hex SHA256 of text, the form used for block hashes and txids
+     */
+    public static String sha256Hex(String text) {
+        return DatatypeConverter.printHexBinary(sha256(text));
+    }
+
+    /**
+     * @param data Bytes to hash
+     * @return byte[] The 64-byte SHA512 of data
+     */
+    public static byte[] sha512(byte[] data) {
+        MessageDigest digest = sha512.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    /**
+     * @param text String to hash, as UTF-8
+     * @return byte[] The 64-byte SHA512 of text
+     */
+    public static byte[] sha512(String text) {
+        return sha512(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns this thread's SHA-256 digest, reset, for callers that feed data in pieces. The digest must be finished before any other
+     * HashUtility method is called on the same thread.
+     *
+     * @return MessageDigest This thread's SHA-256 digest
+     */
+    public static MessageDigest getSha256Digest() {
+        MessageDigest digest = sha256.get();
+        digest.reset();
+        return digest;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println("[CRITICAL ERROR] NO " + algorithm + " SUPPORT!");
+            e.printStackTrace();
+            System.exit(-1);
+            return null;
+        }
+    }
+}
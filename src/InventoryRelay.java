@@ -0,0 +1,199 @@
+import java.util.*;
+
+/**
+ * Gossips blocks and transactions by announcing their hashes instead of pushing them in full.
+ *
+ * Every block or transaction is identified by an inventory id, "[TYPE]:[SHA-256 of its text]". When the node has something new to pass on, it
+ * queues the id for every peer not already known to have it, and flushAnnouncements() sends each peer one "INV [id] [id]..." line. A peer missing
+ * any of them answers "GETDATA [id] [id]...", and only then gets the full "BLOCK ..." or "TRANSACTION ..." message, served from a bounded store
+ * of recently relayed items. Each peer remembers the ids it has sent, announced or been sent, so nothing is announced back to where it came from.
+ *
+ * Peers that didn't offer "inv" in their handshake still get new items pushed in full, as before.
+ *
+ * The seen set and the relay store are bounded; an item seen long enough ago to have been forgotten is simply treated as new again, which costs a
+ * duplicate check but nothing worse--blocks and transactions are validated again before use either way. Main loop only, apart from the peers'
+ * own known-inventory caches.
+ */
+public class InventoryRelay {
+    public static final String BLOCK = "BLOCK";
+    public static final String TRANSACTION = "TRANSACTION";
+    private static final int MAX_SEEN_ITEMS = 100000; // Ids of blocks and transactions already received
+    private static final int MAX_RELAY_ITEMS = 5000; // Full items kept to answer GETDATA with
+    private static final int MAX_ITEMS_PER_MESSAGE = 1000; // Ids in one INV or GETDATA line
+    private static final long REQUEST_TIMEOUT = 30000; // Ask another peer for an item if the first hasn't delivered within this many milliseconds
+
+    private PeerNetwork peerNetwork;
+    private BoundedCache<String, Boolean> seen;
+    private BoundedCache<String, String> relayItems;
+    private BoundedCache<String, Long> requested; // Items asked for, and when
+    private LinkedHashMap<PeerConnection, ArrayList<String>> pendingAnnouncements;
+
+    /**
+     * @param peerNetwork The network to gossip on
+     */
+    public InventoryRelay(PeerNetwork peerNetwork) {
+        this.peerNetwork = peerNetwork;
+        this.seen = new BoundedCache<String, Boolean>(MAX_SEEN_ITEMS);
+        this.relayItems = new BoundedCache<String, String>(MAX_RELAY_ITEMS);
+        this.requested = new BoundedCache<String, Long>(MAX_SEEN_ITEMS);
+        this.pendingAnnouncements = new LinkedHashMap<PeerConnection, ArrayList<String>>();
+    }
+
+    /**
+     * @param type    BLOCK or TRANSACTION
+     * @param payload The raw block or transaction
+     * @return String The item's inventory id
+     */
+    public static String getInventoryId(String type, String payload) {
+        return type + ":" + HashUtility.sha256Hex(payload);
+    }
+
+    /**
+     * Records a received or locally created block or transaction.
+     *
+     * @param type    BLOCK or TRANSACTION
+     * @param payload The raw block or transaction
+     * @param source  The peer it came from, or null if it's our own
+     * @return boolean Whether the item is new, and should be processed
+     */
+    public boolean markSeen(String type, String payload, PeerConnection source) {
+        String inventoryId = getInventoryId(type, payload);
+        if (source != null) {
+            source.addKnownInventory(inventoryId);
+        }
+        requested.remove(inventoryId);
+        if (seen.containsKey(inventoryId)) {
+            return false;
+        }
+        seen.put(inventoryId, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Passes an item on to every peer that isn't known to have it already.
+     *
+     * @param type    BLOCK or TRANSACTION
+     * @param payload The raw block or transaction
+     */
+    public void relay(String type, String payload) {
+        String inventoryId = getInventoryId(type, payload);
+        relayItems.put(inventoryId, payload);
+        seen.put(inventoryId, Boolean.TRUE);
+        List<PeerConnection> peers = peerNetwork.getPeers();
+        WireProtocol.OutgoingMessage fullMessage = null;
+        for (int i = 0; i < peers.size(); i++) {
+            PeerConnection peer = peers.get(i);
+            if (peer.hasKnownInventory(inventoryId)) {
+                continue;
+            }
+            peer.addKnownInventory(inventoryId);
+            if (peer.supportsInventory()) {
+                queueAnnouncement(peer, inventoryId);
+            } else {
+                if (fullMessage == null) {
+                    fullMessage = new WireProtocol.OutgoingMessage(type + " " + payload);
+                }
+                peer.send(fullMessage);
+            }
+        }
+    }
+
+    /**
+     * Offers an item to one peer, such as a pending transaction to a peer that just asked for the network state.
+     *
+     * @param peer    The peer
+     * @param type    BLOCK or TRANSACTION
+     * @param payload The raw block or transaction
+     */
+    public void offer(PeerConnection peer, String type, String payload) {
+        String inventoryId = getInventoryId(type, payload);
+        if (!peer.supportsInventory()) {
+            peer.addKnownInventory(inventoryId);
+            peer.send(type + " " + payload);
+        } else if (!peer.hasKnownInventory(inventoryId)) {
+            relayItems.put(inventoryId, payload);
+            peer.addKnownInventory(inventoryId);
+            queueAnnouncement(peer, inventoryId);
+        }
+    }
+
+    /**
+     * Handles "INV [id] [id]..." from a peer by asking it for whatever is new, unless another peer has already been asked recently.
+     *
+     * @param parts The message, split on spaces
+     * @param peer  The peer that sent it
+     */
+    public void handleInventory(String[] parts, PeerConnection peer) {
+        long now = System.currentTimeMillis();
+        StringBuilder request = new StringBuilder("GETDATA");
+        int requestCount = 0;
+        for (int i = 1; i < parts.length && i <= MAX_ITEMS_PER_MESSAGE; i++) {
+            String inventoryId = parts[i];
+            if (!isInventoryId(inventoryId)) {
+                continue;
+            }
+            peer.addKnownInventory(inventoryId);
+            if (seen.containsKey(inventoryId)) {
+                continue;
+            }
+            Long requestedAt = requested.get(inventoryId);
+            if (requestedAt != null && now - requestedAt < REQUEST_TIMEOUT) {
+                continue;
+            }
+            requested.put(inventoryId, now);
+            request.append(" ").append(inventoryId);
+            requestCount++;
+        }
+        if (requestCount > 0) {
+            peer.send(request.toString());
+        }
+    }
+
+    /**
+     * Handles "GETDATA [id] [id]..." from a peer by sending each item it asks for that's still in the relay store.
+     *
+     * @param parts The message, split on spaces
+     * @param peer  The peer that sent it
+     */
+    public void handleGetData(String[] parts, PeerConnection peer) {
+        for (int i = 1; i < parts.length && i <= MAX_ITEMS_PER_MESSAGE; i++) {
+            String payload = relayItems.get(parts[i]);
+            if (payload != null) {
+                peer.send(parts[i].substring(0, parts[i].indexOf(':')) + " " + payload);
+            }
+        }
+    }
+
+    /**
+     * Sends every peer the announcements queued for it since the last call. Called once per pass of the main loop, so that everything learned
+     * in one pass goes out in as few INV lines as possible.
+     */
+    public void flushAnnouncements() {
+        Iterator<Map.Entry<PeerConnection, ArrayList<String>>> entries = pendingAnnouncements.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<PeerConnection, ArrayList<String>> entry = entries.next();
+            entries.remove();
+            ArrayList<String> inventoryIds = entry.getValue();
+            for (int start = 0; start < inventoryIds.size(); start += MAX_ITEMS_PER_MESSAGE) {
+                StringBuilder announcement = new StringBuilder("INV");
+                for (int i = start; i < inventoryIds.size() && i < start + MAX_ITEMS_PER_MESSAGE; i++) {
+                    announcement.append(" ").append(inventoryIds.get(i));
+                }
+                entry.getKey().send(announcement.toString());
+            }
+        }
+    }
+
+    private void queueAnnouncement(PeerConnection peer, String inventoryId) {
+        ArrayList<String> inventoryIds = pendingAnnouncements.get(peer);
+        if (inventoryIds == null) {
+            inventoryIds = new ArrayList<String>();
+            pendingAnnouncements.put(peer, inventoryIds);
+        }
+        inventoryIds.add(inventoryId);
+    }
+
+    private static boolean isInventoryId(String inventoryId) {
+        return (inventoryId.startsWith(BLOCK + ":") || inventoryId.startsWith(TRANSACTION + ":")) && inventoryId.length() == inventoryId.indexOf(':') + 65;
+    }
+}
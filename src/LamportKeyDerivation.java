@@ -0,0 +1,91 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Derives the private seed of each Lamport Keypair in an address's Merkle Tree from the address's private key. The seed is then expanded into the
+ * 200 Lamport Private Key Parts by a SecureRandom, exactly as before--only the way the seed is found differs between versions.
+ *
+ * Version 1 (legacy) seeds a SHA1PRNG with the private key and draws one 100-byte seed per keypair in order, so reaching keypair N takes N draws
+ * and signing gets slower with every signature an address makes.
+ * Version 2 derives each seed on its own: block b of the seed is HMAC-SHA256(privateKey, index || b), and four blocks are concatenated and cut to
+ * 100 bytes. Any keypair's seed costs four HMACs, whatever its index.
+ *
+ * Addresses record their version in info.dta as "key_derivation: 2". Addresses without that line were generated with version 1 and keep using it.
+ */
+public class LamportKeyDerivation {
+    public static final int LEGACY = 1;
+    public static final int INDEXED = 2;
+    public static final int SEED_SIZE = 100; // Bytes of seed per Lamport Keypair
+
+    /**
+     * @param privateKey The original private key of the Curecoin address in question
+     * @param index      The index of the Lamport Keypair
+     * @param version    Key derivation version of the address, LEGACY or INDEXED
+     * @return byte[] The 100-byte private seed of the Lamport Keypair
+     */
+    public static byte[] getPrivateSeed(String privateKey, long index, int version) {
+        if (version == INDEXED) {
+            return getIndexedSeed(privateKey, index);
+        }
+        return getLegacySeed(privateKey, index);
+    }
+
+    /**
+     * Version 2: HMAC-SHA256 of the index under the private key, expanded to 100 bytes.
+     *
+     * @param privateKey The original private key of the Curecoin address in question
+     * @param index      The index of the Lamport Keypair
+     * @return byte[] The 100-byte private seed of the Lamport Keypair
+     */
+    public static byte[] getIndexedSeed(String privateKey, long index) {
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(privateKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] seed = new byte[SEED_SIZE];
+            byte[] input = new byte[9];
+            for (int i = 0; i < 8; i++) {
+                input[i] = (byte) (index >>> (56 - i * 8));
+            }
+            for (int block = 0, offset = 0; offset < SEED_SIZE; block++) {
+                input[8] = (byte) block;
+                byte[] blockBytes = hmac.doFinal(input);
+                int length = Math.min(blockBytes.length, SEED_SIZE - offset);
+                System.arraycopy(blockBytes, 0, seed, offset, length);
+                offset += length;
+            }
+            return seed;
+        } catch (GeneralSecurityException e) {
+            System.out.println("CRITICAL ERROR: NO HMAC-SHA256 SUPPORT!");
+            e.printStackTrace();
+            System.exit(-2);
+        }
+        return null;
+    }
+
+    /**
+     * Version 1: the seed left in the buffer after drawing index times from a SHA1PRNG seeded with the private key. Linear in index.
+     *
+     * @param privateKey The original private key of the Curecoin address in question
+     * @param index      The index of the Lamport Keypair
+     * @return byte[] The 100-byte private seed of the Lamport Keypair
+     */
+    public static byte[] getLegacySeed(String privateKey, long index) {
+        try {
+            SecureRandom generatePrivateSeeds = SecureRandom.getInstance("SHA1PRNG");
+            generatePrivateSeeds.setSeed(privateKey.getBytes());
+            byte[] privateSeed = new byte[SEED_SIZE];
+            for (long i = 0; i < index; i++) {
+                generatePrivateSeeds.nextBytes(privateSeed);
+            }
+            return privateSeed;
+        } catch (GeneralSecurityException e) {
+            System.out.println("CRITICAL ERROR: UNABLE TO GENERATE LAMPORT PRIVATE KEY PARTS");
+            e.printStackTrace();
+            System.exit(-2);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,189 @@
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * An incrementally maintained hash of the whole ledger, used as the ledgerHash blocks carry.
+ *
+ * Accounts are spread over BUCKET_COUNT buckets by the hash of their address. Each account has a leaf hash of its address, balance and signature
+ * count; a bucket's hash is the hash of its leaf hashes in address order (all zeros for an empty bucket), and the buckets are the leaves of a
+ * fixed binary Merkle tree whose root is the ledger hash. Changing an account only marks its bucket dirty; getRootHex() rehashes the dirty
+ * buckets and the tree paths above them, so a block touching a handful of accounts costs a handful of bucket rehashes plus
+ * log2(BUCKET_COUNT) hashes each, however large the ledger is.
+ *
+ * Accounts are identified by their AccountTable id: each bucket is a list of ids, and the leaf hashes sit in one flat array indexed by id, so the
+ * commitment adds a few dozen bytes per account and no objects. Ids are only sorted by address when a dirty bucket is rehashed.
+ *
+ * The root depends only on the ledger's contents, not on the order accounts were added in, so every node with the same ledger gets the same hash.
+ * Main loop only, like the rest of LedgerManager.
+ */
+public class LedgerCommitment {
+    public static final String NO_COMMITMENT = "0000000000000000000000000000000000000000000000000000000000000000"; // ledgerHash of blocks made before commitments
+    public static final int ACTIVATION_HEIGHT = 2; // First block mined with a commitment; every block from here on must carry the real ledger hash
+    private static final int BUCKET_BITS = 16;
+    private static final int BUCKET_COUNT = 1 << BUCKET_BITS;
+    private static final int LEAF_SIZE = 32;
+    private static final byte[] EMPTY_BUCKET = new byte[LEAF_SIZE];
+
+    private AccountTable accounts;
+    private byte[] leaves; // Leaf hash of account id i at i * LEAF_SIZE
+    private BitSet inCommitment; // Ids whose leaf counts towards the hash
+    private int[][] bucketIds; // Ids of every account hashed to each bucket, in the order they were added
+    private int[] bucketSizes;
+    private int bucketedCount; // Ids below this have been put in their bucket
+    private byte[][] nodes; // Heap order: nodes[1] is the root, nodes[BUCKET_COUNT + b] is bucket b
+    private BitSet dirtyBuckets;
+    private boolean anyDirty;
+
+    /**
+     * @param accounts The account table whose ids the commitment is keyed by
+     */
+    public LedgerCommitment(AccountTable accounts) {
+        this.accounts = accounts;
+        this.leaves = new byte[1024 * LEAF_SIZE];
+        this.inCommitment = new BitSet();
+        this.bucketIds = new int[BUCKET_COUNT][];
+        this.bucketSizes = new int[BUCKET_COUNT];
+        this.bucketedCount = 0;
+        this.nodes = new byte[BUCKET_COUNT * 2][];
+        this.dirtyBuckets = new BitSet(BUCKET_COUNT);
+        this.dirtyBuckets.set(0, BUCKET_COUNT);
+        this.anyDirty = true;
+    }
+
+    /**
+     * Records an account's current values. An account with a balance of 0 and a signature count of -1 is what a rolled back block leaves behind
+     * for an address it created; LedgerManager treats it exactly like an unknown address (see LedgerManager.hasAccount()), so it's left out of
+     * the hash too.
+     *
+     * @param id             The account's id in the account table
+     * @param balance        Its balance
+     * @param signatureCount Its signature count
+     */
+    public void put(int id, long balance, int signatureCount) {
+        while (bucketedCount <= id) {
+            addToBucket(bucketedCount++);
+        }
+        int bucket = getBucket(accounts.getAddress(id));
+        if (balance == 0 && signatureCount == -1) {
+            if (inCommitment.get(id)) {
+                inCommitment.clear(id);
+                markDirty(bucket);
+            }
+            return;
+        }
+        MessageDigest digest = HashUtility.getSha256Digest();
+        digest.update(accounts.getAddress(id).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) ':');
+        digest.update(Long.toString(balance).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) ':');
+        digest.update(Integer.toString(signatureCount).getBytes(StandardCharsets.UTF_8));
+        byte[] leaf = digest.digest();
+        if ((id + 1) * LEAF_SIZE > leaves.length) {
+            leaves = Arrays.copyOf(leaves, Math.max(leaves.length * 2, (id + 1) * LEAF_SIZE));
+        }
+        boolean changed = !inCommitment.get(id);
+        for (int i = 0; i < LEAF_SIZE && !changed; i++) {
+            changed = leaves[id * LEAF_SIZE + i] != leaf[i];
+        }
+        if (changed) {
+            System.arraycopy(leaf, 0, leaves, id * LEAF_SIZE, LEAF_SIZE);
+            inCommitment.set(id);
+            markDirty(bucket);
+        }
+    }
+
+    private void addToBucket(int id) {
+        int bucket = getBucket(accounts.getAddress(id));
+        int[] ids = bucketIds[bucket];
+        if (ids == null) {
+            ids = new int[2];
+            bucketIds[bucket] = ids;
+        } else if (bucketSizes[bucket] == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+            bucketIds[bucket] = ids;
+        }
+        ids[bucketSizes[bucket]++] = id;
+    }
+
+    private void markDirty(int bucket) {
+        dirtyBuckets.set(bucket);
+        anyDirty = true;
+    }
+
+    /**
+     * @return String The ledger hash, as uppercase hex
+     */
+    public String getRootHex() {
+        if (anyDirty) {
+            rehash();
+        }
+        return DatatypeConverter.printHexBinary(nodes[1]);
+    }
+
+    /**
+     * Rehashes the dirty buckets, then every tree node above one of them, level by level.
+     */
+    private void rehash() {
+        MessageDigest digest = HashUtility.getSha256Digest();
+        BitSet dirtyNodes = new BitSet(BUCKET_COUNT);
+        for (int bucket = dirtyBuckets.nextSetBit(0); bucket >= 0; bucket = dirtyBuckets.nextSetBit(bucket + 1)) {
+            int[] ids = getSortedIds(bucket);
+            if (ids.length == 0) {
+                nodes[BUCKET_COUNT + bucket] = EMPTY_BUCKET;
+            } else {
+                for (int i = 0; i < ids.length; i++) {
+                    digest.update(leaves, ids[i] * LEAF_SIZE, LEAF_SIZE);
+                }
+                nodes[BUCKET_COUNT + bucket] = digest.digest();
+            }
+            dirtyNodes.set((BUCKET_COUNT + bucket) >> 1);
+        }
+        for (int level = BUCKET_BITS - 1; level >= 0; level--) {
+            BitSet parents = new BitSet(1 << level);
+            for (int node = dirtyNodes.nextSetBit(0); node >= 0; node = dirtyNodes.nextSetBit(node + 1)) {
+                digest.update(nodes[node * 2]);
+                digest.update(nodes[node * 2 + 1]);
+                nodes[node] = digest.digest();
+                if (node > 1) {
+                    parents.set(node >> 1);
+                }
+            }
+            dirtyNodes = parents;
+        }
+        dirtyBuckets.clear();
+        anyDirty = false;
+    }
+
+    /**
+     * @return int[] Ids of the bucket's accounts that count towards the hash, in address order. Buckets hold a handful of accounts each, so an
+     * insertion sort is all this needs.
+     */
+    private int[] getSortedIds(int bucket) {
+        int[] ids = new int[bucketSizes[bucket]];
+        String[] addresses = new String[ids.length];
+        int count = 0;
+        for (int i = 0; i < bucketSizes[bucket]; i++) {
+            int id = bucketIds[bucket][i];
+            if (!inCommitment.get(id)) {
+                continue;
+            }
+            String address = accounts.getAddress(id);
+            int position = count++;
+            while (position > 0 && addresses[position - 1].compareTo(address) > 0) {
+                ids[position] = ids[position - 1];
+                addresses[position] = addresses[position - 1];
+                position--;
+            }
+            ids[position] = id;
+            addresses[position] = address;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private static int getBucket(String address) {
+        byte[] hash = HashUtility.sha256(address);
+        return ((hash[0] & 0xff) << 8 | (hash[1] & 0xff)) & (BUCKET_COUNT - 1);
+    }
+}
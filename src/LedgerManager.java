@@ -3,101 +3,322 @@
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.security.*;
-import java.util.concurrent.*;
-import javax.xml.bind.DatatypeConverter;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Holds the balance and signature count of every address, as of block lastBlockNum.
+ * <p>
+ * The ledger is stored as a binary snapshot plus a write-ahead log. Each save appends one log record holding the new values of just the
+ * addresses changed since the previous save, so saving after a block costs O(addresses the block touched). Every SNAPSHOT_INTERVAL records, the
+ * whole ledger is written to a new snapshot, which replaces the old one in a single rename, and the log is emptied. Loading reads the snapshot
+ * and replays the log records after it.
+ * <p>
+ * Log records carry absolute values and a sequence number, and each carries a CRC32: a record torn by a crash fails its check and is dropped,
+ * along with anything after it, and records already covered by the snapshot are skipped. Either way the ledger loads at the height of the last
+ * complete save, and Blockchain re-applies any blocks above that.
+ */
 public class LedgerManager {
+    private static final int SNAPSHOT_MAGIC = 0x4C454447; // "LEDG"
+    private static final int SNAPSHOT_INTERVAL = 1000; // Log records between snapshots
+    private static final int MAX_LOG_RECORD_SIZE = 64 * 1024 * 1024;
+
     private File addressDatabase;
     public String addressDatabaseName;
-    private ConcurrentHashMap<String, Long> addressBalances;
-    private ConcurrentHashMap<String, Integer> addressSignatureCounts;
-    private ArrayList<String> addresses;
+    private File snapshotFile;
+    private File logFile;
+    private RandomAccessFile log;
+    private long logSequence = 0; // Sequence number of the last log record written or replayed
+    private int logRecordsSinceSnapshot = 0;
+    private HashSet<String> changedAddresses = new HashSet<String>(); // Addresses changed since the last save
+    private LedgerCommitment stateCommitment;
+    private AccountTable accounts;
     private MerkleAddressUtility merkleAddressUtility = new MerkleAddressUtility();
     public int lastBlockNum = -1;
+    private BlockUndo activeUndo = null; // While a block is being applied, every balance and signature count change is recorded here
+    private static final long BLOCK_REWARD = 100;
+
+    /**
+     * The outcome of applyBlock().
+     */
+    public static class BlockApplyResult {
+        public static final int APPLIED = 0;
+        public static final int INVALID_TRANSACTION = 1; // Malformed, badly signed, or sends more than its input amount
+        public static final int BAD_SIGNATURE_INDEXES = 2; // An address's transactions in the block don't use consecutive signature indexes
+        public static final int UNAPPLICABLE_TRANSACTION = 3; // Never became applicable: insufficient balance, or indexes not following on from the ledger
+
+        public final int status;
+        public final Transaction transaction; // The transaction that failed, or null
+        public final BlockUndo undo; // Undo record of the applied block, or null if it wasn't applied
+
+        public BlockApplyResult(int status, Transaction transaction, BlockUndo undo) {
+            this.status = status;
+            this.transaction = transaction;
+            this.undo = undo;
+        }
+
+        /**
+         * @return boolean Whether the block was applied
+         */
+        public boolean isApplied() {
+            return status == APPLIED;
+        }
+
+        public String toString() {
+            String[] descriptions = {"applied", "invalid transaction", "non-consecutive signature indexes", "transaction can't be applied to the ledger"};
+            return descriptions[status] + (transaction == null ? "" : " " + transaction.getTxid());
+        }
+    }
+
+    /**
+     * One sending address's transactions within a block, in signature index order, and how many of them have been applied.
+     */
+    private static class SenderQueue {
+        final String address;
+        final ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+        int applied = 0;
+        boolean queued = false;
+
+        SenderQueue(String address) {
+            this.address = address;
+        }
+    }
 
     /**
      * Constructor for LedgerManager. All that is needed is the path to the address database file.
      * <p>
      * All peers on the network should have an identical copy of the LedgerManager object at any given time.
      * Due to latency and whatnot, that doesn't happen, but a fully synchronized network would have the same ledger on every node at any time.
+     * <p>
+     * The snapshot and log are kept next to it, as [addressDatabaseName].snapshot and [addressDatabaseName].wal. A ledger saved by older versions
+     * in the text format at addressDatabaseName is read once and converted to a snapshot.
      *
      * @param addressDatabaseName The String representation of the address database file
      */
     public LedgerManager(String addressDatabaseName) {
         this.addressDatabaseName = addressDatabaseName;
         this.addressDatabase = new File(addressDatabaseName);
-        addressBalances = new ConcurrentHashMap<String, Long>(16384);
-        addressSignatureCounts = new ConcurrentHashMap<String, Integer>(16384);
-        if (this.addressDatabase.exists()) {
-            try {
-                Scanner readAddressDatabase = new Scanner(this.addressDatabase);
-                this.lastBlockNum = Integer.parseInt(readAddressDatabase.nextLine());
-                while (readAddressDatabase.hasNextLine()) {
-                    String input = readAddressDatabase.nextLine();
-                    if (input.contains(":")) {
-                        String[] parts = input.split(":");
-                        String address = parts[0];
-                        if (merkleAddressUtility.isAddressFormattedCorrectly(address)) {
-                            try {
-                                long addressBalance = Long.parseLong(parts[1]);
-                                int currentSignatureCount = Integer.parseInt(parts[2]);
-                                addressBalances.put(address, addressBalance);
-                                addressSignatureCounts.put(address, currentSignatureCount);
-                                addresses.add(address);
-                            } catch (Exception e) {
-                                System.out.println("[CRITICAL ERROR] parsing line \\\"\" + input + \"\\\"!");
-                                e.printStackTrace();
-                            }
-                        }
+        this.snapshotFile = new File(addressDatabaseName + ".snapshot");
+        this.logFile = new File(addressDatabaseName + ".wal");
+        accounts = new AccountTable();
+        stateCommitment = new LedgerCommitment(accounts);
+        boolean convertTextLedger = false;
+        try {
+            if (snapshotFile.exists()) {
+                readSnapshot();
+            } else if (addressDatabase.exists()) {
+                readTextLedger();
+                convertTextLedger = true;
+            } else {
+                System.out.println("Address Database \" " + addressDatabaseName + "\" does not exist! Creating...");
+            }
+            replayLog();
+            log = new RandomAccessFile(logFile, "rw");
+            if (convertTextLedger) {
+                writeSnapshot();
+            }
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] Unable to read ledger from " + addressDatabaseName + "!");
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Reads a ledger saved in the old text format: the height on the first line, then one address:balance:signatureCount line per address.
+     */
+    private void readTextLedger() throws FileNotFoundException {
+        Scanner readAddressDatabase = new Scanner(this.addressDatabase);
+        this.lastBlockNum = Integer.parseInt(readAddressDatabase.nextLine().trim());
+        while (readAddressDatabase.hasNextLine()) {
+            String input = readAddressDatabase.nextLine();
+            if (input.contains(":")) {
+                String[] parts = input.split(":");
+                String address = parts[0];
+                if (merkleAddressUtility.isAddressFormattedCorrectly(address)) {
+                    try {
+                        long addressBalance = Long.parseLong(parts[1]);
+                        int currentSignatureCount = Integer.parseInt(parts[2]);
+                        putAccount(address, addressBalance, currentSignatureCount);
+                    } catch (Exception e) {
+                        System.out.println("[CRITICAL ERROR] parsing line \\\"\" + input + \"\\\"!");
+                        e.printStackTrace();
                     }
                 }
-                readAddressDatabase.close();
-            } catch (FileNotFoundException e) {
-                System.out.println("[CRITICAL ERROR] Unable to read addressDatabase file!");
-                e.printStackTrace();
-                System.exit(-1);
             }
-        } else {
-            File f = new File(addressDatabaseName);
-            try {
-                PrintWriter out = new PrintWriter(f);
-                out.print("-1");
-                out.close();
-                this.lastBlockNum = -1; // Just in case ... ? Shouldn't
-            } catch (Exception e) {
-                System.out.println("[CRITICAL ERROR] UNABLE TO WRITE LEDGER RECORD FILE!");
-                e.printStackTrace();
-                System.exit(-1);
-            }
-            System.out.println("Address Database \" " + addressDatabaseName + "\" does not exist! Creating...");
         }
+        readAddressDatabase.close();
     }
 
     /**
-     * Hashed the entire ledger, to compare against blocks.
-     *
-     * @return HEX SHA256 hash of the ledger
-     * *
+     * Snapshot format: [int magic][long log sequence][int lastBlockNum][int address count]([UTF address][long balance][int signature count])*
+     * [int CRC32 of everything before it]
      */
-    public String getLedgerHash() {
-        String ledger = "";
-        for (int i = 0; i < addresses.size(); i++) {
-            ledger += addresses.get(i) + ":" + addressBalances.get(addresses) + ":" + addressSignatureCounts.get(addresses.get(i)) + "\n";
+    private void readSnapshot() throws IOException {
+        byte[] snapshot = Files.readAllBytes(snapshotFile.toPath());
+        if (snapshot.length < 24) {
+            throw new IOException("Ledger snapshot " + snapshotFile + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, 0, snapshot.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        if (ByteBuffer.wrap(snapshot, snapshot.length - 4, 4).getInt() != (int) crc.getValue() || in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Ledger snapshot " + snapshotFile + " is corrupt");
         }
+        logSequence = in.readLong();
+        lastBlockNum = in.readInt();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            putAccount(in.readUTF(), in.readLong(), in.readInt());
+        }
+    }
+
+    /**
+     * Writes the whole ledger to a new snapshot, swaps it in, and empties the log. If this is interrupted, the old snapshot and the log are
+     * still intact.
+     *
+     * @return boolean Whether the snapshot was written
+     */
+    private boolean writeSnapshot() {
+        File tempFile = new File(addressDatabaseName + ".snapshot.tmp");
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            return DatatypeConverter.printHexBinary(md.digest(ledger.getBytes("UTF-8")));
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            System.out.println("[CRITICAL ERROR] Unable to generate");
-            System.exit(-1);
-        } catch (UnsupportedEncodingException e) {
+            FileOutputStream file = new FileOutputStream(tempFile);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 65536));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(logSequence);
+            out.writeInt(lastBlockNum);
+            int accountCount = accounts.size();
+            int existingCount = 0;
+            for (int id = 0; id < accountCount; id++) {
+                if (hasAccount(id)) {
+                    existingCount++;
+                }
+            }
+            out.writeInt(existingCount);
+            for (int id = 0; id < accountCount; id++) {
+                if (!hasAccount(id)) {
+                    continue;
+                }
+                out.writeUTF(accounts.getAddress(id));
+                out.writeLong(accounts.getBalance(id));
+                out.writeInt(accounts.getSignatureCount(id));
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+            out.close();
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Records up to logSequence are in the snapshot now; if we crash before this, loading skips them anyway
+            log.setLength(0);
+            log.getChannel().force(true);
+            logRecordsSinceSnapshot = 0;
+            return true;
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO WRITE LEDGER SNAPSHOT!");
             e.printStackTrace();
-            System.out.println("[CRITICAL ERROR] Unable to generate");
-            System.exit(-1);
+            return false;
+        }
+    }
+
+    /**
+     * Applies the log records written after the snapshot. Reading stops at the first incomplete or corrupt record, which is cut off so that new
+     * records follow the last good one.
+     */
+    private void replayLog() throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(logFile, "rw");
+        long length = in.length();
+        long position = 0;
+        int replayed = 0;
+        while (length - position >= 8) {
+            in.seek(position);
+            int recordLength = in.readInt();
+            int checksum = in.readInt();
+            if (recordLength < 0 || recordLength > MAX_LOG_RECORD_SIZE || recordLength > length - position - 8) {
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            long sequence = recordIn.readLong();
+            int blockNum = recordIn.readInt();
+            int count = recordIn.readInt();
+            if (sequence > logSequence) {
+                for (int i = 0; i < count; i++) {
+                    putAccount(recordIn.readUTF(), recordIn.readLong(), recordIn.readInt());
+                }
+                lastBlockNum = blockNum;
+                logSequence = sequence;
+                replayed++;
+            }
+            logRecordsSinceSnapshot++;
+            position += 8 + recordLength;
         }
-        return null;
+        if (position < length) {
+            System.out.println("Discarding " + (length - position) + " bytes of incomplete ledger log after block " + lastBlockNum);
+            in.setLength(position);
+        }
+        in.close();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " ledger log records, up to block " + lastBlockNum);
+        }
+    }
+
+    /**
+     * Undoing the block that created an account leaves it at a balance of 0 and a signature count of -1, since the table never removes
+     * accounts. Such an account is treated exactly like an unknown address: it reads the same, starts again from a signature count of 0 when it
+     * next gets coins, is left out of the ledger hash (see LedgerCommitment.put()) and isn't written to snapshots.
+     *
+     * @param id Account id from accounts.getId(), or -1
+     * @return boolean Whether the account exists
+     */
+    private boolean hasAccount(int id) {
+        return id >= 0 && (accounts.getSignatureCount(id) != -1 || accounts.getBalance(id) != 0);
+    }
+
+    /**
+     * Sets an address's balance and signature count while loading, adding the address if it's new.
+     */
+    private void putAccount(String address, long balance, int signatureCount) {
+        int id = accounts.intern(address);
+        accounts.setBalance(id, balance);
+        accounts.setSignatureCount(id, signatureCount);
+        stateCommitment.put(id, balance, signatureCount);
+    }
+
+    /**
+     * Sets an address's balance and signature count, adding the address if it's new, and notes the change for the next save and for the
+     * ledger hash.
+     */
+    private void setAccount(String address, long balance, int signatureCount) {
+        int id = accounts.intern(address);
+        accounts.setBalance(id, balance);
+        accounts.setSignatureCount(id, signatureCount);
+        changedAddresses.add(accounts.getAddress(id));
+        stateCommitment.put(id, balance, signatureCount);
+    }
+
+    /**
+     * Hashes the entire ledger, to compare against blocks. The hash is kept up to date as accounts change (see LedgerCommitment), so this only
+     * rehashes what changed since the last call.
+     *
+     * @return HEX SHA256 hash of the ledger
+     */
+    public String getLedgerHash() {
+        return stateCommitment.getRootHex();
     }
 
     /**
@@ -109,6 +330,152 @@ public class LedgerManager {
         this.lastBlockNum = lastBlockNum;
     }
 
+    /**
+     * Starts recording every balance and signature count change into a new undo record. Call before applying a block's transactions and reward.
+     *
+     * @param blockNum Number of the block about to be applied
+     */
+    public void beginUndoRecord(int blockNum) {
+        activeUndo = new BlockUndo(blockNum);
+    }
+
+    /**
+     * Stops recording changes, and returns everything recorded since beginUndoRecord().
+     *
+     * @return BlockUndo Undo record for the applied block
+     */
+    public BlockUndo endUndoRecord() {
+        BlockUndo undo = activeUndo;
+        activeUndo = null;
+        return undo;
+    }
+
+    /**
+     * Rolls a block back out of the ledger by subtracting the changes recorded in its undo record. Costs O(addresses the block touched),
+     * no transactions are re-parsed or re-verified.
+     *
+     * @param undo Undo record of the block to roll back, which must be the most recently applied block
+     */
+    public void applyUndo(BlockUndo undo) {
+        for (String address : undo.getAddresses()) {
+            setAccount(address, getAddressBalance(address) - undo.getBalanceDelta(address), getAddressSignatureCount(address) - undo.getSignatureCountDelta(address));
+        }
+        lastBlockNum = undo.blockNum - 1;
+    }
+
+    /**
+     * Applies a block's transactions and mining reward to the ledger, all or nothing, and moves the ledger to the block's height.
+     * <p>
+     * Transactions are grouped by sending address and ordered by signature index, so each address's transactions run in the only order that
+     * can work. An address's next transaction runs as soon as its index follows on from the address's signature count and the address can cover
+     * it; one that has to wait for coins from elsewhere in the block is looked at again when the address is credited. Every transaction is
+     * checked and parsed once, and tried once per credit to its sender at most, so applying a block is linear in its size.
+     * <p>
+     * If any transaction is invalid or can never be applied, everything already applied is rolled back and the ledger is left as it was.
+     *
+     * @param block Block to apply, on top of the ledger's current height
+     * @return BlockApplyResult The outcome, with the block's undo record if it was applied
+     */
+    public BlockApplyResult applyBlock(Block block) {
+        ArrayList<Transaction> transactions = block.getParsedTransactions();
+        if (transactions == null) {
+            return new BlockApplyResult(BlockApplyResult.INVALID_TRANSACTION, null, null);
+        }
+        // Everything that doesn't depend on the ledger is checked up front, once per transaction
+        LinkedHashMap<String, SenderQueue> senders = new LinkedHashMap<String, SenderQueue>();
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            if (!isTransactionWellFormed(transaction)) {
+                return new BlockApplyResult(BlockApplyResult.INVALID_TRANSACTION, transaction, null);
+            }
+            SenderQueue sender = senders.get(transaction.getInputAddress());
+            if (sender == null) {
+                sender = new SenderQueue(transaction.getInputAddress());
+                senders.put(sender.address, sender);
+            }
+            sender.transactions.add(transaction);
+        }
+        ArrayDeque<SenderQueue> ready = new ArrayDeque<SenderQueue>();
+        for (SenderQueue sender : senders.values()) {
+            Collections.sort(sender.transactions, new Comparator<Transaction>() {
+                public int compare(Transaction first, Transaction second) {
+                    return Long.compare(first.getSignatureIndex(), second.getSignatureIndex());
+                }
+            });
+            for (int i = 1; i < sender.transactions.size(); i++) {
+                if (sender.transactions.get(i).getSignatureIndex() != sender.transactions.get(i - 1).getSignatureIndex() + 1) {
+                    return new BlockApplyResult(BlockApplyResult.BAD_SIGNATURE_INDEXES, sender.transactions.get(i), null);
+                }
+            }
+            sender.queued = true;
+            ready.add(sender);
+        }
+
+        int previousBlockNum = lastBlockNum;
+        String previousLedgerHash = getLedgerHash(); // Usually free: blocks are checked against the ledger hash just before being applied
+        beginUndoRecord(block.blockNum);
+        while (!ready.isEmpty()) {
+            SenderQueue sender = ready.poll();
+            sender.queued = false;
+            while (sender.applied < sender.transactions.size()) {
+                Transaction transaction = sender.transactions.get(sender.applied);
+                long sourceBalance = getAddressBalance(sender.address);
+                if (getAddressSignatureCount(sender.address) + 1 != transaction.getSignatureIndex() || sourceBalance < transaction.getInputAmount()) {
+                    break; // Not applicable yet; a credit to this address will bring it back
+                }
+                updateAddressBalance(sender.address, sourceBalance - transaction.getInputAmount());
+                for (int i = 0; i < transaction.getOutputCount(); i++) {
+                    String destinationAddress = transaction.getOutputAddress(i);
+                    updateAddressBalance(destinationAddress, getAddressBalance(destinationAddress) + transaction.getOutputAmount(i));
+                    SenderQueue destination = senders.get(destinationAddress);
+                    if (destination != null && destination != sender && !destination.queued && destination.applied < destination.transactions.size()) {
+                        destination.queued = true;
+                        ready.add(destination);
+                    }
+                }
+                adjustAddressSignatureCount(sender.address, 1);
+                sender.applied++;
+            }
+        }
+        for (SenderQueue sender : senders.values()) {
+            if (sender.applied < sender.transactions.size()) {
+                applyUndo(endUndoRecord());
+                lastBlockNum = previousBlockNum;
+                if (!getLedgerHash().equals(previousLedgerHash)) {
+                    System.out.println("[CRITICAL ERROR] Rolling back block " + block.blockNum + " did not restore the ledger!");
+                }
+                return new BlockApplyResult(BlockApplyResult.UNAPPLICABLE_TRANSACTION, sender.transactions.get(sender.applied), null);
+            }
+        }
+        adjustAddressBalance(block.certificate.redeemAddress, BLOCK_REWARD);
+        adjustAddressSignatureCount(block.certificate.redeemAddress, 1);
+        BlockUndo undo = endUndoRecord();
+        lastBlockNum = block.blockNum;
+        return new BlockApplyResult(BlockApplyResult.APPLIED, null, undo);
+    }
+
+    /**
+     * Checks everything about a transaction that doesn't depend on the ledger: its signature, its addresses, and that it doesn't send more than
+     * its input amount.
+     *
+     * @param transaction Transaction to check
+     * @return boolean Whether the transaction is well formed
+     */
+    private boolean isTransactionWellFormed(Transaction transaction) {
+        if (!transaction.verifySignature(merkleAddressUtility)) {
+            return false; // Signature does not sign transaction message!
+        }
+        if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getInputAddress())) {
+            return false; // Incorrect sending address
+        }
+        for (int i = 0; i < transaction.getOutputCount(); i++) {
+            if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getOutputAddress(i))) {
+                return false; // A destunation addess is not a valid address
+            }
+        }
+        return transaction.getInputAmount() >= transaction.getOutputTotal();
+    }
+
     /**
      * This method executes a viven transacction String of the format
      *
@@ -116,17 +483,24 @@ public class LedgerManager {
      * @return boolean Whehter execution of the transaction was success
      **/
     public boolean executeTransaction(String transaction) {
+        Transaction parsedTransaction = Transaction.fromString(transaction);
+        if (parsedTransaction == null) {
+            return false;
+        }
+        return executeTransaction(parsedTransaction);
+    }
+
+    /**
+     * Executes an already-parsed transaction against the ledger.
+     *
+     * @param transaction Transaction to execute
+     * @return boolean Whehter execution of the transaction was success
+     **/
+    public boolean executeTransaction(Transaction transaction) {
         try {
-            String[] transactionParts = transaction.split(";");
-            String transactionMessage = "";
-            for (int i = 0; i < transactionParts.length - 2; i++) {
-                transactionMessage += transactionParts[i] + ";";
-            }
-            transactionMessage = transactionMessage.substring(0, transaction.length() - 1);
-            String sourceAddress = transactionParts[0];
-            String signatureData = transactionParts[transactionParts.length - 2];
-            long signatureIndex = Long.parseLong(transactionParts[transactionParts.length - 1]);
-            if (!merkleAddressUtility.verifyMerkleSignature(transactionMessage, signatureData, sourceAddress, signatureIndex)) {
+            String sourceAddress = transaction.getInputAddress();
+            long signatureIndex = transaction.getSignatureIndex();
+            if (!transaction.verifySignature(merkleAddressUtility)) {
                 return false; // Signature does not sign transaction message!
             }
             if (getAddressSignatureCount(sourceAddress) + 1 != signatureIndex) {
@@ -136,37 +510,24 @@ public class LedgerManager {
             if (!merkleAddressUtility.isAddressFormattedCorrectly(sourceAddress)) {
                 return false; // Incorrect sending address
             }
-            long sourceAmount = Long.parseLong(transactionParts[1]);
+            long sourceAmount = transaction.getInputAmount();
             if (getAddressBalance(sourceAddress) < sourceAmount) {
                 return false;// Insufficient balance
             }
 
-            ArrayList<String> destinationAddresses = new ArrayList<String>();
-            ArrayList<Long> destinationAmounts = new ArrayList<Long>();
-            for (int i = 2; i < transactionParts.length - 2; i += 2) {
-                destinationAddresses.add(transactionParts[i]);
-                destinationAmounts.add(Long.parseLong(transactionParts[i + 1]));
-            }
-            if (destinationAddresses.size() != destinationAmounts.size()) {
-                return false; // This should never happen. But if it does...
-            }
-
-            for (int i = 0; i < destinationAddresses.size(); i++) {
-                if (!merkleAddressUtility.isAddressFormattedCorrectly(destinationAddresses.get(i))) {
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getOutputAddress(i))) {
                     return false; // A destunation addess is not a valid address
                 }
             }
-            long outputTotal = 0L;
-            for (int i = 0; i < destinationAmounts.size(); i++) {
-                outputTotal += destinationAmounts.get(i);
-            }
-            if (sourceAmount < outputTotal) {
+            if (sourceAmount < transaction.getOutputTotal()) {
                 return false;
             }
             // Look like everything is correct--transaction should be executed correctly
-            addressBalances.put(sourceAddress, getAddressBalance(sourceAddress) - sourceAmount);
-            for (int i = 0; i < destinationAddresses.size(); i++) {
-                addressBalances.put(destinationAddresses.get(i), getAddressBalance(destinationAddresses.get(i)) + destinationAmounts.get(i));
+            updateAddressBalance(sourceAddress, getAddressBalance(sourceAddress) - sourceAmount);
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                String destinationAddress = transaction.getOutputAddress(i);
+                updateAddressBalance(destinationAddress, getAddressBalance(destinationAddress) + transaction.getOutputAmount(i));
             }
             adjustAddressSignatureCount(sourceAddress, 1);
             return true;
@@ -185,17 +546,24 @@ public class LedgerManager {
      * @return boolean Whether execution of the transaction was successful
      */
     public boolean reverseTransaction(String transaction) {
+        Transaction parsedTransaction = Transaction.fromString(transaction);
+        if (parsedTransaction == null) {
+            return false;
+        }
+        return reverseTransaction(parsedTransaction);
+    }
+
+    /**
+     * Reverse-executes an already-parsed transaction.
+     *
+     * @param transaction Transaction to reverse
+     * @return boolean Whether execution of the transaction was successful
+     */
+    public boolean reverseTransaction(Transaction transaction) {
         try {
-            String[] transactionParts = transaction.split(";");
-            String transactionMessage = "";
-            for (int i = 0; i < transactionParts.length - 2; i++) {
-                transactionMessage += transactionParts[i] + ";";
-            }
-            transactionMessage = transactionMessage.substring(0, transactionMessage.length() - 1);
-            String sourceAddress = transactionParts[0];
-            String signatureData = transactionParts[transactionParts.length - 2];
-            long signatureIndex = Long.parseLong(transactionParts[transactionParts.length - 1]);
-            if (!merkleAddressUtility.verifyMerkleSignature(transactionMessage, signatureData, sourceAddress, signatureIndex)) {
+            String sourceAddress = transaction.getInputAddress();
+            long signatureIndex = transaction.getSignatureIndex();
+            if (!transaction.verifySignature(merkleAddressUtility)) {
                 return false; // Signature does not sign transaction message!
             }
             if (getAddressSignatureCount(sourceAddress) + 1 != signatureIndex) {
@@ -205,42 +573,27 @@ public class LedgerManager {
             if (!merkleAddressUtility.isAddressFormattedCorrectly(sourceAddress)) {
                 return false; // Incorrect sending address
             }
-            long sourceAmount = Long.parseLong(transactionParts[1]);
-            ArrayList<String> destinationAddresses = new ArrayList<String>();
-            ArrayList<Long> destinationAmounts = new ArrayList<Long>();
-            for (int i = 2; i < transactionParts.length - 2; i += 2) {
-                destinationAddresses.add(transactionParts[i]);
-                destinationAmounts.add(Long.parseLong(transactionParts[i + 1]));
-            }
-
-            if (destinationAddresses.size() != destinationAmounts.size()) {
-                return false;// This should never happen. But if it does
-            }
-            for (int i = 0; i < destinationAddresses.size(); i++) {
-                if (!merkleAddressUtility.isAddressFormattedCorrectly(destinationAddresses.get(i))) {
+            long sourceAmount = transaction.getInputAmount();
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getOutputAddress(i))) {
                     return false; // A destination address is not a valid address
                 }
             }
-            long outoutTotal = 0L;
-            for (int i = 0; i < destinationAmounts.size(); i++) {
-                outoutTotal += destinationAmounts.get(i);
-            }
-            if (sourceAmount < outoutTotal) {
+            if (sourceAmount < transaction.getOutputTotal()) {
                 return false;
             }
-            for (int i = 0; i < destinationAmounts.size(); i++) {
-                if (getAddressBalance(destinationAddresses.get(i)) < destinationAmounts.get(i)) {
-                    System.out.println("[CRITICAL ERROR] ADDRESS " + destinationAddresses.get(i) + " needs to return " + destinationAmounts.get(i) + " but only has " + getAddressBalance(destinationAddresses.get(i))); //BIG PROBLEM THIS SHOULD NEVER HAPPEN
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                String destinationAddress = transaction.getOutputAddress(i);
+                if (getAddressBalance(destinationAddress) < transaction.getOutputAmount(i)) {
+                    System.out.println("[CRITICAL ERROR] ADDRESS " + destinationAddress + " needs to return " + transaction.getOutputAmount(i) + " but only has " + getAddressBalance(destinationAddress)); //BIG PROBLEM THIS SHOULD NEVER HAPPEN
                     return false; // One of the addresses has an insufficient balance to reverse!
                 }
             }
             // Looks like everything is correct--transaction should be reversed correctly
-            addressBalances.put(sourceAddress, getAddressBalance(sourceAddress) + sourceAmount);
-            for (int i = 0; i < destinationAddresses.size(); i++) {
-                addressBalances.put(destinationAddresses.get(i), getAddressBalance(destinationAddresses.get(i)) - destinationAmounts.get(i));
-            }
-            for (int i = 0; i < destinationAddresses.size(); i++) {
-                addressBalances.put(destinationAddresses.get(i), getAddressBalance(destinationAddresses.get(i)) - destinationAmounts.get(i));
+            setAccount(sourceAddress, getAddressBalance(sourceAddress) + sourceAmount, getAddressSignatureCount(sourceAddress));
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                String destinationAddress = transaction.getOutputAddress(i);
+                setAccount(destinationAddress, getAddressBalance(destinationAddress) - transaction.getOutputAmount(i), getAddressSignatureCount(destinationAddress));
             }
             adjustAddressSignatureCount(sourceAddress, -1);
             return true;
@@ -250,22 +603,47 @@ public class LedgerManager {
     }
 
     /**
-     * Writes ledger to file
+     * Saves the ledger at lastBlockNum by appending the addresses changed since the last save to the log, and syncing it to disk. Every
+     * SNAPSHOT_INTERVAL saves, the log is compacted into a new snapshot.
+     *
+     * Log record format: [int payload length][int CRC32 of payload], then the payload:
+     * [long sequence][int lastBlockNum][int address count]([UTF address][long balance][int signature count])*
      *
      * @return boolean Whter writing the ledger
      */
     public boolean writeToFile() {
         try {
-            PrintWriter out = new PrintWriter(addressDatabaseName);
-            for (int i = 0; i < addresses.size(); i++) {
-                out.println(addresses.get(i) + ":" + addressBalances.get(addresses.get(i)) + ":" + addressSignatureCounts.get(addresses.get(i)));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + changedAddresses.size() * 96);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // Length and checksum, filled in below
+            out.writeInt(0);
+            out.writeLong(logSequence + 1);
+            out.writeInt(lastBlockNum);
+            out.writeInt(changedAddresses.size());
+            for (String address : changedAddresses) {
+                out.writeUTF(address);
+                out.writeLong(getAddressBalance(address));
+                out.writeInt(getAddressSignatureCount(address));
             }
             out.close();
-        } catch (FileNotFoundException e) {
-            System.out.println("[CRITICAL ERROR] UNABLE TO WRITE DB FILE!");
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            ByteBuffer.wrap(record).putInt(record.length - 8).putInt((int) crc.getValue());
+            log.seek(log.length());
+            log.write(record);
+            log.getChannel().force(false);
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO WRITE LEDGER LOG!");
             e.printStackTrace();
             return false;
         }
+        logSequence++;
+        logRecordsSinceSnapshot++;
+        changedAddresses.clear();
+        if (logRecordsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+            return writeSnapshot();
+        }
         return true;
     }
 
@@ -295,13 +673,10 @@ public class LedgerManager {
      */
     private boolean updateAddressSignatureCount(String address, int newCount) {
         try {
-            if (addressSignatureCounts.containsKey(address)) {
-                addressSignatureCounts.put(address, newCount);
-            } else {
-                addressBalances.put(address, 0L);
-                addressSignatureCounts.put(address, newCount);
-                addresses.add(address);
+            if (activeUndo != null) {
+                activeUndo.addSignatureCountDelta(address, newCount - getAddressSignatureCount(address));
             }
+            setAccount(address, getAddressBalance(address), newCount); // A new address starts with a balance of 0
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -316,11 +691,8 @@ public class LedgerManager {
      * @return long Balance of address
      */
      public long getAddressBalance(String address) {
-        if (addressBalances.containsKey(address)) {
-            return addressBalances.get(address);
-        } else {
-            return 0L;
-        }
+        int id = accounts.getId(address);
+        return id < 0 ? 0L : accounts.getBalance(id);
     }
 
     /**
@@ -330,11 +702,8 @@ public class LedgerManager {
      * @return int Last signature index used by address
      */
     public int getAddressSignatureCount(String address) {
-        if (addressSignatureCounts.containsKey(address)) {
-            return addressSignatureCounts.get(address);
-        } else {
-            return -1;
-        }
+        int id = accounts.getId(address);
+        return id < 0 ? -1 : accounts.getSignatureCount(id);
     }
 
     /**
@@ -361,13 +730,15 @@ public class LedgerManager {
      */
     private boolean updateAddressBalance(String address, long newAmount) {
         try {
-            if (addressBalances.containsKey(address)) {
-                addressBalances.put(address, newAmount);
-            } else {
-                addressBalances.put(address, newAmount);
-                addressSignatureCounts.put(address, 0);
-                addresses.add(address);
+            int id = accounts.getId(address);
+            boolean newAccount = !hasAccount(id);
+            if (activeUndo != null) {
+                activeUndo.addBalanceDelta(address, newAmount - (id < 0 ? 0L : accounts.getBalance(id)));
+                if (newAccount) {
+                    activeUndo.addSignatureCountDelta(address, 1); // New accounts start at 0 below, from the implicit -1 of an unknown address
+                }
             }
+            setAccount(address, newAmount, newAccount ? 0 : accounts.getSignatureCount(id));
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -7,14 +7,19 @@ import java.util.Random;
 import java.util.Scanner;
 
 public class Main {
+    private static final int DEFAULT_HISTORY_PAGE_SIZE = 100; // Transactions per gethistory page
+    private static final int MAX_HISTORY_PAGE_SIZE = 1000;
 
     public static void main(String[] args) {
         launch();
         // Start of the program, initialize Database object
         CurecoinDatabaseMaster databaseMaster = new CurecoinDatabaseMaster("database");
         PendingTransactionContainer pendingTransactionContainer = new PendingTransactionContainer(databaseMaster);
+        BlockVerifier blockVerifier = new BlockVerifier();
+        NonceScanner nonceScanner = new NonceScanner();
         PeerNetwork peerNetwork = new PeerNetwork();
         peerNetwork.start();
+        InventoryRelay inventoryRelay = new InventoryRelay(peerNetwork);
         RPC rpcAgent = new RPC();
         rpcAgent.start();
         File peerFile = new File("peers.lst");
@@ -47,18 +52,16 @@ public class Main {
         }
         peerNetwork.broadcast("REQUEST_NET_STATE");
         int topBlock = 0;
-        ArrayList<String> allBroadcastTransactions = new ArrayList<String>();
-        ArrayList<String> allBroadcastBlocks = new ArrayList<String>();
         boolean catchupMode = true;
         while (true) {
             // Look for new peers
-            if (peerNetwork.newPeers.size() > 0) {
-                for (int i = 0; i < peerNetwork.newPeers.size(); i++) {
-                    if (peers.indexOf(peerNetwork.newPeers.get(i)) < 0) {
-                        peers.add(peerNetwork.newPeers.get(i));
+            ArrayList<String> newPeers = peerNetwork.getNewPeers();
+            if (newPeers.size() > 0) {
+                for (int i = 0; i < newPeers.size(); i++) {
+                    if (peers.indexOf(newPeers.get(i)) < 0) {
+                        peers.add(newPeers.get(i));
                     }
                 }
-                peerNetwork.newPeers = new ArrayList<String>();
                 try {
                     PrintWriter writePeerFile = new PrintWriter(new File("peers.lst"));
                     for (int i = 0; i < peers.size(); i++) {
@@ -70,152 +73,140 @@ public class Main {
                     e.printStackTrace();
                 }
             }
-            // Look for new data from peers
-            for (int i = 0; i < peerNetwork.peerThreads.size(); i++) {
-                ArrayList<String> input = peerNetwork.peerThreads.get(i).inputThread.readData();
-                if (input == null) {
-                    System.out.println("NULL RET RETRY");
-                    System.exit(-4);
-                    break;
+            // Look for new data from peers. The network thread has already split it into messages, in the order they arrived.
+            ArrayList<PeerNetwork.PeerMessage> messages = peerNetwork.readMessages();
+            /*
+             * While taking up new transactions and blocks, the client will pass them on to the network if they are new to the client.
+             * New items are announced by hash (INV), and peers fetch the ones they're missing (GETDATA), so a block or transaction crosses each
+             * connection once instead of echoing back from every peer. Peers that don't speak INV still get them in full. See InventoryRelay.
+             */
+            for (int j = 0; j < messages.size(); j++) {
+                PeerConnection peer = messages.get(j).peer;
+                String data = messages.get(j).data;
+                if (data.length() > 60) {
+                    System.out.println("got data: " + data.substring(0, 20) + "..." + data.substring(data.length() - 30, data.length()));
+                } else {
+                    System.out.println("got data: " + data);
                 }
-
-                /*
-                 * While taking up new transactions and blocks, the client will broadcast them to the network if they are new to the client.
-                 * As a result, if you are connected to 7 peers, you will get reverb 7 times for a broadcast of a block or transaction.
-                 * For now, this is done to MAKE SURE everyone is on the same page with block/transaction propagation.
-                 * In the future, much smarter algorithms for routing, perhaps sending "have you seen xxx transaction" or similar will be used.
-                 * No point in sending 4 KB when a 64-byte message (or less) could check to make sure a transaction hasn't already been sent.
-                 * Not wanting to complicate 2.0.0a3, there are no fancy algorithms or means of telling if peers have already heard the news you are going to deliver.
-                 */
-                for (int j = 0; j < input.size(); j++) {
-                    String data = input.get(j);
-                    if (data.length() > 60) {
-                        System.out.println("got data: " + data.substring(0, 20) + "..." + data.substring(data.length() - 30, data.length()));
-                    } else {
-                        System.out.println("got data: " + data);
-                    }
-                    String[] parts = data.split(" ");
-                    if (parts.length > 0) {
-                        // NETWORK START MAX HEIGHT LAST HASH
-                        if (parts[0].equalsIgnoreCase("NETWORK_STATE")) {
-                            topBlock = Integer.parseInt(parts[1]);
-                        } else if (parts[0].equalsIgnoreCase("REQUEST_NET_STATE")) {
-                            peerNetwork.peerThreads.get(i).outputThread.write("NETWORK_STATE " + databaseMaster.getBlockchainLength() + " " + databaseMaster.getLastestBlock().blockHash);
-                            for (int k = 0; k < pendingTransactionContainer.pendingTransactions.size(); k++) {
-                                peerNetwork.peerThreads.get(i).outputThread.write("TRANSACTION " + pendingTransactionContainer.pendingTransactions.get(k));
-                            }
-                        } else if (parts[0].equalsIgnoreCase("BLOCK")) {
-                            /*
-                             * If a block is new to the client, the client will attempt to add it to the blockchain.
-                             * When added to the blockchain, it may get added to a chain, put on a new fork, put on an existing, shorter-length chain that's forked less than 10 blocks back, or
-                             * it may end up being queued or deleted. Queued blocks are blocks that self-validate (signatures match, etc.) but don't fit onto any chain.
-                             * They are often used when getting blocks from a peer, in case one arrives out of order.
-                             */
-                            System.out.println("Attempting to add block...");
-                            boolean hasSeenBefore = false;
-                            for (int k = 0; k < allBroadcastBlocks.size(); k++) {
-                                // Likely due to P2P reverb / echo
-                                // System.out.println("Have seen block before.. not a");
-                                if (parts[1].equals(allBroadcastBlocks.get(k))) {
-                                    hasSeenBefore = true;
-                                }
-                            }
-                            if (!hasSeenBefore) {
-                                // Block has no been previously received, so it will be added to the blockchain (hopfully)
-                                System.out.println("Adding new block from network!");
-                                System.out.println("Block: ");
-                                System.out.println(parts[1]);
-                                allBroadcastBlocks.add(parts[1]);
-                                Block blockToAdd = new Block(parts[1]);
-                                if (databaseMaster.addBlock(blockToAdd) && !catchupMode) {
-                                    // If block is new to client and appears valid, rebroadcast
-                                    System.out.println("Added block " + blockToAdd.blockNum + " with hash: [" + blockToAdd.blockHash.substring(0, 30) + "..." + blockToAdd.blockHash.substring(blockToAdd.blockHash.length() - 30, blockToAdd.blockHash.length() - 1) + "]");
-                                    peerNetwork.broadcast("BLOCK " + parts[1]);
-                                }
-
-                                // Remove all transactions form the pendingTransactionPool that appear in the block
-                                pendingTransactionContainer.removeTransactionsInBlock(parts[1]);
-                            }
-                        } else if (parts[0].equalsIgnoreCase("TRANSACTION")) {
+                String[] parts = data.split(" ");
+                if (parts.length > 0) {
+                    // NETWORK START MAX HEIGHT LAST HASH
+                    if (parts[0].equalsIgnoreCase("NETWORK_STATE")) {
+                        topBlock = Integer.parseInt(parts[1]);
+                    } else if (parts[0].equalsIgnoreCase("REQUEST_NET_STATE")) {
+                        peer.send("NETWORK_STATE " + databaseMaster.getBlockchainLength() + " " + databaseMaster.getLastestBlock().blockHash);
+                        ArrayList<String> pendingTransactions = pendingTransactionContainer.getPendingTransactions();
+                        for (int k = 0; k < pendingTransactions.size(); k++) {
+                            inventoryRelay.offer(peer, InventoryRelay.TRANSACTION, pendingTransactions.get(k));
+                        }
+                    } else if (parts[0].equalsIgnoreCase("INV")) {
+                        inventoryRelay.handleInventory(parts, peer);
+                    } else if (parts[0].equalsIgnoreCase("GETDATA")) {
+                        inventoryRelay.handleGetData(parts, peer);
+                    } else if (parts[0].equalsIgnoreCase("BLOCK")) {
+                        /*
+                         * If a block is new to the client, the client will attempt to add it to the blockchain.
+                         * When added to the blockchain, it may get added to a chain, put on a new fork, put on an existing, shorter-length chain that's forked less than 10 blocks back, or
+                         * it may end up being queued or deleted. Queued blocks are blocks that self-validate (signatures match, etc.) but don't fit onto any chain.
+                         * They are often used when getting blocks from a peer, in case one arrives out of order.
+                         * New blocks are first handed to the BlockVerifier, which checks their signatures in parallel; they're added below, once verified.
+                         */
+                        System.out.println("Attempting to add block...");
+                        if (inventoryRelay.markSeen(InventoryRelay.BLOCK, parts[1], peer)) {
+                            // Block has no been previously received, so it will be added to the blockchain (hopfully)
+                            System.out.println("Adding new block from network!");
+                            System.out.println("Block: ");
+                            System.out.println(parts[1]);
+                            blockVerifier.submit(parts[1]);
+                        }
+                    } else if (parts[0].equalsIgnoreCase("TRANSACTION")) {
+                        /*
+                         * Any transactions that are received will be checked against the table of existing received transactions. If they are new (and validate correctly), they will be added
+                         * to the pending transaction pool. Currently, this pool is only useful when mining blocks. In the future, this pool will be accessible using RPC commands to show
+                         * unconfirmed transactions, etc.
+                         */
+                        if (inventoryRelay.markSeen(InventoryRelay.TRANSACTION, parts[1], peer)) { // Trnsaction was not already received
                             /*
-                             * Any transactions that are received will be checked against the table of existing received transactions. If they are new (and validate correctly), they will be added
-                             * to the pending transaction pool. Currently, this pool is only useful when mining blocks. In the future, this pool will be accessible using RPC commands to show
-                             * unconfirmed transactions, etc.
+                             * Put the transaction in the received transactions pile, check it for validity, and put it in the pool if valid.
+                             * Important to note--validity checks are done by PendingTransactionContainer's addTransaction(String transaction) method.
+                             * Also important to note--The transaction is marked as seen regardless of validity, to eliminate network reverb.
+                             * Future versions will have better management of broadcast retention pools by checking for probable usefulness and not rebroadcasting
+                             * known-useless transactions, such as those with indexes behind their current signature index, or ones that don't validate correctly.
                              */
-                            boolean alreadyExitsted = false;
-                            for (int b = 0; b < allBroadcastTransactions.size(); b++) {
-                                if (parts[1].equals(allBroadcastTransactions.get(b))) {
-                                    alreadyExitsted = true;
-                                }
-                            }
-                            if (!alreadyExitsted) { // Trnsaction was not already received
-                                /*
-                                 * Put the transaction in the received transactions pile, check it for validity, and put it in the pool if valid.
-                                 * Important to note--validity checks are done by PendingTransactionContainer's addTransaction(String transaction) method.
-                                 * Also important to note--We add the transaction to the known transaction broadcast pile regardless of validity, to eliminate network reverb.
-                                 * Future versions will have better management of broadcast retention pools by checking for probable usefulness and not rebroadcasting
-                                 * known-useless transactions, such as those with indexes behind their current signature index, or ones that don't validate correctly.
-                                 */
-                                allBroadcastTransactions.add(parts[1]);
-                                pendingTransactionContainer.addTransaction(parts[1]);
-                                if (TransactionUtility.isTransactionValid(parts[1])) {
-                                    System.out.println("New transaction on network");
-                                    String[] transactionParts = parts[1].split(";");
-                                    for (int k = 0; k < transactionParts.length; k++) {
-                                        System.out.println("      " + transactionParts[k + 1] + " curecoin from " + transactionParts[0] + " to " + transactionParts[k]);
-                                    }
-                                    System.out.println("Total curecoin sent: " + transactionParts[1]);
-                                    peerNetwork.broadcast("TRANSACTION " + parts[1]);
-                                } else {
-                                    System.out.println("Not a good transaction!");
+                            pendingTransactionContainer.addTransaction(parts[1]);
+                            if (TransactionUtility.isTransactionValid(parts[1])) {
+                                System.out.println("New transaction on network");
+                                String[] transactionParts = parts[1].split(";");
+                                for (int k = 0; k < transactionParts.length; k++) {
+                                    System.out.println("      " + transactionParts[k + 1] + " curecoin from " + transactionParts[0] + " to " + transactionParts[k]);
                                 }
+                                System.out.println("Total curecoin sent: " + transactionParts[1]);
+                                inventoryRelay.relay(InventoryRelay.TRANSACTION, parts[1]);
+                            } else {
+                                System.out.println("Not a good transaction!");
                             }
-                        } else if (parts[0].equalsIgnoreCase("PEER")) {
-                            /*
-                            * Peer discovery mechinisms are currently limited
-                            **/
-                            boolean exists = false;
-                            for (int k = 0; k < peers.size(); k++) {
-                                if (peers.get(k).equals(parts[1] + ":" + parts[2])) {
-                                    exists = true;
-                                }
+                        }
+                    } else if (parts[0].equalsIgnoreCase("PEER")) {
+                        /*
+                        * Peer discovery mechinisms are currently limited
+                        **/
+                        boolean exists = false;
+                        for (int k = 0; k < peers.size(); k++) {
+                            if (peers.get(k).equals(parts[1] + ":" + parts[2])) {
+                                exists = true;
                             }
+                        }
 
-                            if (!exists) {
-                                try {
-                                    peerNetwork.connectToPeer(parts[1].substring(0, parts[1].indexOf(":")), Integer.parseInt(parts[1].substring(parts[1].indexOf(":") + 1)));
-                                    peers.add(parts[1]);
-                                    PrintWriter out = new PrintWriter(peerFile);
-                                    for (int k = 0; k < peers.size(); k++) {
-                                        out.println(peers.get(k));
-                                    }
-                                    out.close();
-                                } catch (FileNotFoundException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        } else if (parts[0].equalsIgnoreCase("GET_BLOCK")) {
-                            /*
-                             * Returns a random peer host/port combo to the querying peer.
-                             * Future versions will detect dynamic ports and not send peers likely to not support direct connections.
-                             * While not part of GET_PEER, very-far-in-the-future-versions may support TCP punchthrough assists.
-                             */
-                            Random random = new Random();
-                            peerNetwork.peerThreads.get(i).outputThread.write("PEER " + peers.get(random.nextInt(peers.size())));
-                        } else if (parts[0].equalsIgnoreCase("GET_BLOCK")) {
+                        if (!exists) {
                             try {
-                                Block block = databaseMaster.getBlock(Integer.parseInt(parts[1]));
-                                if (block != null) {
-                                    System.out.println("Sending block " + parts[1] + " to peer...");
-                                    peerNetwork.peerThreads.get(i).outputThread.write("BLOCK " + block.getRawBlock());
+                                peerNetwork.connectToPeer(parts[1].substring(0, parts[1].indexOf(":")), Integer.parseInt(parts[1].substring(parts[1].indexOf(":") + 1)));
+                                peers.add(parts[1]);
+                                PrintWriter out = new PrintWriter(peerFile);
+                                for (int k = 0; k < peers.size(); k++) {
+                                    out.println(peers.get(k));
                                 }
-                            } catch (Exception e) {
-
+                                out.close();
+                            } catch (FileNotFoundException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    } else if (parts[0].equalsIgnoreCase("GET_PEER")) {
+                        /*
+                         * Returns a random peer host/port combo to the querying peer.
+                         * Future versions will detect dynamic ports and not send peers likely to not support direct connections.
+                         * While not part of GET_PEER, very-far-in-the-future-versions may support TCP punchthrough assists.
+                         */
+                        Random random = new Random();
+                        peer.send("PEER " + peers.get(random.nextInt(peers.size())));
+                    } else if (parts[0].equalsIgnoreCase("GET_BLOCK")) {
+                        try {
+                            String rawBlock = databaseMaster.getRawBlock(Integer.parseInt(parts[1]));
+                            if (rawBlock != null) {
+                                System.out.println("Sending block " + parts[1] + " to peer...");
+                                peer.send("BLOCK " + rawBlock);
                             }
+                        } catch (Exception e) {
+
                         }
                     }
                 }
             }
+            // Add blocks that have finished signature verification. Only chain-dependent checks and ledger updates are left for this thread.
+            ArrayList<BlockVerifier.VerifiedBlock> verifiedBlocks = blockVerifier.getVerifiedBlocks();
+            for (int i = 0; i < verifiedBlocks.size(); i++) {
+                Block blockToAdd = verifiedBlocks.get(i).block;
+                String rawBlock = verifiedBlocks.get(i).rawBlock;
+                if (databaseMaster.addBlock(blockToAdd) && !catchupMode) {
+                    // If block is new to client and appears valid, rebroadcast
+                    System.out.println("Added block " + blockToAdd.blockNum + " with hash: [" + blockToAdd.blockHash.substring(0, 30) + "..." + blockToAdd.blockHash.substring(blockToAdd.blockHash.length() - 30, blockToAdd.blockHash.length() - 1) + "]");
+                    inventoryRelay.relay(InventoryRelay.BLOCK, rawBlock);
+                }
+
+                // Remove all transactions form the pendingTransactionPool that appear in the block
+                pendingTransactionContainer.removeTransactionsInBlock(blockToAdd);
+            }
+            // Any block the tip moved through, such as the rest of a reorganized branch, may have spent indexes pooled transactions still use
+            pendingTransactionContainer.removeStaleTransactions(databaseMaster.takeSigningAddresses());
             int currentChainHeight = databaseMaster.getBlockchainLength();
             /**
              * Current chain is shorter than peer chains. Chain starts counting at 0, so a chain height of 15, for example, means there are 15 blocks, and the top block's index is 14.
@@ -232,7 +223,7 @@ public class Main {
                 }
                 for (int i = currentChainHeight; i < topBlock; i++) {
                     System.out.println("Requesting block " + i + "...");
-                    peerNetwork.broadcast("GET_BLOCK" + i);
+                    peerNetwork.broadcast("GET_BLOCK " + i);
                 }
             } else {
                 if (catchupMode) {
@@ -241,6 +232,45 @@ public class Main {
                 catchupMode = false;
             }
 
+            // Finish submitcert requests whose nonce scans are done
+            ArrayList<NonceScanner.ScanResult> finishedScans = nonceScanner.getFinishedScans();
+            for (int i = 0; i < finishedScans.size(); i++) {
+                RPCThread requester = (RPCThread) finishedScans.get(i).owner;
+                Certificate certificate = finishedScans.get(i).certificate;
+                int bestNonce = finishedScans.get(i).nonce;
+                long lowestScore = finishedScans.get(i).score;
+                long target = finishedScans.get(i).target;
+                if (lowestScore < target) {
+                    try {
+                        // The template builder keeps the transaction set up to date as the pool changes: ordered by signature index per address,
+                        // checked against balances, and capped at the maximum block size.
+                        ArrayList<String> finalTransactionList = pendingTransactionContainer.getBlockTemplate();
+                        System.out.println("Block template holds " + finalTransactionList.size() + " of " + pendingTransactionContainer.getTransactionCount() + " pending transactions");
+                        //We have the transaction list; now we need to assemble the block. I moved this code into its own method, because it would be ugly here. That method handles steps 5, 6, and 7.
+                        //databaseMaster.getBlockchainLength() doesn't have one added to it to account for starting from 0!
+                        String fullBlock = BlockGenerator.complieBlock(System.currentTimeMillis(), databaseMaster.getBlockchainLength(), databaseMaster.getLastestBlock().blockHash, databaseMaster.getLastestBlock().difficulty, bestNonce, databaseMaster.getLedgerHash(), finalTransactionList, certificate, certificate.redeemAddress, addressManager.getDefaultPrivateKey(), databaseMaster.getAddressSignatureIndex(certificate.redeemAddress));
+                        //We finally have the full block. Now to submit it to ourselves...
+                        Block toAdd = new Block(fullBlock);
+                        boolean success = databaseMaster.addBlock(toAdd);
+                        if (success) {
+                            System.out.println("Block added to network successfully!");
+                            inventoryRelay.relay(InventoryRelay.BLOCK, fullBlock);
+                            pendingTransactionContainer.removeTransactionsInBlock(toAdd); // Transactions left out of the template stay pooled for the next block
+                            addressManager.resetDefaultAddressIndexOffset();
+                        } else {
+                            System.out.println("Block was not add success");
+                        }
+                        requester.response = "Successfully submitted block! \nCertificate earned target score " + lowestScore + "\nWhich is below target " + target;
+                    } catch (Exception e) {
+                        requester.response = "Failure to construct certificate!";
+                        System.out.println("Constructing certificate failed!");
+                        e.printStackTrace();
+                    }
+                } else {
+                    requester.response = "Certificate failed with target score " + lowestScore + "\nWhich is above target " + target;
+                }
+            }
+
             /*
              * Loop through all of the rpcAgent rpcThreads looking for new queries. Note that setting the response to a string twice in response to one command will cause queue issues.
              * This may be changed in a later version, but I want to keep the RPCServer elements light on memory with less moving parts--they shouldn't be a point of failure.
@@ -282,7 +312,7 @@ public class Main {
                             System.out.println("Attemptng to verify transaction..." + TransactionUtility.isTransactionValid(fullTransaction));
                             if (TransactionUtility.isTransactionValid(fullTransaction)) {
                                 pendingTransactionContainer.addTransaction(fullTransaction);
-                                peerNetwork.broadcast("TRANSACTION " + fullTransaction);
+                                inventoryRelay.relay(InventoryRelay.TRANSACTION, fullTransaction);
                                 System.out.println("Sending " + amount + " form " + address + " to " + destinationAddress);
                                 rpcAgent.rpcThreads.get(i).response = "Sent " + amount + " from " + address + " to " + destinationAddress;
                             } else {
@@ -293,8 +323,8 @@ public class Main {
                         }
                     } else if (parts[0].equals("submittx")) {
                         if (TransactionUtility.isTransactionValid(parts[1])) {
-                            pendingTransactionContainer.addTransaction(parts[0]);
-                            peerNetwork.broadcast("TRANSACTION " + parts[1]);
+                            pendingTransactionContainer.addTransaction(parts[1]);
+                            inventoryRelay.relay(InventoryRelay.TRANSACTION, parts[1]);
                             rpcAgent.rpcThreads.get(i).response = "Sent raw transaction!";
                         } else {
                             rpcAgent.rpcThreads.get(i).response = "Non-valid transaction.";
@@ -307,96 +337,29 @@ public class Main {
                          * If 1. shows a difficulty above the network difficulty (below the target), proceed with creating a block:
                          * 2.) Gather all transactions from the pending transaction pool. Test all for validity. Test all under a max balance test.
                          * 3.) Put correct transactions in any arbitrary order, except for multiple transactions from the same address, which are ordered by signature index.
-                         * 4.) Input the ledger hash (In 2.0.0a3, this is 0000000000000000000000000000000000000000000000000000000000000000, as ledger hashing isn't fully implemented)
+                         * 4.) Input the ledger hash, the hash of the ledger before this block's transactions (see LedgerCommitment)
                          * 5.) Hash the block
                          * 6.) Sign the block
                          * 7.) Return full block
                          * Steps 5, 6, and 7 are handled outside of MainClass, by a static method inside BlockGenerator.
                          */
-                        //First, we'll check for the max difficulty.
+                        //First, we'll check for the max difficulty. The nonce range is searched in the background; the block is built below once the scan finishes.
                         Certificate certificate = new Certificate(parts[1]);
-                        String[] scoreAndNonce = certificate.getMinCertificateScoreWithNonce().split(":");
-                        int bestNonce = Integer.parseInt(scoreAndNonce[0]);
-                        long lowestScore = Long.parseLong(scoreAndNonce[1]);
                         long target = Long.MAX_VALUE / (databaseMaster.getDifficulty() / 2);
-                        if (lowestScore < target) {
-                            try {
-                                ArrayList<String> allPendingTransactions = pendingTransactionContainer.pendingTransactions;
-                                System.out.println("Inital pending pool size: " + allPendingTransactions.size());
-                                allPendingTransactions = TransactionUtility.sortTransactionsBySignatureIndex(allPendingTransactions);
-                                System.out.println("Pending pool size after sorting: " + allPendingTransactions.size());
-                                // All transactions have been ordered, and tested for validity. Now, we need to check account balances to make sure transactions are valid.
-                                // As all transactions are grouped by address, we'll check totals address-by-address
-                                ArrayList<String> finalTransactionList = new ArrayList<String>();
-                                for (int j = 0; j < allPendingTransactions.size(); j++) {
-                                    String transaction = allPendingTransactions.get(j);
-                                    String address = transaction.split(";")[0];
-                                    // Begin at 0L, and add all putputs to exitBalance
-                                    long exitBalance = 0L;
-                                    long originalBalance = databaseMaster.getAddressBalance(address);
-                                    // Used to keep track of the offset from j while still working on the same address, therefore not going through the entire for-loop again
-                                    int counter = 0;
-                                    // Previous signature for ad address-in order to ensure transactions use the correct indices
-                                    long previousSignatureCount = databaseMaster.getAddressSignatureIndex(address);
-                                    boolean foundNewAddress = false;
-                                    while (!foundNewAddress && j + counter < allPendingTransactions.size()) {
-                                        transaction = allBroadcastBlocks.get(j + counter);
-                                        if (!address.equals(transaction.split(";")[0])) {
-                                            foundNewAddress = true;
-                                            address = transaction.split(";")[0];
-                                            j = j + counter;
-                                        } else {
-                                            exitBalance += Long.parseLong(transaction.split(";")[1]);
-                                            if (exitBalance <= originalBalance && previousSignatureCount + 1 == Long.parseLong(transaction.split(";")[transaction.split(";").length - 1])) {
-                                                // Add seemingly-good transaction to the list, an increment previousSignatureCount for signature order assurance.
-                                                finalTransactionList.add(transaction);
-                                                System.out.println("While making block, added transaction " + transaction);
-                                                previousSignatureCount++;
-                                            } else {
-                                                System.out.println("Transaction failed final validation...");
-                                                System.out.println("exitBalance: " + exitBalance);
-                                                System.out.println("originalBalance: " + originalBalance);
-                                                System.out.println("previousSignatureCount: " + previousSignatureCount);
-                                                System.out.println("signature count of new tx: " + Long.parseLong(transaction.split(";")[transaction.split(";").length - 1]));
-                                            }
-                                            //Counter keeps track of the sub-2nd-layer-for-loop incrementation along the ArrayList. It's kinda 3D.
-                                            counter++;
-                                        }
-                                    }
-                                }
-                                //We have the transaction list; now we need to assemble the block. I moved this code into its own method, because it would be ugly here. That method handles steps 5, 6, and 7.
-                                //databaseMaster.getBlockchainLength() doesn't have one added to it to account for starting from 0!
-                                String fullBlock = BlockGenerator.complieBlock(System.currentTimeMillis(), databaseMaster.getBlockchainLength(), databaseMaster.getLastestBlock().blockHash, databaseMaster.getLastestBlock().difficulty, bestNonce, "0000000000000000000000000000000000000000000000000000000000000000", finalTransactionList, certificate, certificate.redeemAddress, addressManager.getDefaultPrivateKey(), databaseMaster.getAddressSignatureIndex(certificate.redeemAddress));
-                                //We finally have the full block. Now to submit it to ourselves...
-                                Block toAdd = new Block(fullBlock);
-                                boolean success = databaseMaster.addBlock(toAdd);
-                                if (success) {
-                                    System.out.println("Block added to network successfully!");
-                                    peerNetwork.broadcast("BLOCK " + fullBlock);
-                                    pendingTransactionContainer.reset(); // Any transactions left in pendingTransactionContainer that din'<  get submit></>
-                                    addressManager.resetDefaultAddressIndexOffset();
-                                } else {
-                                    System.out.println("Block was not add success");
-                                }
-                                rpcAgent.rpcThreads.get(i).response = "Successfully submitted block! \nCertificate earned target score " + lowestScore + "\nWhich is below target " + target;
-                            } catch (Exception e) {
-                                rpcAgent.rpcThreads.get(i).response = "Failure to construct certificate!";
-                                System.out.println("Constructing certificate failed!");
-                                e.printStackTrace();
-                            }
-                        } else {
-                            rpcAgent.rpcThreads.get(i).response = "Certificate failed with target score " + lowestScore + "\nWhich is above target " + target;
-                        }
+                        nonceScanner.submit(certificate, target, rpcAgent.rpcThreads.get(i));
                     } else if (parts[0].equals("gethistory")) {
-                        if (parts.length > 1) {
-                            ArrayList<String> allTransactions = databaseMaster.getAllTransactionsInvolvingAddress(parts[1]);
-                            String allTransactionsFlat = "";
-                            for (int j = 0; j < allTransactions.size(); j++) {
-                                allTransactionsFlat += allTransactions.get(j) + "\n";
+                        // gethistory <address> [page] [pageSize], newest first
+                        try {
+                            int page = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+                            int pageSize = parts.length > 3 ? Math.min(Integer.parseInt(parts[3]), MAX_HISTORY_PAGE_SIZE) : DEFAULT_HISTORY_PAGE_SIZE;
+                            ArrayList<String> transactions = databaseMaster.getTransactionsInvolvingAddress(parts[1], page, pageSize);
+                            StringBuilder transactionsFlat = new StringBuilder();
+                            for (int j = 0; j < transactions.size(); j++) {
+                                transactionsFlat.append(transactions.get(j)).append("\n");
                             }
-                            rpcAgent.rpcThreads.get(i).response = allTransactionsFlat;
-                        } else {
-                            rpcAgent.rpcThreads.get(i).response = "gethistory <address>";
+                            rpcAgent.rpcThreads.get(i).response = transactionsFlat.toString();
+                        } catch (Exception e) {
+                            rpcAgent.rpcThreads.get(i).response = "gethistory <address> [page] [pageSize]";
                         }
                     } else if (parts[0].equals("getpeding")) {
                         if (parts.length > 1) {
@@ -409,10 +372,8 @@ public class Main {
                     }
                 }
             }
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-            }
+            inventoryRelay.flushAnnouncements();
+            peerNetwork.awaitMessages(100); // Wakes early when a peer sends something
         }
     }
 
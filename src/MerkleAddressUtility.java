@@ -6,12 +6,12 @@ import sun.plugin2.message.GetNameSpaceMessage;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class provides all methods necessary to use and address after it has been generated.
@@ -20,16 +20,24 @@ public class MerkleAddressUtility {
     private static final String CS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
     private static org.apache.commons.codec.binary.Base32 base32 = new org.apache.commons.codec.binary.Base32();
     private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
-    private MessageDigest md;
-    private MessageDigest md512;
     private static final boolean verboseMode = false;
+    // Signatures that have already verified, keyed by signatureCacheKey(). A signature is checked once per node lifetime, not once per code path.
+    private static final int VERIFIED_SIGNATURE_CACHE_SIZE = 100000;
+    private static BoundedCache<String, Boolean> verifiedSignatures = new BoundedCache<String, Boolean>(VERIFIED_SIGNATURE_CACHE_SIZE);
+    private static ExecutorService batchWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SignatureBatchVerifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public static void main(String[] args) {
 
     }
 
     /**
-     * Constructor readies the MessageDigest md object to compute SHA-256 hashes, and ensures existance
+     * Constructor ensures existance
      * of address folder for storing the Merkle Trees. Also checks for availability of SHA1PRNG.
      **/
     public MerkleAddressUtility() {
@@ -39,14 +47,6 @@ public class MerkleAddressUtility {
             System.out.println("CRITICAL ERROR: NO SHA1PRNG SUPPORT!");
             e.printStackTrace();
         }
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-            md512 = MessageDigest.getInstance("SHA-512");
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("CRITICAL ERROR: NO SHA-256 SUPPORT!");
-            e.printStackTrace();
-            System.exit(-1);
-        }
         try {
             File addressFolder = new File("addresses");
             if (!addressFolder.exists()) {
@@ -69,106 +69,150 @@ public class MerkleAddressUtility {
      * @return boolean Whether the message was signed by the provided address using the provided index
      */
     public boolean verifyMerkleSignature(String message, String signature, String address, long index) {
-        try {
-            String lamportSignature = signature.substring(0, signature.indexOf(","));
-            String merkleAuthPath = signature.substring(signature.indexOf(",")+1);
-            // Hole 100 pairs, each pair containing one public and one private Lamport key part
-            String[] lamportSignaturePairs = lamportSignature.split("::");
-            // Will hold all 200 parts in the same order as they appear in lamportSignaturePairs
-            String[] lamportSignatureParts = new String[200];
-            // Populate lamportSignatureParts from lamportSignaturePairs
-            for (int i = 0; i < lamportSignaturePairs.length; i++) {
-                lamportSignatureParts[i * 2] = lamportSignaturePairs[i].substring(0, lamportSignaturePairs[i].indexOf(":"));
-                lamportSignatureParts[i * 2 + 1] = lamportSignaturePairs[i].substring(lamportSignaturePairs[i].indexOf(":") + 1);
+        return verifyMerkleSignature(message, signature == null ? null : MerkleSignature.fromString(signature), address, index);
+    }
+
+    /**
+     * Verifies an already-decoded signature, going through the same verified-signature cache as the String form.
+     *
+     * @param message   The message of which to verify the signature
+     * @param signature The decoded signature to verify
+     * @param address   The address to check the signature against
+     * @param index     The index of the Lamport Keypair used (position on bottom of Merkle tree)
+     * @return boolean Whether the message was signed by the provided address using the provided index
+     */
+    public boolean verifyMerkleSignature(String message, MerkleSignature signature, String address, long index) {
+        // The same transaction passes through here from the network handler, the mempool, block validation and the ledger; only the first pays for the Lamport check
+        String cacheKey = signatureCacheKey(message, signature, address, index);
+        if (cacheKey != null && verifiedSignatures.containsKey(cacheKey)) {
+            return true;
+        }
+        return verifyAndCache(message, signature, address, index, cacheKey);
+    }
+
+    /**
+     * Verifies a batch of signatures, such as all the transactions of a block. Signatures already in the verified-signature cache and repeats
+     * within the batch are only looked up; the rest are verified in parallel on a shared pool of worker threads.
+     *
+     * @param messages   The messages of which to verify the signatures
+     * @param signatures The signatures to verify, one per message
+     * @param addresses  The addresses to check each signature against
+     * @param indexes    The Lamport Keypair index used for each signature
+     * @return boolean[] Whether each message was signed by its address using its index, in the order given
+     */
+    public boolean[] verifyMerkleSignatures(String[] messages, String[] signatures, String[] addresses, long[] indexes) {
+        MerkleSignature[] decodedSignatures = new MerkleSignature[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            decodedSignatures[i] = signatures[i] == null ? null : MerkleSignature.fromString(signatures[i]);
+        }
+        return verifyMerkleSignatures(messages, decodedSignatures, addresses, indexes);
+    }
+
+    /**
+     * Verifies a batch of already-decoded signatures, such as the transactions of a parsed block. Each item's cache key is computed once and
+     * handed to the worker that verifies it.
+     *
+     * @param messages   The messages of which to verify the signatures
+     * @param signatures The decoded signatures to verify, one per message
+     * @param addresses  The addresses to check each signature against
+     * @param indexes    The Lamport Keypair index used for each signature
+     * @return boolean[] Whether each message was signed by its address using its index, in the order given
+     */
+    public boolean[] verifyMerkleSignatures(final String[] messages, final MerkleSignature[] signatures, final String[] addresses, final long[] indexes) {
+        boolean[] results = new boolean[messages.length];
+        int[] duplicateOf = new int[messages.length];
+        final String[] cacheKeys = new String[messages.length];
+        HashMap<String, Integer> firstOccurrence = new HashMap<String, Integer>();
+        ArrayList<Integer> toVerify = new ArrayList<Integer>();
+        for (int i = 0; i < messages.length; i++) {
+            duplicateOf[i] = -1;
+            String cacheKey = signatureCacheKey(messages[i], signatures[i], addresses[i], indexes[i]);
+            cacheKeys[i] = cacheKey;
+            if (cacheKey != null && verifiedSignatures.containsKey(cacheKey)) {
+                results[i] = true;
+            } else if (cacheKey != null && firstOccurrence.containsKey(cacheKey)) {
+                duplicateOf[i] = firstOccurrence.get(cacheKey);
+            } else {
+                if (cacheKey != null) {
+                    firstOccurrence.put(cacheKey, i);
+                }
+                toVerify.add(i);
             }
-            //Lamport Signatures work with binary, so we need a binary string representing the hash of the message we want verify the signature of
-            String binaryToCheck = SHA256Binary(message);
-            //Curecoin Lamport Signatures sign the first 100 bytes of the hash. To generate a message colliding with the signature, one would need on average 2^99 tries
-            binaryToCheck = binaryToCheck.substring(0, 100);
-            // The lamport public key will be 200 Strings in size
-            String[] lamportPublicKey = new String[200];
-            for (int i = 0; i < binaryToCheck.length(); i++) {
-                if (binaryToCheck.charAt(i) == '0') {
-                    if (i < binaryToCheck.length() - 1) {
-                        lamportPublicKey[i * 2] = SHA256Short(lamportSignatureParts[i * 2]);
-                        lamportPublicKey[i * 2 + 1] = lamportSignatureParts[i * 2 + 1];
-                    } else {
-                        // This one is the last pair, and needs to be hashed with SHA512
-                        lamportPublicKey[i * 2] = SHA512(lamportSignatureParts[i * 2]);
-                        lamportPublicKey[i * 2 + 1] = lamportSignatureParts[i * 2 + 1];
-                    }
-                } else if (binaryToCheck.charAt(i) == '1') {
-                    if (i < binaryToCheck.length() - 1) {
-                        lamportPublicKey[i * 2] = lamportSignatureParts[i * 2];
-                        lamportPublicKey[i * 2 + 1] = SHA256Short(lamportSignatureParts[i * 2 + 1]);
-                    } else {
-                        lamportPublicKey[i * 2] = lamportSignatureParts[i * 2];
-                        lamportPublicKey[i * 2 + 1] = SHA512(lamportSignatureParts[i * 2 + 1]);
+        }
+        if (toVerify.size() == 1) {
+            int i = toVerify.get(0);
+            results[i] = verifyAndCache(messages[i], signatures[i], addresses[i], indexes[i], cacheKeys[i]);
+        } else if (toVerify.size() > 1) {
+            ArrayList<Future<Boolean>> verifications = new ArrayList<Future<Boolean>>();
+            for (int j = 0; j < toVerify.size(); j++) {
+                final int i = toVerify.get(j);
+                verifications.add(batchWorkers.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        // Hashing uses per-thread digests, so workers can share this utility
+                        return MerkleAddressUtility.this.verifyAndCache(messages[i], signatures[i], addresses[i], indexes[i], cacheKeys[i]);
                     }
-                } else {
-                    return false;
-                }
+                }));
             }
-            String lamportPublicSignatureFull = "";
-            // Populate full String to hash to get first leaf component
-            for (int i = 0; i < lamportPublicKey.length; i++) {
-                lamportPublicSignatureFull += lamportPublicKey[i];
+            for (int j = 0; j < toVerify.size(); j++) {
+                try {
+                    results[toVerify.get(j)] = verifications.get(j).get();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    results[toVerify.get(j)] = false;
+                }
             }
-            if (verboseMode) {
-                System.out.println("lmpSig: " + lamportPublicSignatureFull);
+        }
+        for (int i = 0; i < messages.length; i++) {
+            if (duplicateOf[i] >= 0) {
+                results[i] = results[duplicateOf[i]];
             }
+        }
+        return results;
+    }
 
-            // First leaf component; bottom layer of Merkle Tree
-            String leafStart = SHA256(lamportPublicSignatureFull);
-            // Split on: in order to get the auth paths into a String array
-            String[] merkleAuthPathComponents = merkleAuthPath.split(":");
-            // This position variable will store where on the tree we are.Important for order of concatenation: rollingHash first, or Component first
-            long position = index;
-            // This rollingHash will contain the hash as we calculate up the hash tree
-            String rollingHash;
-            if (position % 2 == 0) {
-                // Even: rollingHash goes first
-                rollingHash = SHA256(leafStart + merkleAuthPathComponents[0]);
-            } else {
-                // Odd path component should go first
-                rollingHash = SHA256(merkleAuthPathComponents[0] + leafStart);
-            }
-            position /= 2;
-            for (int i = 0; i < merkleAuthPathComponents.length; i++) {
-                // Combine the current hash with the next componet, which visually would lie on the same Merkle Tree layer
-                if (position % 2 == 0) {
-                    // Even : rollingHash goes the first
-                    rollingHash = SHA256(rollingHash + merkleAuthPathComponents[i]);
-                } else {
-                    // Odd path component should go first
-                    rollingHash = SHA256(merkleAuthPathComponents[i] + rollingHash);
-                }
-                if (verboseMode) {
-                    System.out.println("rollingHash: " + rollingHash + " and auth component: " + merkleAuthPathComponents[i]);
-                }
-                position /= 2;
-            }
+    /**
+     * Digest identifying one (message, signature, address, index) combination in the verified-signature cache. The whole signature is part of the
+     * key, so a different signature over the same message is always verified on its own. The signature goes in as its decoded bytes, so no
+     * text form is rebuilt or concatenated to make the key.
+     *
+     * @return String Base64 SHA256 of all four inputs, or null if any input is missing
+     */
+    private String signatureCacheKey(String message, MerkleSignature signature, String address, long index) {
+        if (message == null || signature == null || address == null) {
+            return null;
+        }
+        MessageDigest digest = HashUtility.getSha256Digest();
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        updateDigest(digest, messageBytes.length);
+        digest.update(messageBytes);
+        signature.updateDigest(digest);
+        byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        updateDigest(digest, addressBytes.length);
+        digest.update(addressBytes);
+        updateDigest(digest, index);
+        return base64.encodeAsString(digest.digest());
+    }
 
-            //Final hash, done differently for formatting of address (base32, set length of 32 characters for the top of the Merkle Tree)
-            if (position % 2 == 0) {
-                // Even rollingHash goes first
-                rollingHash = SHA256ReturnBase32(rollingHash + merkleAuthPathComponents[merkleAuthPathComponents.length - 1]);
-            } else {
-                // Odd path component should go first
-                rollingHash = SHA256ReturnBase32(merkleAuthPathComponents[merkleAuthPathComponents.length - 1] + rollingHash);
-            }
-            if (address.substring(2, address.length() - 4).equals(rollingHash)) {
-                // Remove the prefix and hash suffix
-                return true;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-            // Some form of error was triggerd, signature was likely malformed (wrong length)
+    private static void updateDigest(MessageDigest digest, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (value >>> shift));
         }
-        return false; // Fell through at some point, likely the address did'nt match
     }
 
+    /**
+     * Runs the Lamport check and remembers a passing signature under the key the caller already computed.
+     */
+    private boolean verifyAndCache(String message, MerkleSignature signature, String address, long index, String cacheKey) {
+        boolean verified = MerkleSignatureVerifier.verify(message, signature, address, index);
+        if (verified && cacheKey != null) {
+            verifiedSignatures.put(cacheKey, Boolean.TRUE);
+        }
+        return verified;
+    }
+
+    /**
+     * Performs the full Lamport and Merkle authentication path check behind verifyMerkleSignature(), without consulting the cache.
+     */
     /**
      * This method will completely sign a message using the privateKey and Lamport Keypair Index supplied.
      *
@@ -183,48 +227,22 @@ public class MerkleAddressUtility {
         if (!infoFile.exists()) {
             return null;
         }
-
-        //Lamport Signatures work with binary, so we need a binary string representing the hash of the message we want to sign
-        String birnaryToSign = SHA256Binary(message);
-        //Curecoin Lamport Signatures sign the first 100 bytes of the hash. To generate a message colliding with the signature, one would need on average 2^99 tries
-        birnaryToSign = birnaryToSign.substring(0, 100);
-        //The 200 Lamport Private Key Parts, 100 of which will appear as-is in the final signature
-        String[] lamportPrivateKeyParts = getLamportPrivateKeyParts(privateKey, index);
-        String lamportSignature = "";
-        for (int i = 0; i < birnaryToSign.length(); i++) {
-            if (birnaryToSign.charAt(i) == '0') {
-                if (i == birnaryToSign.length() - 1) {
-                    lamportSignature += lamportPrivateKeyParts[i * 2] + ":" + SHA512(lamportPrivateKeyParts[i * 2 + 1]);
-                } else {
-                    lamportSignature += lamportPrivateKeyParts[i * 2] + ":" + SHA256Short(lamportPrivateKeyParts[i * 2 + 1]);
-                }
-            } else if (birnaryToSign.charAt(i) == '1') {
-                if (i == birnaryToSign.length() - 1) {
-                    lamportSignature += SHA512(lamportPrivateKeyParts[i * 2] + ":" + SHA512(lamportPrivateKeyParts[i * 2 + 1]));
-                } else {
-                    lamportSignature += SHA256Short(lamportPrivateKeyParts[i * 2]) + ":" + lamportPrivateKeyParts[i * 2 + 1];
-                } 
-            } else {
-                System.out.println("CRITICAL ERROR: BIRNARY STRING IS NOT BINARY");
-                System.exit(-1);
-            }
-
-            if (i < birnaryToSign.length() - 1) {
-                lamportSignature += "::";
-            }
-        }
-        // Now we need to get the authentication path
-        String merklePath = "";
         int layers = -1;
+        int keyDerivation = LamportKeyDerivation.LEGACY;
         try {
             Scanner scanAddressInfo = new Scanner(infoFile);
             while (scanAddressInfo.hasNextLine()) {
-                String input = scanAddressInfo.nextLine();
-                if (input.contains("layers: ")) {
-                    String layerTemp = input.substring(input.indexOf("layers: " + 8));
+                String input = scanAddressInfo.nextLine().trim();
+                if (input.startsWith("layers: ")) {
+                    String layerTemp = input.substring("layers: ".length());
                     if (isInteger(layerTemp)) {
                         layers = Integer.parseInt(layerTemp);
                     }
+                } else if (input.startsWith("key_derivation: ")) {
+                    String keyDerivationTemp = input.substring("key_derivation: ".length());
+                    if (isInteger(keyDerivationTemp)) {
+                        keyDerivation = Integer.parseInt(keyDerivationTemp);
+                    }
                 }
             }
             scanAddressInfo.close();
@@ -233,35 +251,47 @@ public class MerkleAddressUtility {
             e.printStackTrace();
             return null;
         }
-
         if (layers == -1) {
             return null;
         }
+
+        //Lamport Signatures work with binary: each of the first 100 bits of the message hash picks which part of a pair to reveal
+        byte[] messageHash = HashUtility.sha256(message);
+        //The 200 Lamport Private Key Parts, 100 of which will appear as-is in the final signature
+        String[] lamportPrivateKeyParts = getLamportPrivateKeyParts(privateKey, index, keyDerivation);
+        StringBuilder lamportSignature = new StringBuilder(5000);
+        for (int i = 0; i < MerkleSignatureVerifier.SIGNED_BITS; i++) {
+            boolean last = i == MerkleSignatureVerifier.SIGNED_BITS - 1;
+            if (MerkleSignatureVerifier.getMessageBit(messageHash, i) == 0) {
+                lamportSignature.append(lamportPrivateKeyParts[i * 2]).append(":").append(last ? SHA512(lamportPrivateKeyParts[i * 2 + 1]) : SHA256Short(lamportPrivateKeyParts[i * 2 + 1]));
+            } else {
+                lamportSignature.append(last ? SHA512(lamportPrivateKeyParts[i * 2]) : SHA256Short(lamportPrivateKeyParts[i * 2])).append(":").append(lamportPrivateKeyParts[i * 2 + 1]);
+            }
+            if (!last) {
+                lamportSignature.append("::");
+            }
+        }
+        // Now we need to get the authentication path: one 32-byte node per layer, read straight from the memory-mapped layer files
+        MerkleLayerStore layerStore = MerkleLayerStore.open(new File("addresses/" + address), layers);
+        if (layerStore == null) {
+            System.out.println("ERROR: UNABLE TO READ MERKLE TREE LAYERS FROM ADDRESS " + address);
+            return null;
+        }
+        StringBuilder merklePath = new StringBuilder(layers * 45);
         long[] authPathIndexes = getAuthenticationPathIndexes(index, layers);
         for (int i = 0; i < authPathIndexes.length; i++) {
-            try {
-                File layerFile = new File("addresses" + address + "/layer" + i + ".lyr");
-                Scanner readLayerFile = new Scanner(layerFile);
-                for (int j = 0; j < authPathIndexes[i]; j++) {
-                    readLayerFile.nextLine();
-                }
-                if (verboseMode) {
-                    System.out.println("Consumed " + authPathIndexes[i] + " from layer " + i + ".");
-                }
-                String layerData = readLayerFile.nextLine();
-                readLayerFile.close();
-                if (verboseMode) {
-                    System.out.println("We think the " + (authPathIndexes[i]) + "th index is " + layerData + ".");
-                }
-                merklePath += layerData;
-                if (i < authPathIndexes.length - 1) {
-                    merklePath += ":";
-                }
-            } catch (FileNotFoundException e) {
+            if (authPathIndexes[i] >= layerStore.getNodeCount(i)) {
                 System.out.println("ERROR: UNABLE TO READ ABOUT LAYER " + i + " FROM ADDRESS " + address);
-                e.printStackTrace();
                 return null;
             }
+            String layerData = layerStore.getNodeBase64(i, authPathIndexes[i]);
+            if (verboseMode) {
+                System.out.println("We think the " + (authPathIndexes[i]) + "th index is " + layerData + ".");
+            }
+            merklePath.append(layerData);
+            if (i < authPathIndexes.length - 1) {
+                merklePath.append(":");
+            }
         }
         return lamportSignature + "," + merklePath;
     }
@@ -311,21 +341,16 @@ public class MerkleAddressUtility {
      *
      * @param privateKey The original private key of the Curecoin address in question
      * @param element The index of the Lamport Signature (bottom layer of Merkle Tree) to return
+     * @param keyDerivation Key derivation version of the address, see LamportKeyDerivation
      *
      * @return String[] A String containing the 200 Lamport Private Key Parts
      **/
 
-    private String[] getLamportPrivateKeyParts(String privateKey, long element) {
+    private String[] getLamportPrivateKeyParts(String privateKey, long element, int keyDerivation) {
         try {
             String[] privateKeyParts = new String[200];// Holds 200 Private Key Parts, to sign a 100-bit message
-            // Need to create a seeded SecureRandom so we can acquire the private seed for the desired Lamport Keypair
-            SecureRandom generatePrivateSeeds = SecureRandom.getInstance("SHA1PRNG");
-            generatePrivateSeeds.setSeed(privateKey.getBytes());
-            // Will loop through filling privateSeed until we reach the correct index
-            byte[] privateSeed = new byte[100];
-            for (int i = 0; i < element; i++) {
-                generatePrivateSeeds.nextBytes(privateSeed);
-            }
+            // Version 2 addresses derive the private seed for the desired Lamport Keypair directly; legacy ones walk a seeded SHA1PRNG up to it
+            byte[] privateSeed = LamportKeyDerivation.getPrivateSeed(privateKey, element, keyDerivation);
 
             //lmpPrivgen seeded with the above-found privateSeed, and then used by getLamportPrivateKey
             SecureRandom lmpPrivGen = SecureRandom.getInstance("SHA1PRNG");
@@ -351,14 +376,11 @@ public class MerkleAddressUtility {
      * */
     private String getLamportPrivateKeyPart(SecureRandom lmpPrivGen) {
         int len = CS.length();
-        //It's ugly. I know. A loop would be prettier, but in benchmarks this is slightly faster. And for something that's gonna be run billions of times, that's important.
-        //For a 14-layer address, this method is called 200*(2^13) times. That's 1,638,400 times. That's a lot.
-        return "" +
-                CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) +
-                CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) +
-                CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) +
-                CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) +
-                CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len)) + CS.charAt(lmpPrivGen.nextInt(len));
+        char[] privateKeyPart = new char[20];
+        for (int i = 0; i < privateKeyPart.length; i++) {
+            privateKeyPart[i] = CS.charAt(lmpPrivGen.nextInt(len));
+        }
+        return new String(privateKeyPart);
     }
 
     /**
@@ -405,12 +427,7 @@ public class MerkleAddressUtility {
      *
      **/
     private String SHA256ReturnBase32(String toHash) {
-        try {
-            return base32.encodeAsString(md.digest(toHash.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base32.encodeAsString(HashUtility.sha256(toHash));
     }
 
     /**
@@ -423,12 +440,7 @@ public class MerkleAddressUtility {
      *
      * */
     private String SHA256(String toHash) {
-        try {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base64.encodeAsString(HashUtility.sha256(toHash));
     }
 
     /**
@@ -440,12 +452,7 @@ public class MerkleAddressUtility {
      * @return String the 128-character base64 String resulting from hashing toHash
      * */
     private String SHA512(String toHash) {
-        try {
-            return base64.encodeAsString(md512.digest(toHash.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base64.encodeAsString(HashUtility.sha512(toHash));
     }
 
     /**
@@ -457,30 +464,6 @@ public class MerkleAddressUtility {
      *
      **/
     private String SHA256Short(String toHash) {
-        try {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8"))).substring(0, 16);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    /**
-     * This SHA256 function returns a 256-character binary String representing the full SHA256 hash of the String toHash
-     * This binary String is useful when signing a message with a Lamport Signature.
-     *
-     * @param toHash The String to hash using SHA256
-     *
-     * @return String The binary String representing the entire SHA256
-     *
-     * */
-    private String SHA256Binary(String toHash) {
-        try {
-            byte[] messageHash = md.digest(toHash.getBytes("UTF-8"));
-            return new BigInteger(1, messageHash).toString(2);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base64.encodeAsString(HashUtility.sha256(toHash)).substring(0, 16);
     }
 }
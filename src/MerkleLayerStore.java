@@ -0,0 +1,163 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Random access to the stored layers of an address's Merkle Tree.
+ *
+ * Every node in every layer is a SHA256 hash, so layers are kept as fixed-width binary files: addresses/[address]/layer[N].bin holds the 32-byte
+ * nodes of layer N back to back, node i at offset 32 * i. The files are memory-mapped, so fetching one node of an authentication path is a single
+ * 32-byte read instead of scanning a text file line by line.
+ *
+ * Trees stored in the older text format (layer[N].lyr, one base64 hash per line) are converted to .bin the first time they are opened. The .lyr
+ * files are left in place.
+ */
+public class MerkleLayerStore {
+    public static final int NODE_SIZE = 32; // Bytes per node: one SHA256 hash
+
+    private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
+    private static BoundedCache<String, MerkleLayerStore> openStores = new BoundedCache<String, MerkleLayerStore>(16);
+
+    private final MappedByteBuffer[] layerBuffers;
+
+    private MerkleLayerStore(MappedByteBuffer[] layerBuffers) {
+        this.layerBuffers = layerBuffers;
+    }
+
+    /**
+     * Opens the layers of an address's Merkle Tree, converting them from .lyr files first if needed. Opened stores are cached, as layer files
+     * never change once the tree is written.
+     *
+     * @param addressFolder Folder holding the address's layer files
+     * @param layers        Number of layers in the tree
+     * @return MerkleLayerStore The opened layers, or null if a layer is missing or unreadable
+     */
+    public static MerkleLayerStore open(File addressFolder, int layers) {
+        String key = addressFolder.getAbsolutePath() + ":" + layers;
+        MerkleLayerStore store = openStores.get(key);
+        if (store != null) {
+            return store;
+        }
+        try {
+            MappedByteBuffer[] layerBuffers = new MappedByteBuffer[layers];
+            for (int i = 0; i < layers; i++) {
+                File binaryLayer = getBinaryLayerFile(addressFolder, i);
+                if (!binaryLayer.exists() && !migrateLayer(getTextLayerFile(addressFolder, i), binaryLayer)) {
+                    return null;
+                }
+                RandomAccessFile layerFile = new RandomAccessFile(binaryLayer, "r");
+                try {
+                    layerBuffers[i] = layerFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, layerFile.length());
+                } finally {
+                    layerFile.close(); // The mapping stays valid after the channel is closed
+                }
+            }
+            store = new MerkleLayerStore(layerBuffers);
+            openStores.put(key, store);
+            return store;
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO OPEN MERKLE TREE LAYERS IN " + addressFolder);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param layer Layer of the tree, 0 being the bottom
+     * @return long Number of nodes stored for the layer
+     */
+    public long getNodeCount(int layer) {
+        return layerBuffers[layer].capacity() / NODE_SIZE;
+    }
+
+    /**
+     * @param layer Layer of the tree, 0 being the bottom
+     * @param index Index of the node within the layer
+     * @return byte[] The 32-byte node
+     */
+    public byte[] getNode(int layer, long index) {
+        byte[] node = new byte[NODE_SIZE];
+        ByteBuffer view = layerBuffers[layer].duplicate(); // Own position, so concurrent readers don't interfere
+        view.position((int) (index * NODE_SIZE));
+        view.get(node);
+        return node;
+    }
+
+    /**
+     * @param layer Layer of the tree, 0 being the bottom
+     * @param index Index of the node within the layer
+     * @return String The node as base64, the way it appears in an authentication path
+     */
+    public String getNodeBase64(int layer, long index) {
+        return base64.encodeAsString(getNode(layer, index));
+    }
+
+    /**
+     * @param addressFolder Folder holding the address's layer files
+     * @param layer         Layer of the tree
+     * @return File The binary layer file
+     */
+    public static File getBinaryLayerFile(File addressFolder, int layer) {
+        return new File(addressFolder, "layer" + layer + ".bin");
+    }
+
+    /**
+     * @param addressFolder Folder holding the address's layer files
+     * @param layer         Layer of the tree
+     * @return File The legacy text layer file
+     */
+    public static File getTextLayerFile(File addressFolder, int layer) {
+        return new File(addressFolder, "layer" + layer + ".lyr");
+    }
+
+    /**
+     * Converts a text layer file (one base64 SHA256 per line) into a binary one. Written to a temporary file and renamed, so a failed conversion
+     * never leaves a partial .bin behind.
+     *
+     * @param textLayer   The .lyr file to read
+     * @param binaryLayer The .bin file to write
+     * @return boolean Whether the conversion succeeded
+     */
+    public static boolean migrateLayer(File textLayer, File binaryLayer) {
+        if (!textLayer.exists()) {
+            System.out.println("ERROR: MISSING MERKLE TREE LAYER " + textLayer);
+            return false;
+        }
+        File tempFile = new File(binaryLayer.getPath() + ".tmp");
+        try {
+            Scanner scanLayer = new Scanner(new BufferedInputStream(new FileInputStream(textLayer)), StandardCharsets.UTF_8.name());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+            try {
+                while (scanLayer.hasNextLine()) {
+                    String line = scanLayer.nextLine().trim();
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    byte[] node = base64.decode(line);
+                    if (node.length != NODE_SIZE) {
+                        System.out.println("ERROR: MALFORMED NODE IN MERKLE TREE LAYER " + textLayer + ": " + line);
+                        return false;
+                    }
+                    out.write(node);
+                }
+            } finally {
+                scanLayer.close();
+                out.close();
+            }
+            if (!tempFile.renameTo(binaryLayer)) {
+                System.out.println("ERROR: UNABLE TO WRITE MERKLE TREE LAYER " + binaryLayer);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO CONVERT MERKLE TREE LAYER " + textLayer);
+            e.printStackTrace();
+            return false;
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
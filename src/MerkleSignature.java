@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A Merkle signature decoded from its text form into raw bytes. The text form is
+ * lamportPart:lamportPart::lamportPart:lamportPart::...,authPathComponent:authPathComponent:...
+ * where every Lamport part is either a revealed 20-character private key part, a 16-character base64 SHA256Short hash, or (for the last pair) an
+ * 88-character base64 SHA512 hash, and every authentication path component is a 44-character base64 SHA256 hash.
+ *
+ * Private parts are held as their 20 ASCII bytes and hashes as their 12, 64 or 32 decoded bytes, which roughly halves the size of a signature compared
+ * to the Java String. Because each of those kinds has a distinct byte length, toString() restores the exact original text.
+ * A signature that isn't in this canonical shape is kept as its raw text instead, so even a malformed signature round-trips (and fails verification
+ * exactly as before).
+ */
+public class MerkleSignature {
+    private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
+
+    private final byte[][] lamportParts;
+    private final byte[][] authPath;
+    private final byte[] rawText; // Only set when the signature couldn't be decoded
+
+    private MerkleSignature(byte[][] lamportParts, byte[][] authPath, byte[] rawText) {
+        this.lamportParts = lamportParts;
+        this.authPath = authPath;
+        this.rawText = rawText;
+    }
+
+    /**
+     * Decodes the text form of a Merkle signature.
+     *
+     * @param signature Signature text, as it appears in a transaction or block
+     * @return MerkleSignature The decoded signature
+     */
+    public static MerkleSignature fromString(String signature) {
+        try {
+            int split = signature.indexOf(",");
+            if (split > 0) {
+                String[] lamportPairs = signature.substring(0, split).split("::", -1);
+                String[] authPathComponents = signature.substring(split + 1).split(":", -1);
+                byte[][] lamportParts = new byte[lamportPairs.length * 2][];
+                for (int i = 0; i < lamportPairs.length; i++) {
+                    int pairSplit = lamportPairs[i].indexOf(":");
+                    if (pairSplit < 0) {
+                        return fromRawText(signature);
+                    }
+                    lamportParts[i * 2] = decodeLamportPart(lamportPairs[i].substring(0, pairSplit));
+                    lamportParts[i * 2 + 1] = decodeLamportPart(lamportPairs[i].substring(pairSplit + 1));
+                }
+                byte[][] authPath = new byte[authPathComponents.length][];
+                for (int i = 0; i < authPathComponents.length; i++) {
+                    authPath[i] = decodeBase64(authPathComponents[i], 44, 32);
+                }
+                MerkleSignature decoded = new MerkleSignature(lamportParts, authPath, null);
+                for (int i = 0; i < lamportParts.length; i++) {
+                    if (lamportParts[i] == null) {
+                        return fromRawText(signature);
+                    }
+                }
+                for (int i = 0; i < authPath.length; i++) {
+                    if (authPath[i] == null) {
+                        return fromRawText(signature);
+                    }
+                }
+                if (decoded.toString().equals(signature)) {
+                    return decoded;
+                }
+            }
+        } catch (Exception e) {
+            // Falls through to keeping the raw text
+        }
+        return fromRawText(signature);
+    }
+
+    /**
+     * @return boolean Whether the signature was decoded into bytes; false means it wasn't canonical and is held as raw text
+     */
+    public boolean isDecoded() {
+        return rawText == null;
+    }
+
+    /**
+     * @return int Number of Lamport signature parts (200 for a well-formed signature), or 0 if the signature isn't decoded
+     */
+    public int getLamportPartCount() {
+        return lamportParts == null ? 0 : lamportParts.length;
+    }
+
+    /**
+     * @param i Position of the part within the Lamport signature
+     * @return byte[] The decoded part: 20 ASCII bytes for a revealed private part, otherwise the hash bytes
+     */
+    public byte[] getLamportPart(int i) {
+        return lamportParts[i];
+    }
+
+    /**
+     * @return int Number of authentication path components, or 0 if the signature isn't decoded
+     */
+    public int getAuthPathLength() {
+        return authPath == null ? 0 : authPath.length;
+    }
+
+    /**
+     * @param i Layer of the authentication path component, starting from the bottom of the tree
+     * @return byte[] The 32-byte SHA256 hash at that layer
+     */
+    public byte[] getAuthPathComponent(int i) {
+        return authPath[i];
+    }
+
+    /**
+     * Feeds the signature's bytes into a digest, in the same layout as writeTo(), without building its text form. Signatures with the same text
+     * always feed the same bytes, since a signature is only held decoded when decoding is exact.
+     *
+     * @param digest Digest to update
+     */
+    public void updateDigest(MessageDigest digest) {
+        if (rawText != null) {
+            digest.update((byte) 0);
+            digest.update(rawText);
+            return;
+        }
+        digest.update((byte) 1);
+        for (int i = 0; i < lamportParts.length; i++) {
+            digest.update((byte) lamportParts[i].length);
+            digest.update(lamportParts[i]);
+        }
+        digest.update((byte) 0); // Parts are 12, 20 or 64 bytes long, so no part starts with a zero length
+        for (int i = 0; i < authPath.length; i++) {
+            digest.update(authPath[i]);
+        }
+    }
+
+    /**
+     * Writes the signature in binary form: a flag byte, then either the raw text or the length-prefixed Lamport parts and authentication path.
+     *
+     * @param out Stream to write to
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        if (rawText != null) {
+            out.writeByte(0);
+            out.writeInt(rawText.length);
+            out.write(rawText);
+            return;
+        }
+        out.writeByte(1);
+        out.writeShort(lamportParts.length);
+        for (int i = 0; i < lamportParts.length; i++) {
+            out.writeByte(lamportParts[i].length);
+            out.write(lamportParts[i]);
+        }
+        out.writeShort(authPath.length);
+        for (int i = 0; i < authPath.length; i++) {
+            out.write(authPath[i]);
+        }
+    }
+
+    /**
+     * Reads a signature written by writeTo(). Every length and count is checked against what's left of the stream before anything is allocated,
+     * so a malformed or hostile frame is rejected instead of throwing something other than an IOException.
+     *
+     * @param in Stream to read from, over an in-memory frame so that available() is exactly what's left of it
+     * @return MerkleSignature The signature
+     * @throws IOException If the signature is malformed
+     */
+    public static MerkleSignature readFrom(DataInputStream in) throws IOException {
+        if (in.readByte() == 0) {
+            byte[] rawText = new byte[checkLength(in, in.readInt(), 1)];
+            in.readFully(rawText);
+            return new MerkleSignature(null, null, rawText);
+        }
+        int lamportPartCount = checkLength(in, in.readUnsignedShort(), 1);
+        if (lamportPartCount % 2 != 0) {
+            throw new IOException("Odd Lamport part count " + lamportPartCount);
+        }
+        byte[][] lamportParts = new byte[lamportPartCount][];
+        for (int i = 0; i < lamportParts.length; i++) {
+            int partLength = in.readUnsignedByte();
+            if (partLength != 20 && partLength != 12 && partLength != 64) {
+                throw new IOException("Bad Lamport part length " + partLength); // Only lengths decodeLamportPart() produces
+            }
+            lamportParts[i] = new byte[checkLength(in, partLength, 1)];
+            in.readFully(lamportParts[i]);
+        }
+        byte[][] authPath = new byte[checkLength(in, in.readUnsignedShort(), 32)][];
+        for (int i = 0; i < authPath.length; i++) {
+            authPath[i] = new byte[32];
+            in.readFully(authPath[i]);
+        }
+        return new MerkleSignature(lamportParts, authPath, null);
+    }
+
+    /**
+     * Checks a length or count read from a stream against the bytes left in it.
+     *
+     * @param in       The stream
+     * @param count    Number of items about to be read
+     * @param itemSize Minimum encoded size of each item
+     * @return int count, if that many items can fit in what's left of the stream
+     * @throws IOException If they can't
+     */
+    static int checkLength(DataInputStream in, int count, int itemSize) throws IOException {
+        if (count < 0 || (long) count * itemSize > in.available()) {
+            throw new IOException("Bad length " + count + " with " + in.available() + " bytes left");
+        }
+        return count;
+    }
+
+    /**
+     * Restores the exact text form of the signature.
+     *
+     * @return String The signature text
+     */
+    public String toString() {
+        if (rawText != null) {
+            return new String(rawText, StandardCharsets.UTF_8);
+        }
+        StringBuilder text = new StringBuilder(12000);
+        for (int i = 0; i < lamportParts.length; i += 2) {
+            if (i > 0) {
+                text.append("::");
+            }
+            text.append(encodeLamportPart(lamportParts[i])).append(":").append(encodeLamportPart(lamportParts[i + 1]));
+        }
+        text.append(",");
+        for (int i = 0; i < authPath.length; i++) {
+            if (i > 0) {
+                text.append(":");
+            }
+            text.append(base64.encodeAsString(authPath[i]));
+        }
+        return text.toString();
+    }
+
+    private static MerkleSignature fromRawText(String signature) {
+        return new MerkleSignature(null, null, signature.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lamport parts are told apart by length: 20 characters is a revealed private part, 16 a SHA256Short hash, 88 a SHA512 hash.
+     */
+    private static byte[] decodeLamportPart(String part) {
+        if (part.length() == 20) {
+            for (int i = 0; i < part.length(); i++) {
+                if (part.charAt(i) > 127) {
+                    return null;
+                }
+            }
+            return part.getBytes(StandardCharsets.US_ASCII);
+        } else if (part.length() == 16) {
+            return decodeBase64(part, 16, 12);
+        } else if (part.length() == 88) {
+            return decodeBase64(part, 88, 64);
+        }
+        return null;
+    }
+
+    private static String encodeLamportPart(byte[] part) {
+        if (part.length == 20) {
+            return new String(part, StandardCharsets.US_ASCII);
+        }
+        return base64.encodeAsString(part);
+    }
+
+    private static byte[] decodeBase64(String text, int textLength, int byteLength) {
+        if (text.length() != textLength) {
+            return null;
+        }
+        byte[] decoded = base64.decode(text);
+        if (decoded.length != byteLength) {
+            return null;
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,229 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Byte-oriented Merkle signature verification. Works on a signature already decoded into a MerkleSignature, hashes with per-thread MessageDigest
+ * objects into per-thread buffers, and compares raw digests, so checking a signature doesn't build any Strings.
+ *
+ * The hashes are the same ones the text format describes: a Lamport Public Key is the base64 text of its 200 parts concatenated (16-character
+ * SHA256Short hashes, then two full SHA512 hashes), a leaf is the SHA256 of that text, and each step up the tree is the SHA256 of the base64 text of
+ * the left node followed by that of the right node. The base64 text is written straight into a reused buffer rather than into Strings.
+ *
+ * The message is signed bit by bit over the first 100 bits of its SHA256 hash, most significant bit first.
+ */
+public class MerkleSignatureVerifier {
+    public static final int SIGNED_BITS = 100;
+    private static final int LAMPORT_PARTS = SIGNED_BITS * 2;
+    private static final int PRIVATE_PART_SIZE = 20; // ASCII characters of a revealed Lamport Private Key Part
+    private static final int SHORT_HASH_SIZE = 12; // Bytes behind a 16-character SHA256Short
+    private static final int LONG_HASH_SIZE = 64; // Bytes of a SHA512
+    private static final int NODE_SIZE = 32; // Bytes of a SHA256 tree node
+    private static final int ADDRESS_ROOT_SIZE = 20; // Bytes behind the 32 base32 characters of an address's tree root
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+    private static final ThreadLocal<Kernel> kernels = new ThreadLocal<Kernel>() {
+        protected Kernel initialValue() {
+            return new Kernel();
+        }
+    };
+
+    /**
+     * Digests and scratch buffers for one thread.
+     */
+    private static class Kernel {
+        final MessageDigest sha256;
+        final MessageDigest partSha256; // Hashes revealed parts while sha256 is busy accumulating the public key
+        final MessageDigest sha512;
+        final byte[] messageHash = new byte[NODE_SIZE];
+        final byte[] digest = new byte[LONG_HASH_SIZE];
+        final byte[] node = new byte[NODE_SIZE];
+        final byte[] text = new byte[LONG_HASH_SIZE * 2]; // Base64 of up to one SHA512, or of two tree nodes side by side
+        final byte[] addressRoot = new byte[ADDRESS_ROOT_SIZE];
+
+        Kernel() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                partSha256 = MessageDigest.getInstance("SHA-256");
+                sha512 = MessageDigest.getInstance("SHA-512");
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println("CRITICAL ERROR: NO SHA-256 SUPPORT!");
+                e.printStackTrace();
+                System.exit(-1);
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Verifies that address signed message with the Lamport Keypair at index.
+     *
+     * @param message   The signed message
+     * @param signature The decoded signature
+     * @param address   The address to check the signature against
+     * @param index     The index of the Lamport Keypair used (position on bottom of Merkle tree)
+     * @return boolean Whether the signature is valid
+     */
+    public static boolean verify(String message, MerkleSignature signature, String address, long index) {
+        if (message == null || signature == null || address == null || !signature.isDecoded() || index < 0) {
+            return false;
+        }
+        if (signature.getLamportPartCount() != LAMPORT_PARTS || address.length() < 2 + 32) {
+            return false;
+        }
+        int layers = getLayerCount(address);
+        if (layers > 0 && (signature.getAuthPathLength() != layers - 1 || index >= (1L << (layers - 1)))) {
+            return false;
+        }
+        Kernel kernel = kernels.get();
+        try {
+            kernel.sha256.reset(); // A previous call may have given up halfway through a public key
+            kernel.sha256.update(message.getBytes(StandardCharsets.UTF_8));
+            kernel.sha256.digest(kernel.messageHash, 0, NODE_SIZE);
+            if (!hashLamportPublicKey(kernel, signature)) {
+                return false;
+            }
+            // Leaf is now in kernel.node; walk up the authentication path
+            long position = index;
+            for (int i = 0; i < signature.getAuthPathLength(); i++) {
+                byte[] component = signature.getAuthPathComponent(i);
+                if (position % 2 == 0) {
+                    encodeBase64(kernel.node, kernel.text, 0);
+                    encodeBase64(component, kernel.text, 44);
+                } else {
+                    encodeBase64(component, kernel.text, 0);
+                    encodeBase64(kernel.node, kernel.text, 44);
+                }
+                kernel.sha256.update(kernel.text, 0, 88);
+                kernel.sha256.digest(kernel.node, 0, NODE_SIZE);
+                position /= 2;
+            }
+            if (!decodeAddressRoot(address, kernel.addressRoot)) {
+                return false;
+            }
+            for (int i = 0; i < ADDRESS_ROOT_SIZE; i++) {
+                if (kernel.node[i] != kernel.addressRoot[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (DigestException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns bit i of the signed message hash, most significant bit of the first byte first.
+     *
+     * @param messageHash SHA256 of the message
+     * @param i           Bit position
+     * @return int 0 or 1
+     */
+    public static int getMessageBit(byte[] messageHash, int i) {
+        return (messageHash[i >> 3] >> (7 - (i & 7))) & 1;
+    }
+
+    /**
+     * Rebuilds the Lamport Public Key from the signature and hashes it into kernel.node. For each signed bit, the signature reveals the private part
+     * selected by the bit and gives the hash of the other one; the revealed part is hashed here.
+     */
+    private static boolean hashLamportPublicKey(Kernel kernel, MerkleSignature signature) throws DigestException {
+        MessageDigest leafDigest = kernel.sha256;
+        for (int i = 0; i < SIGNED_BITS; i++) {
+            boolean last = i == SIGNED_BITS - 1;
+            int hashSize = last ? LONG_HASH_SIZE : SHORT_HASH_SIZE;
+            int revealed = i * 2 + getMessageBit(kernel.messageHash, i);
+            for (int j = i * 2; j <= i * 2 + 1; j++) {
+                byte[] part = signature.getLamportPart(j);
+                if (j == revealed) {
+                    if (part.length != PRIVATE_PART_SIZE) {
+                        return false;
+                    }
+                    if (last) {
+                        kernel.sha512.update(part);
+                        kernel.sha512.digest(kernel.digest, 0, LONG_HASH_SIZE);
+                    } else {
+                        kernel.partSha256.update(part);
+                        kernel.partSha256.digest(kernel.digest, 0, NODE_SIZE);
+                    }
+                    leafDigest.update(kernel.text, 0, encodeBase64(kernel.digest, hashSize, kernel.text, 0));
+                } else {
+                    if (part.length != hashSize) {
+                        return false;
+                    }
+                    leafDigest.update(kernel.text, 0, encodeBase64(part, part.length, kernel.text, 0));
+                }
+            }
+        }
+        leafDigest.digest(kernel.node, 0, NODE_SIZE);
+        return true;
+    }
+
+    /**
+     * @param address Curecoin address
+     * @return int Number of Merkle Tree layers the address prefix stands for, or -1 for addresses with no fixed size (authorities)
+     */
+    private static int getLayerCount(String address) {
+        if (address.charAt(0) == 'C' && address.charAt(1) >= '1' && address.charAt(1) <= '5') {
+            return 14 + (address.charAt(1) - '1');
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the 32 base32 characters after an address's prefix into the 20 bytes of tree root they encode.
+     */
+    private static boolean decodeAddressRoot(String address, byte[] root) {
+        long buffer = 0;
+        int bits = 0;
+        int out = 0;
+        for (int i = 2; i < 34; i++) {
+            int value = BASE32.indexOf(address.charAt(i));
+            if (value < 0) {
+                return false;
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                root[out++] = (byte) (buffer >> bits);
+            }
+        }
+        return true;
+    }
+
+    private static void encodeBase64(byte[] node, byte[] text, int offset) {
+        encodeBase64(node, NODE_SIZE, text, offset);
+    }
+
+    /**
+     * Writes standard, padded base64 of the first length bytes of data into text at offset.
+     *
+     * @return int Number of characters written
+     */
+    private static int encodeBase64(byte[] data, int length, byte[] text, int offset) {
+        int start = offset;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            text[offset++] = BASE64[(bits >> 18) & 63];
+            text[offset++] = BASE64[(bits >> 12) & 63];
+            text[offset++] = BASE64[(bits >> 6) & 63];
+            text[offset++] = BASE64[bits & 63];
+        }
+        if (i < length) {
+            int bits = (data[i] & 0xff) << 16;
+            if (i + 1 < length) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            text[offset++] = BASE64[(bits >> 18) & 63];
+            text[offset++] = BASE64[(bits >> 12) & 63];
+            text[offset++] = i + 1 < length ? BASE64[(bits >> 6) & 63] : (byte) '=';
+            text[offset++] = '=';
+        }
+        return offset - start;
+    }
+}
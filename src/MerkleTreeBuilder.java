@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the layers of an address's Merkle Tree on a fork/join pool and streams them to disk in the binary layer format read by MerkleLayerStore.
+ *
+ * The bottom layer is the expensive part: each leaf is the SHA256 of a Lamport Public Key, which means deriving the keypair's seed, expanding
+ * it into 200 Lamport Private Key Parts and hashing each of them. Leaves are computed a chunk at a time--each chunk split recursively across the
+ * pool--and appended to layer0.bin as each chunk finishes, so memory use doesn't grow with the size of the tree. Every higher layer is then built
+ * the same way from the layer below it: read a chunk of nodes, hash the pairs in parallel, append the parents.
+ *
+ * Nodes are hashed the way signatures are verified: a leaf is SHA256 of the concatenated public key parts, and a parent is SHA256 of the base64
+ * text of its left child followed by that of its right child.
+ */
+public class MerkleTreeBuilder {
+    private static final String CS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"; // Character set used in Lamport Private Key Parts
+    private static final int LEAVES_PER_TASK = 16; // Below this many leaves, a task stops splitting
+    private static final int PAIRS_PER_TASK = 2048; // Below this many pairs, a task stops splitting
+    private static final int PAIRS_PER_CHUNK = 1 << 16; // Inner-layer pairs read from disk at a time
+
+    private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
+
+    private ForkJoinPool pool;
+    private int leavesPerChunk;
+
+    /**
+     * @param parallelism    Number of threads to hash on
+     * @param leavesPerChunk Number of leaves computed before they're written out and progress is reported
+     */
+    public MerkleTreeBuilder(int parallelism, int leavesPerChunk) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.leavesPerChunk = Math.max(1, leavesPerChunk);
+    }
+
+    /**
+     * Computes the bottom layer of the tree and writes it to a binary layer file.
+     *
+     * @param privateKey The private key of the address
+     * @param numLayers  Number of layers in the tree, including the bottom and the top
+     * @param leafLayer  File to write the leaves to
+     * @return boolean Whether the layer was written successfully
+     */
+    public boolean buildLeafLayer(String privateKey, int numLayers, File leafLayer) {
+        long leafCount = 1L << (numLayers - 1);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(leafLayer), 1 << 16);
+            try {
+                long startTime = System.currentTimeMillis();
+                for (long chunkStart = 0; chunkStart < leafCount; chunkStart += leavesPerChunk) {
+                    int chunkSize = (int) Math.min(leavesPerChunk, leafCount - chunkStart);
+                    byte[] leaves = new byte[chunkSize * MerkleLayerStore.NODE_SIZE];
+                    pool.invoke(new LeafTask(privateKey, chunkStart, leaves, 0, chunkSize));
+                    out.write(leaves);
+                    long done = chunkStart + chunkSize;
+                    double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+                    System.out.println("Leaves: " + done + "/" + leafCount + " (" + (long) (done / seconds) + " keys per second)");
+                }
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO WRITE MERKLE TREE LEAVES TO " + leafLayer);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Builds every layer above the bottom one, each from the layer below it, and returns the top node.
+     *
+     * @param folder    Folder holding layer0.bin; layer1.bin and up are written next to it
+     * @param numLayers Number of layers in the tree, including the bottom and the top
+     * @return byte[] The 32-byte top node of the tree, or null if a layer couldn't be built
+     */
+    public byte[] buildInnerLayers(File folder, int numLayers) {
+        try {
+            for (int layer = 1; layer < numLayers; layer++) {
+                File below = MerkleLayerStore.getBinaryLayerFile(folder, layer - 1);
+                File above = MerkleLayerStore.getBinaryLayerFile(folder, layer);
+                long pairCount = below.length() / (2 * MerkleLayerStore.NODE_SIZE);
+                if (pairCount == 0) {
+                    System.out.println("ERROR: MERKLE TREE LAYER " + (layer - 1) + " HAS FEWER THAN TWO NODES");
+                    return null;
+                }
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(below), 1 << 16));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(above), 1 << 16);
+                try {
+                    for (long chunkStart = 0; chunkStart < pairCount; chunkStart += PAIRS_PER_CHUNK) {
+                        int chunkSize = (int) Math.min(PAIRS_PER_CHUNK, pairCount - chunkStart);
+                        byte[] children = new byte[chunkSize * 2 * MerkleLayerStore.NODE_SIZE];
+                        in.readFully(children);
+                        byte[] parents = new byte[chunkSize * MerkleLayerStore.NODE_SIZE];
+                        pool.invoke(new PairTask(children, parents, 0, chunkSize));
+                        out.write(parents);
+                    }
+                } finally {
+                    in.close();
+                    out.close();
+                }
+                System.out.println("Built layer " + layer + "/" + (numLayers - 1) + " (" + pairCount + " nodes)");
+            }
+            byte[] top = new byte[MerkleLayerStore.NODE_SIZE];
+            DataInputStream topIn = new DataInputStream(new FileInputStream(MerkleLayerStore.getBinaryLayerFile(folder, numLayers - 1)));
+            try {
+                topIn.readFully(top);
+            } finally {
+                topIn.close();
+            }
+            return top;
+        } catch (IOException e) {
+            System.out.println("ERROR: UNABLE TO BUILD MERKLE TREE LAYERS IN " + folder);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Computes leaves [from, to) of a chunk, splitting in half until the range is small enough to do directly.
+     */
+    private static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final String privateKey;
+        private final long chunkStart;
+        private final byte[] leaves;
+        private final int from;
+        private final int to;
+
+        LeafTask(String privateKey, long chunkStart, byte[] leaves, int from, int to) {
+            this.privateKey = privateKey;
+            this.chunkStart = chunkStart;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > LEAVES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(privateKey, chunkStart, leaves, from, middle), new LeafTask(privateKey, chunkStart, leaves, middle, to));
+                return;
+            }
+            try {
+                for (int i = from; i < to; i++) {
+                    byte[] seed = LamportKeyDerivation.getIndexedSeed(privateKey, chunkStart + i);
+                    byte[] leaf = HashUtility.sha256(getLamportPublicKey(seed));
+                    System.arraycopy(leaf, 0, leaves, i * MerkleLayerStore.NODE_SIZE, MerkleLayerStore.NODE_SIZE);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println("CRITICAL ERROR: NO SHA1PRNG SUPPORT!");
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    /**
+     * Hashes pairs [from, to) of a chunk of child nodes into their parents.
+     */
+    private static class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] children;
+        private final byte[] parents;
+        private final int from;
+        private final int to;
+
+        PairTask(byte[] children, byte[] parents, int from, int to) {
+            this.children = children;
+            this.parents = parents;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > PAIRS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PairTask(children, parents, from, middle), new PairTask(children, parents, middle, to));
+                return;
+            }
+            byte[] child = new byte[MerkleLayerStore.NODE_SIZE];
+            for (int i = from; i < to; i++) {
+                System.arraycopy(children, i * 2 * MerkleLayerStore.NODE_SIZE, child, 0, MerkleLayerStore.NODE_SIZE);
+                String left = base64.encodeAsString(child);
+                System.arraycopy(children, (i * 2 + 1) * MerkleLayerStore.NODE_SIZE, child, 0, MerkleLayerStore.NODE_SIZE);
+                String right = base64.encodeAsString(child);
+                byte[] parent = HashUtility.sha256(left + right);
+                System.arraycopy(parent, 0, parents, i * MerkleLayerStore.NODE_SIZE, MerkleLayerStore.NODE_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Expands a keypair's seed into its 200 Lamport Private Key Parts and returns the Lamport Public Key: the 16-character SHA256Short of each
+     * part, except the last two, which are full SHA512 hashes--the same strings a verifier rebuilds from a signature.
+     */
+    private static String getLamportPublicKey(byte[] seed) throws NoSuchAlgorithmException {
+        SecureRandom lmpPrivGen = SecureRandom.getInstance("SHA1PRNG");
+        lmpPrivGen.setSeed(seed);
+        StringBuilder publicKey = new StringBuilder(198 * 16 + 2 * 88);
+        char[] privateKeyPart = new char[20];
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < privateKeyPart.length; j++) {
+                privateKeyPart[j] = CS.charAt(lmpPrivGen.nextInt(CS.length()));
+            }
+            byte[] partBytes = new String(privateKeyPart).getBytes(StandardCharsets.UTF_8);
+            if (i < 198) {
+                publicKey.append(base64.encodeAsString(HashUtility.sha256(partBytes)), 0, 16);
+            } else {
+                publicKey.append(base64.encodeAsString(HashUtility.sha512(partBytes)));
+            }
+        }
+        return publicKey.toString();
+    }
+}
@@ -14,14 +14,13 @@ import java.security.*;
 * Signature Public Key.
 * Each Lamport Signature Private Key is used to sign exactly one transaction.
 * A Merkle Tree with 14 layers can sign 8192 transactions, and one with 18 layers can sign 131,072 transactions
-* The Lamport Signature Private Key Parts are generated by seeding a SecureRandom object with a byte array representation of the private key
+* The Lamport Signature Private Key Parts are generated by seeding a SecureRandom object with a private seed derived from the private key and the
+* keypair's index (see LamportKeyDerivation)
 * As they are trivial to produce, are relatively large, and can be produced one-demand for signatures, these Lamport Private Keys are generated
 * when they are needed, rather than stored.
 * The higher layers of the Merkle Tree are easy to store, and take a long time to gerate, and therefore are stored on the hard drive.
 * The entire tree could be deterministically reproduced for each signature, if desired
-* Rather than generating all of the Lamport Signatures from the same SecureRandom object seeded with the private key
-* is used to generate all of the private sêds, one for each Lamport Private Key. Thí reduces the time to produce Lamport Private Keys
-* for signatures by a factor ò nearly 2*SIGNATURE_BITS
+* The hashing itself is done by MerkleTreeBuilder, in parallel, one layer at a time, streaming each binary layer to disk.
 **/
 
 public class MerkleTreeGenLimitless {
@@ -34,7 +33,6 @@ public class MerkleTreeGenLimitless {
     private SecureRandom lmpPrivGen;
     private static org.apache.commons.codec.binary.Base32 base32 = new org.apache.commons.codec.binary.Base32();
     private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
-    private MessageDigest md;
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
@@ -80,7 +78,7 @@ public class MerkleTreeGenLimitless {
     }
 
     /**
-    * Constructor readies the MessageDigest md object to compute SHA-256 hashes, and ensures existance
+    * Constructor ensures existance
     * of address folder for storing the Merkle Tress. Also checks for availability or SHA1PRNG
     **/
     public MerkleTreeGenLimitless() {
@@ -90,14 +88,6 @@ public class MerkleTreeGenLimitless {
             System.out.println("CRITICAL ERROR: NO SHA1PRNG SUPPORT! EXITING APPICATION");
             e.printStackTrace();
         }
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("CRITICAL ERROR: NO SHA-256 SUPPORT! EXITING APPICATION");
-            e.printStackTrace();
-            System.exit(-1);
-        }
-
         try { // Check for addresses folder, if it doesn't< exist, creates. If it fails (likely due to write permission issues), the application exits.
             File addressFolder = new File("addresses");
             if (!addressFolder.exists()) {
@@ -130,122 +120,59 @@ public class MerkleTreeGenLimitless {
         if (privateKey == null) {
             return null;
         }
-        generateScratchFile("scratch", privateKey, numLayers, numThreads, keysPerThread);
-        return generateMerkleTreeFromScratchFile("scratch", numLayers);
+        if (!generateScratchFile("scratch", privateKey, numLayers, numThreads, keysPerThread)) {
+            return null;
+        }
+        return generateMerkleTreeFromScratchFile("scratch", numLayers, numThreads);
     }
 
+    /**
+    * Computes the bottom layer of the Merkle Tree (the hashed Lamport Public Keys) into a scratch file, in the binary layer format.
+    * Leaves are hashed on numThreads threads, numThreads * keysPerThread at a time, and written out as each batch finishes.
+    *
+    * @param scratchName Name of the scratch file to write
+    * @param privateKey The private key of the address
+    * @param numLayers The number of layers in the Merkle Tree
+    * @param numThreads Number of threads to hash on
+    * @param keysPerThread Leaves per thread in each batch
+    * @return boolean Whether the scratch file was written successfully
+    **/
     public boolean generateScratchFile(String scratchName, String privateKey, int numLayers, int numThreads, int keysPerThread) {
-        ArrayList<LamportGenThread> threads = new ArrayList<LamportGenThread>(); // ArrayList to hold worker threads
-        for (int i = 0; i < numThreads; i++) {
-            threads.add(new LamportGenThread()); // Initial setup, sanity check, and to make the normal thread removal loop not require a conditional.
-        }
+        MerkleTreeBuilder builder = new MerkleTreeBuilder(numThreads, Math.max(1, numThreads) * Math.max(1, keysPerThread));
         try {
-            // SecureRandom seeded by privateKey will be used to generate private seeds for all Merkle Trees
-            SecureRandom generatePrivateSeeds = SecureRandom.getInstance("SHA1PRNG");
-            generatePrivateSeeds.setSeed(privateKey.getBytes());
-            // First layer will hold hashs of Lamport PrivateKey bases, which must be generated
-            long lastPrint = System.currentTimeMillis();
-            PrintWriter scratch = new PrintWriter(new File(scratchName));
-
-            for (int i = 0; i < (int) Math.pow(2, (numLayers - 1)); i++) {
-                System.out.println(i + "/" + Math.pow(2, (numLayers - 1)));
-                double increaseInKeys = (numThreads * keysPerThread);
-                double timeChange = System.currentTimeMillis() - lastPrint;
-                lastPrint = System.currentTimeMillis();
-                double keyPerSecond = increaseInKeys / (timeChange / 1000);
-                System.out.println("Rate: " + keyPerSecond + " keys per second.");
-//                generatePrivateSeeds.nextBytes(privateSeeds);
-                for (int j = 0; j < numThreads; j++) { // Clear new threads for generating thread
-                    threads.remove(0);
-                }
-                for (int j = 0; j < numThreads; j++) { // Create new thread for generating public keys
-                    threads.add(new LamportGenThread());
-                }
-                for (int j = 0; j < numThreads; j++) { // Fill in seeds for all generation threads
-                    byte[][] seeds=new byte[keysPerThread][100]; // 100 bits used as private key
-                    for (int q = 0; q < keysPerThread; q++) {
-                        generatePrivateSeeds.nextBytes(seeds[q]);
-                    }
-                    threads.get(j).setData(seeds, keysPerThread);
-                }
-
-                for (int j = 0; j < numThreads; j++) { // Start worker threads
-                    threads.get(j).start();
-                }
-
-                int offset = 0; // Handle increments to i to keep on track with mu;tithreaded progress. Originally, this for loop ran once for every public Lamport keyset.
-                for (int j = 0; j < numThreads; j++) {
-                    threads.get(j).join(); // Wait for thread to finish
-                    String[] keys = threads.get(j).getPublicKeys(); // Retrieve public keys in order
-                    for (int q = 0; q < keysPerThread; q++) {
-                        if ((int) Math.pow(2, (numLayers - 1)) > (i + offset + q)) { // Not be the base size required for the tree
-                            scratch.println(keys[q]);
-                        }
-                    }
-                    offset += keysPerThread; // Add keysPerThread each time through the loop to keep offset at the proper location in the base tree
-                }
-                i += (numThreads * keysPerThread) - 1; // Subtract one for loop adds 1 every loop
-            }
-            scratch.close();
-            return true;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return false;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return false;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return false;
+            return builder.buildLeafLayer(privateKey, numLayers, new File(scratchName));
+        } finally {
+            builder.shutdown();
         }
     }
 
+    public String generateMerkleTreeFromScratchFile(String scratchFileName, int numLayers) {
+        return generateMerkleTreeFromScratchFile(scratchFileName, numLayers, Runtime.getRuntime().availableProcessors());
+    }
+
     /**
-    * This method will produce a Merkle Tree for the given privateKey and number of layers.
-    * All use of SecureRandom is seeded by the privateKey, so multiple calls to generateMerkleTree() with the same
-    * parameters will yield the exact same Merkle Tree.
-    * Produced Merkle Tree is saved to the addresses folder.
-    * @paramprivateKey A String which holds the plaintext private key of address, generally generated by SecureStringGenerator
+    * This method will produce a Merkle Tree from a scratch file holding its bottom layer (see generateScratchFile()).
+    * Produced Merkle Tree is saved to the addresses folder as binary layer files (see MerkleLayerStore).
+    * @param scratchFileName Name of the scratch file holding the bottom layer
     * @param numLayers The number of layers to build the Merkle Tree out of. A Merkle Tree of n layers can sign 2^(n-1) transactions
     * Note that layers include the bottom hashed private key parts, as well as the top, which contains the address.
-    * @return boolean A boolean indicating whether the generation and saving of the Merkle Tree was successful
+    * @param numThreads Number of threads to hash on
+    * @return String The address at the top of the Merkle Tree, or null if generation failed
     **/
-
-    public String generateMerkleTreeFromScratchFile(String scratchFileName, int numLayers) {
+    public String generateMerkleTreeFromScratchFile(String scratchFileName, int numLayers, int numThreads) {
+        MerkleTreeBuilder builder = new MerkleTreeBuilder(numThreads, 1);
         try {
             String tempDir = new Random().nextInt(10000000) + ""; // Name of temporary directory to hold progress files. Not deleted on failure for manual recovery purposes
             File tempDirFile = new File(tempDir);
             tempDirFile.mkdir();
 
             File layer0File = new File(scratchFileName);
-            File layer0Destination = new File(tempDir+"/layer0.lyr");
-            Files.move(layer0File.toPath(), layer0Destination.toPath());
-            for (int i = 0; i < numLayers - 1; i++) {
-                PrintWriter out = new PrintWriter(new File(tempDir + "/layer" + i + ".lyr"));
-                Scanner scanPreviousLayer = new Scanner(new File(tempDir + "/layer" + (i - 1) + ".lyr"));
-                int readCount = 0;
-                long previousTime = System.currentTimeMillis();
-                while (scanPreviousLayer.hasNextLine()) {
-                    readCount++;
-                    if (readCount % 100000 == 0) {
-                        System.out.println((100000.0) / (((double) System.currentTimeMillis() - (double) previousTime) / 1000.0) + "entries per second.");
-                        previousTime = System.currentTimeMillis();
-                    }
-                    out.println(SHA256(scanPreviousLayer.nextLine()));
-                }
-                scanPreviousLayer.close();
-                out.close();
+            Files.move(layer0File.toPath(), MerkleLayerStore.getBinaryLayerFile(tempDirFile, 0).toPath());
+            byte[] top = builder.buildInnerLayers(tempDirFile, numLayers);
+            if (top == null) {
+                return null;
             }
-
-            File preAddressFile = new File(tempDir + "/layer" + (numLayers - 2) + ".lyr");
-            Scanner scanForAddress = new Scanner(preAddressFile);
-            String one = scanForAddress.nextLine();
-            String two = scanForAddress.nextLine();
-            scanForAddress.close();
-            PrintWriter outFinalLayer = new PrintWriter(new File(tempDir + "/layer" + (numLayers - 1) + ".lyr"));
-            outFinalLayer.println(SHA256(one + two));
-            outFinalLayer.close();
-            String preAddress = SHA256ReturnBase32(one + two);
+            String preAddress = base32.encodeAsString(top).substring(0, 32);
             String address; // C# + pre-address + first 4 chractors of hash of pre-address (nanity check, protect against mistypes)
 
             if (numLayers == 14) {
@@ -266,9 +193,7 @@ public class MerkleTreeGenLimitless {
             if (!addressFile.exists()) {
                 addressFile.mkdir();
                 for (int i = 0; i < numLayers; i++) {
-                    File layerFile = new File(tempDir + "layer" + i + ".lyr");
-                    File layerDestination = new File("addresses/" + address + "/layer" + i + ".lyr");
-                    Files.move(layerFile.toPath(), layerDestination.toPath());
+                    Files.move(MerkleLayerStore.getBinaryLayerFile(tempDirFile, i).toPath(), MerkleLayerStore.getBinaryLayerFile(addressFile, i).toPath());
                 }
 
                 tempDirFile.delete();
@@ -276,11 +201,14 @@ public class MerkleTreeGenLimitless {
                 infoFileWriter.println("address: " + address);
                 infoFileWriter.println("layers: " + numLayers);
                 infoFileWriter.println("software_version: 2.0.0a");
+                infoFileWriter.println("key_derivation: " + LamportKeyDerivation.INDEXED);
                 infoFileWriter.close();
             }
             return address;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            builder.shutdown();
         }
         return null;
     }
@@ -306,12 +234,7 @@ public class MerkleTreeGenLimitless {
     * \*/
     @SuppressWarnings("unused")
     private String SHA256Short(String toHash) { // Each hash is shortened to 16 charactoers based on a 64-charactoer charset. 64^16=79,228,162,514,264,337,593,543,950,336 (Aka more than enough for Lamport)
-        try {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8"))).substring(0, 16);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base64.encodeAsString(HashUtility.sha256(toHash)).substring(0, 16);
     }
 
     /**
@@ -322,12 +245,7 @@ public class MerkleTreeGenLimitless {
      */
 
     private String SHA256(String toHash) {
-        try {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base64.encodeAsString(HashUtility.sha256(toHash));
     }
 
     /**
@@ -337,11 +255,6 @@ public class MerkleTreeGenLimitless {
      * @return String the base32-encoded String representing the entire SHA256 hash of toHash
      */
     private String SHA256ReturnBase32(String toHash) {
-        try {
-            return base32.encodeAsString(md.digest(toHash.getBytes("UTF-8"))).substring(0, 32);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return base32.encodeAsString(HashUtility.sha256(toHash)).substring(0, 32);
     }
 }
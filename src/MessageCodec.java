@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encodings of the two big network messages, BLOCK and TRANSACTION, used by the binary wire protocol.
+ *
+ * Both are dominated by Merkle signatures, which in text form are base64 and alphanumeric characters. Here every transaction goes out in
+ * Transaction's binary form and every signature in MerkleSignature's, so the hashes inside them travel as raw bytes. Anything that isn't in
+ * canonical shape is carried as text instead, so decoding always restores the exact original String--blocks are hashed and relayed as text, and a
+ * single changed character would make them a different block.
+ */
+public class MessageCodec {
+    private static final int TEXT = 0;
+    private static final int BINARY = 1;
+    private static final int MAX_ITEMS = 100000; // Sanity limit on transactions or segments in one message
+
+    /**
+     * Encodes a raw block. The block text is split into the header up to the transaction list, the transactions (separated by '*'), and the
+     * remainder--certificate, block hash, miner signature--which is split on "},{" so that each signature is a segment of its own.
+     *
+     * @param rawBlock The raw block, as sent after "BLOCK "
+     * @return byte[] The encoded block, or null if the text doesn't have the shape of a block (send it as text instead)
+     */
+    public static byte[] encodeBlock(String rawBlock) {
+        int headerEnd = rawBlock.indexOf("}");
+        headerEnd = headerEnd < 0 ? -1 : rawBlock.indexOf("}", headerEnd + 1);
+        if (headerEnd < 0 || !rawBlock.startsWith(",{", headerEnd + 1)) {
+            return null;
+        }
+        int transactionsStart = headerEnd + 3;
+        int transactionsEnd = rawBlock.indexOf("}", transactionsStart);
+        if (transactionsEnd < 0) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(rawBlock.length() / 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeText(out, rawBlock.substring(0, transactionsStart));
+            String transactionsSection = rawBlock.substring(transactionsStart, transactionsEnd);
+            String[] transactions = transactionsSection.length() == 0 ? new String[0] : transactionsSection.split("\\*", -1);
+            out.writeInt(transactions.length);
+            for (int i = 0; i < transactions.length; i++) {
+                writeTransaction(out, transactions[i]);
+            }
+            String[] segments = rawBlock.substring(transactionsEnd).split("\\},\\{", -1);
+            out.writeInt(segments.length);
+            for (int i = 0; i < segments.length; i++) {
+                writeSignatureOrText(out, segments[i]);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Restores the raw block text from encodeBlock().
+     *
+     * @param encoded The encoded block
+     * @return String The raw block
+     * @throws IOException If encoded is malformed
+     */
+    public static String decodeBlock(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        StringBuilder rawBlock = new StringBuilder(encoded.length * 2);
+        rawBlock.append(readText(in));
+        int transactionCount = readCount(in);
+        for (int i = 0; i < transactionCount; i++) {
+            if (i > 0) {
+                rawBlock.append("*");
+            }
+            rawBlock.append(readTransaction(in));
+        }
+        int segmentCount = readCount(in);
+        for (int i = 0; i < segmentCount; i++) {
+            if (i > 0) {
+                rawBlock.append("},{");
+            }
+            rawBlock.append(readSignatureOrText(in));
+        }
+        return rawBlock.toString();
+    }
+
+    /**
+     * @param rawTransaction The raw transaction, as sent after "TRANSACTION "
+     * @return byte[] The encoded transaction
+     */
+    public static byte[] encodeTransaction(String rawTransaction) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(rawTransaction.length() / 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeTransaction(out, rawTransaction);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param encoded The encoded transaction
+     * @return String The raw transaction text
+     * @throws IOException If encoded is malformed
+     */
+    public static String decodeTransaction(byte[] encoded) throws IOException {
+        return readTransaction(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+
+    private static void writeTransaction(DataOutputStream out, String rawTransaction) throws IOException {
+        Transaction transaction = Transaction.fromString(rawTransaction);
+        if (transaction != null && transaction.toString().equals(rawTransaction)) {
+            out.writeByte(BINARY);
+            transaction.writeTo(out);
+        } else {
+            out.writeByte(TEXT);
+            writeText(out, rawTransaction);
+        }
+    }
+
+    private static String readTransaction(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() == BINARY) {
+            return Transaction.readFrom(in).toString();
+        }
+        return readText(in);
+    }
+
+    private static void writeSignatureOrText(DataOutputStream out, String segment) throws IOException {
+        if (segment.indexOf(',') > 0) {
+            MerkleSignature signature = MerkleSignature.fromString(segment);
+            if (signature.isDecoded() && signature.toString().equals(segment)) {
+                out.writeByte(BINARY);
+                signature.writeTo(out);
+                return;
+            }
+        }
+        out.writeByte(TEXT);
+        writeText(out, segment);
+    }
+
+    private static String readSignatureOrText(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() == BINARY) {
+            return MerkleSignature.readFrom(in).toString();
+        }
+        return readText(in);
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > PeerConnection.MAX_MESSAGE_SIZE) {
+            throw new IOException("Bad text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ITEMS) {
+            throw new IOException("Bad item count " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,261 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Searches a certificate's nonce range for a score below the network target, on a pool of worker threads.
+ *
+ * A certificate is mined by hashing {certificateMessage},{nonce} for every nonce from 0 to maxNonce. Everything up to the nonce is the same for
+ * every hash, so it's encoded to bytes once; each nonce then only writes its digits and closing brace into a small buffer. The range is split into
+ * one slice per worker, and once any worker finds a score below the target the others stop at their next check--any nonce below the target wins
+ * the block, so there's no point finishing the range.
+ *
+ * Scans run in the background: submit() returns straight away, and the main loop picks finished scans up from getFinishedScans(), the same way
+ * it collects blocks from the BlockVerifier.
+ */
+public class NonceScanner {
+    private static final int NONCES_PER_CHECK = 4096; // Nonces hashed between checks of whether another slice already beat the target
+
+    private ExecutorService workers;
+    private int threadCount;
+    private LinkedList<Scan> pending;
+
+    /**
+     * The outcome of a scan. When the scan stopped early, nonce is the first one found below the target rather than the best in the range.
+     */
+    public static class ScanResult {
+        public final Certificate certificate;
+        public final Object owner;
+        public final long target;
+        public final int nonce;
+        public final long score;
+
+        public ScanResult(Certificate certificate, Object owner, long target, int nonce, long score) {
+            this.certificate = certificate;
+            this.owner = owner;
+            this.target = target;
+            this.nonce = nonce;
+            this.score = score;
+        }
+    }
+
+    /**
+     * A submitted scan: one future per slice of the nonce range.
+     */
+    private static class Scan {
+        final Certificate certificate;
+        final Object owner;
+        final long target;
+        final ArrayList<Future<long[]>> slices;
+
+        Scan(Certificate certificate, Object owner, long target) {
+            this.certificate = certificate;
+            this.owner = owner;
+            this.target = target;
+            this.slices = new ArrayList<Future<long[]>>();
+        }
+
+        boolean isDone() {
+            for (int i = 0; i < slices.size(); i++) {
+                if (!slices.get(i).isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Starts one worker thread per available processor.
+     */
+    public NonceScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount Number of worker threads to hash on
+     */
+    public NonceScanner(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+        this.pending = new LinkedList<Scan>();
+        this.workers = Executors.newFixedThreadPool(this.threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NonceScanner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a scan of the certificate's whole nonce range.
+     *
+     * @param certificate The certificate to mine
+     * @param target      Scores below this win a block; the scan stops once one is found. 0 scans the whole range for the best score.
+     * @param owner       Handed back with the result, to tell scans apart (the RPC thread that asked, for example)
+     */
+    public synchronized void submit(Certificate certificate, long target, Object owner) {
+        final byte[] prefix = getNoncePrefix(certificate);
+        final long sliceTarget = target;
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Scan scan = new Scan(certificate, owner, target);
+        int maxNonce = Math.max(0, certificate.maxNonce);
+        int sliceSize = Math.max(NONCES_PER_CHECK, (int) (((long) maxNonce + threadCount - 1) / threadCount));
+        for (long start = 0; start < maxNonce; start += sliceSize) {
+            final int from = (int) start;
+            final int to = (int) Math.min(maxNonce, start + sliceSize);
+            scan.slices.add(workers.submit(new Callable<long[]>() {
+                public long[] call() {
+                    return scanRange(prefix, from, to, sliceTarget, stop);
+                }
+            }));
+        }
+        pending.add(scan);
+    }
+
+    /**
+     * Returns every scan that has finished, in no particular order.
+     *
+     * @return ArrayList<ScanResult> Finished scans
+     */
+    public synchronized ArrayList<ScanResult> getFinishedScans() {
+        ArrayList<ScanResult> finished = new ArrayList<ScanResult>();
+        Iterator<Scan> scans = pending.iterator();
+        while (scans.hasNext()) {
+            Scan scan = scans.next();
+            if (!scan.isDone()) {
+                continue;
+            }
+            scans.remove();
+            long bestScore = Long.MAX_VALUE;
+            int bestNonce = -1;
+            for (int i = 0; i < scan.slices.size(); i++) {
+                try {
+                    long[] slice = scan.slices.get(i).get();
+                    if (slice[0] >= 0 && slice[1] < bestScore) {
+                        bestNonce = (int) slice[0];
+                        bestScore = slice[1];
+                    }
+                } catch (Exception e) {
+                    System.out.println("[CRITICAL ERROR] Unable to scan certificate nonces!");
+                    e.printStackTrace();
+                }
+            }
+            finished.add(new ScanResult(scan.certificate, scan.owner, scan.target, bestNonce, bestScore));
+        }
+        return finished;
+    }
+
+    /**
+     * @return int Number of scans submitted but not yet handed back
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the worker threads. Scans still running are abandoned.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * @param certificate The certificate being mined
+     * @return byte[] The UTF-8 bytes every nonce of the certificate is appended to: the certificate message followed by ",{"
+     */
+    public static byte[] getNoncePrefix(Certificate certificate) {
+        return (certificate.getCertificateMessage() + ",{").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param prefix Nonce prefix, from getNoncePrefix()
+     * @param nonce  The nonce to score
+     * @return long The score of the nonce, Long.MAX_VALUE if it's negative
+     */
+    public static long getScore(byte[] prefix, int nonce) {
+        MessageDigest digest = HashUtility.getSha256Digest();
+        byte[] suffix = new byte[12];
+        digest.update(prefix);
+        digest.update(suffix, 0, writeNonceSuffix(nonce, suffix));
+        long score = scoreOf(digest.digest());
+        return score < 0 ? Long.MAX_VALUE : score;
+    }
+
+    /**
+     * Hashes nonces [from, to) after prefix and returns the lowest positive score among them. Stops early once a score falls below target, and
+     * gives up if stop is set by another slice that did.
+     *
+     * @param prefix Nonce prefix, from getNoncePrefix()
+     * @param from   First nonce to hash
+     * @param to     One past the last nonce to hash
+     * @param target Score to stop below, or 0 to never stop early
+     * @param stop   Shared between the slices of one scan; may be null
+     * @return long[] {bestNonce, bestScore}, bestNonce being -1 if no nonce scored above 0
+     */
+    public static long[] scanRange(byte[] prefix, int from, int to, long target, AtomicBoolean stop) {
+        MessageDigest digest = HashUtility.getSha256Digest();
+        byte[] suffix = new byte[12];
+        byte[] hash = new byte[32];
+        long bestScore = Long.MAX_VALUE;
+        long bestNonce = -1;
+        try {
+            for (int i = from; i < to; i++) {
+                if ((i - from) % NONCES_PER_CHECK == 0 && stop != null && stop.get()) {
+                    break;
+                }
+                digest.update(prefix);
+                digest.update(suffix, 0, writeNonceSuffix(i, suffix));
+                digest.digest(hash, 0, 32);
+                long score = scoreOf(hash);
+                if (score < bestScore && score > 0) { // Negative scores are huge once read unsigned; see Certificate.getMinCertificateScoreWithNonce()
+                    bestScore = score;
+                    bestNonce = i;
+                    if (bestScore < target) {
+                        if (stop != null) {
+                            stop.set(true);
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (DigestException e) {
+            System.out.println("[CRITICAL ERROR] Unable to hash certificate nonces!");
+            e.printStackTrace();
+        }
+        return new long[]{bestNonce, bestScore};
+    }
+
+    /**
+     * Reads the first 8 bytes of a hash as a signed long.
+     */
+    private static long scoreOf(byte[] hash) {
+        long score = 0L;
+        for (int i = 0; i < 8; i++) {
+            score = (hash[i] & 0xff) + (score << 8);
+        }
+        return score;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative nonce followed by '}' into suffix.
+     *
+     * @return int Number of bytes written
+     */
+    private static int writeNonceSuffix(int nonce, byte[] suffix) {
+        int length = 1;
+        for (int remaining = nonce / 10; remaining > 0; remaining /= 10) {
+            length++;
+        }
+        int value = nonce;
+        for (int i = length - 1; i >= 0; i--) {
+            suffix[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        suffix[length] = '}';
+        return length + 1;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.*;
+
+/**
+ * Holds blocks whose previous block hasn't been connected yet, indexed by the hash of the block they're waiting for. During initial sync blocks
+ * arrive out of order by the hundreds; instead of re-trying the whole pool every time anything changes, Blockchain asks for the children of each
+ * block that connects, and only those are tried.
+ *
+ * The pool is bounded: once it holds MAX_ORPHANS blocks, the oldest orphan is dropped to make room. A dropped block will simply be requested again.
+ */
+public class OrphanBlockPool {
+    public static final int MAX_ORPHANS = 2000;
+
+    private HashMap<String, ArrayList<Block>> orphansByParent;
+    private LinkedHashMap<String, Block> orphansByHash; // Iterates oldest-first, for eviction
+
+    public OrphanBlockPool() {
+        this.orphansByParent = new HashMap<String, ArrayList<Block>>();
+        this.orphansByHash = new LinkedHashMap<String, Block>();
+    }
+
+    /**
+     * Adds a block to the pool.
+     *
+     * @param block Block whose previous block isn't known yet
+     * @return boolean Whether the block was added; false if it was already in the pool
+     */
+    public synchronized boolean addOrphan(Block block) {
+        if (orphansByHash.containsKey(block.blockHash)) {
+            return false;
+        }
+        if (orphansByHash.size() >= MAX_ORPHANS) {
+            removeOrphan(orphansByHash.values().iterator().next());
+        }
+        orphansByHash.put(block.blockHash, block);
+        ArrayList<Block> siblings = orphansByParent.get(block.previousBlockHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Block>();
+            orphansByParent.put(block.previousBlockHash, siblings);
+        }
+        siblings.add(block);
+        return true;
+    }
+
+    /**
+     * Removes and returns all orphans that were waiting for the given block.
+     *
+     * @param parentHash Hash of the block that was just connected
+     * @return ArrayList<Block> The blocks built directly on parentHash, empty if there are none
+     */
+    public synchronized ArrayList<Block> removeChildren(String parentHash) {
+        ArrayList<Block> children = orphansByParent.remove(parentHash);
+        if (children == null) {
+            return new ArrayList<Block>();
+        }
+        for (int i = 0; i < children.size(); i++) {
+            orphansByHash.remove(children.get(i).blockHash);
+        }
+        return children;
+    }
+
+    /**
+     * @param blockHash Hash of a block
+     * @return boolean Whether the block is waiting in the pool
+     */
+    public synchronized boolean contains(String blockHash) {
+        return orphansByHash.containsKey(blockHash);
+    }
+
+    /**
+     * @return ArrayList<String> Hashes of every block that orphans in the pool are waiting for
+     */
+    public synchronized ArrayList<String> getMissingParents() {
+        return new ArrayList<String>(orphansByParent.keySet());
+    }
+
+    /**
+     * @return int Number of blocks in the pool
+     */
+    public synchronized int size() {
+        return orphansByHash.size();
+    }
+
+    private void removeOrphan(Block block) {
+        orphansByHash.remove(block.blockHash);
+        ArrayList<Block> siblings = orphansByParent.get(block.previousBlockHash);
+        if (siblings != null) {
+            siblings.remove(block);
+            if (siblings.size() == 0) {
+                orphansByParent.remove(block.previousBlockHash);
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One peer connection on the PeerNetwork selector. Holds the peer's socket channel, the partial message being read from it, and the queue of
+ * messages waiting to be written to it.
+ *
+ * Messages start out as lines of UTF-8 text, and switch to WireProtocol frames in each direction once both peers have offered the binary
+ * protocol (see WireProtocol for the handshake). Either way the rest of the node only ever sees message lines. send() may be called from any
+ * thread: it only queues the message, already encoded for the peer, and asks the selector thread to write it, so a slow peer never holds up the
+ * caller. Reading and writing happen on the selector thread alone.
+ *
+ * Backpressure works in both directions. While a peer has more than READ_PAUSE_BYTES waiting to be written to it, or more than
+ * MAX_UNDELIVERED_MESSAGES received but not yet handled by the main loop, nothing more is read from it--a peer that floods requests without
+ * reading the answers is simply left waiting. A peer whose write queue grows past MAX_QUEUED_BYTES anyway (from broadcasts) is disconnected.
+ */
+public class PeerConnection {
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024; // Longest message accepted from a peer, in bytes
+    private static final long READ_PAUSE_BYTES = 4 * 1024 * 1024; // Stop reading from a peer while this much is waiting to be written to it
+    private static final long MAX_QUEUED_BYTES = 32 * 1024 * 1024; // Disconnect a peer once this much is waiting to be written to it
+    private static final int MAX_UNDELIVERED_MESSAGES = 1000; // Stop reading from a peer while this many of its messages wait for the main loop
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_KNOWN_INVENTORY = 20000; // Inventory ids remembered per peer; older ones may occasionally be announced twice
+
+    private final PeerNetwork network;
+    private final SocketChannel channel;
+    private final String remoteAddress;
+    private final boolean outbound;
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] received = new byte[READ_BUFFER_SIZE]; // Bytes read but not yet part of a complete message
+    private int receivedCount = 0;
+    private int scannedCount = 0; // How much of received has already been searched for a line terminator
+    private boolean binaryReads = false;
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+    private long queuedBytes = 0;
+    private boolean binaryWrites = false; // Guarded by writeQueue, like wire's deflate stream
+    private WireProtocol wire; // Set once the peer's HELLO_BINARY arrives
+    private final AtomicInteger undeliveredMessages = new AtomicInteger();
+    private volatile boolean open = true;
+    private volatile boolean inventoryRelay = false;
+    private final BoundedCache<String, Boolean> knownInventory = new BoundedCache<String, Boolean>(MAX_KNOWN_INVENTORY);
+
+    /**
+     * @param network  The network whose selector services this connection
+     * @param channel  The connected (or connecting) channel
+     * @param remote   The peer's address
+     * @param outbound Whether we opened the connection, rather than the peer
+     */
+    PeerConnection(PeerNetwork network, SocketChannel channel, InetSocketAddress remote, boolean outbound) {
+        this.network = network;
+        this.channel = channel;
+        this.remoteAddress = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        this.outbound = outbound;
+    }
+
+    /**
+     * Queues a message to be written to the peer as soon as the socket accepts it.
+     *
+     * @param data The message, without a line terminator
+     * @return boolean Whether the message was queued; false if the connection is closed or the peer has fallen too far behind
+     */
+    public boolean send(String data) {
+        return send(new WireProtocol.OutgoingMessage(data));
+    }
+
+    /**
+     * Queues a message that may be going to several peers; see send(String).
+     *
+     * @param message The message
+     * @return boolean Whether the message was queued
+     */
+    public boolean send(WireProtocol.OutgoingMessage message) {
+        if (!open) {
+            return false;
+        }
+        boolean overflowed;
+        synchronized (writeQueue) {
+            if (!open) {
+                return false;
+            }
+            ByteBuffer encoded = binaryWrites ? wire.encodeFrame(message) : ByteBuffer.wrap(message.getTextBytes());
+            queuedBytes += encoded.remaining();
+            writeQueue.add(encoded);
+            overflowed = queuedBytes > MAX_QUEUED_BYTES;
+        }
+        if (overflowed) {
+            System.out.println("Peer " + remoteAddress + " is not keeping up with its messages; disconnecting");
+            network.requestClose(this);
+            return false;
+        }
+        network.requestInterestUpdate(this);
+        return true;
+    }
+
+    /**
+     * @return String The peer's address as host:port
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return boolean Whether we opened the connection, rather than the peer
+     */
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    /**
+     * @return boolean Whether the connection is still open
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return boolean Whether messages to this peer are sent as binary frames
+     */
+    public boolean isBinary() {
+        synchronized (writeQueue) {
+            return binaryWrites;
+        }
+    }
+
+    /**
+     * @return boolean Whether the peer said in its handshake that it gossips through INV/GETDATA
+     */
+    public boolean supportsInventory() {
+        return inventoryRelay;
+    }
+
+    /**
+     * Records that the peer has a block or transaction, because it sent or announced it or we did.
+     *
+     * @param inventoryId Id from InventoryRelay.getInventoryId()
+     */
+    public void addKnownInventory(String inventoryId) {
+        knownInventory.put(inventoryId, Boolean.TRUE);
+    }
+
+    /**
+     * @param inventoryId Id from InventoryRelay.getInventoryId()
+     * @return boolean Whether the peer is known to have the item
+     */
+    public boolean hasKnownInventory(String inventoryId) {
+        return knownInventory.containsKey(inventoryId);
+    }
+
+    /**
+     * @return long Bytes waiting to be written to the peer
+     */
+    public long getQueuedBytes() {
+        synchronized (writeQueue) {
+            return queuedBytes;
+        }
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called when the main loop takes one of this peer's messages.
+     */
+    void messageDelivered() {
+        if (undeliveredMessages.decrementAndGet() == MAX_UNDELIVERED_MESSAGES - 1) {
+            network.requestInterestUpdate(this);
+        }
+    }
+
+    /**
+     * Reads whatever the socket has and splits it into complete messages--text lines or binary frames, depending on how far the handshake has got.
+     * Selector thread only.
+     *
+     * @return ArrayList<String> Complete messages read, or null if the peer closed the connection
+     * @throws IOException If the socket fails or the peer sends an oversized or corrupt message
+     */
+    ArrayList<String> readMessages() throws IOException {
+        ArrayList<String> messages = new ArrayList<String>();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            return null;
+        }
+        readBuffer.flip();
+        if (receivedCount + readBuffer.remaining() > received.length) {
+            received = Arrays.copyOf(received, Math.max(received.length * 2, receivedCount + readBuffer.remaining()));
+        }
+        readBuffer.get(received, receivedCount, readBuffer.remaining());
+        receivedCount += read;
+        readBuffer.clear();
+        int position = 0;
+        while (true) {
+            if (!binaryReads) {
+                int end = -1;
+                for (int i = Math.max(position, scannedCount); i < receivedCount; i++) {
+                    if (received[i] == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    scannedCount = receivedCount;
+                    break;
+                }
+                int length = end - position;
+                if (length > 0 && received[end - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(received, position, length, StandardCharsets.UTF_8);
+                position = end + 1;
+                scannedCount = position;
+                handleLine(line, messages);
+            } else {
+                if (receivedCount - position < WireProtocol.HEADER_SIZE) {
+                    break;
+                }
+                ByteBuffer header = ByteBuffer.wrap(received, position, WireProtocol.HEADER_SIZE);
+                int version = header.get();
+                byte type = header.get();
+                byte flags = header.get();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (version != WireProtocol.VERSION || length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Bad frame header from " + remoteAddress);
+                }
+                if (receivedCount - position - WireProtocol.HEADER_SIZE < length) {
+                    break;
+                }
+                int payloadStart = position + WireProtocol.HEADER_SIZE;
+                byte[] payload = Arrays.copyOfRange(received, payloadStart, payloadStart + length);
+                position = payloadStart + length;
+                messages.add(wire.decodeFrame(type, flags, payload, checksum));
+            }
+        }
+        System.arraycopy(received, position, received, 0, receivedCount - position);
+        receivedCount -= position;
+        scannedCount = Math.max(0, scannedCount - position);
+        if (receivedCount > MAX_MESSAGE_SIZE + WireProtocol.HEADER_SIZE) {
+            throw new IOException("Message from " + remoteAddress + " exceeds " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        if (received.length > READ_BUFFER_SIZE && receivedCount < READ_BUFFER_SIZE) {
+            received = Arrays.copyOf(received, READ_BUFFER_SIZE); // Don't hold on to a large buffer after a large message
+        }
+        undeliveredMessages.addAndGet(messages.size());
+        return messages;
+    }
+
+    /**
+     * Handshake lines are dealt with here; anything else is a message for the main loop.
+     */
+    private void handleLine(String line, ArrayList<String> messages) throws IOException {
+        if (line.startsWith(WireProtocol.HELLO + " ")) {
+            inventoryRelay = WireProtocol.supportsInventory(line);
+            if (wire == null && WireProtocol.isSupported(line)) {
+                synchronized (writeQueue) {
+                    wire = new WireProtocol(WireProtocol.acceptsDeflate(line));
+                    ByteBuffer start = ByteBuffer.wrap((WireProtocol.START + "\n").getBytes(StandardCharsets.UTF_8));
+                    queuedBytes += start.remaining();
+                    writeQueue.add(start);
+                    binaryWrites = true;
+                }
+            }
+        } else if (line.equals(WireProtocol.START)) {
+            if (wire == null) {
+                throw new IOException(remoteAddress + " started binary framing without a handshake");
+            }
+            binaryReads = true;
+        } else if (line.length() > 0) {
+            messages.add(line);
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket will take. Selector thread only.
+     *
+     * @throws IOException If the socket fails
+     */
+    void writeQueued() throws IOException {
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer next = writeQueue.peek();
+                int written = channel.write(next);
+                queuedBytes -= written;
+                if (next.hasRemaining()) {
+                    return; // Socket buffer is full; OP_WRITE will bring us back
+                }
+                writeQueue.poll();
+            }
+        }
+    }
+
+    /**
+     * @return int The selector operations this connection currently wants: write while anything is queued, read unless backpressure applies
+     */
+    int getInterestOps() {
+        int ops = 0;
+        synchronized (writeQueue) {
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (queuedBytes < READ_PAUSE_BYTES && undeliveredMessages.get() < MAX_UNDELIVERED_MESSAGES) {
+                ops |= SelectionKey.OP_READ;
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Closes the socket and drops anything still queued. Selector thread only.
+     */
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (writeQueue) {
+            open = false;
+            writeQueue.clear();
+            queuedBytes = 0;
+            if (wire != null) {
+                wire.end();
+            }
+        }
+    }
+}
@@ -4,50 +4,105 @@
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This thread listens on a provided port (8015 by default) for incoming connections, and attempts, to make connections to external peers based on guidance from MainClass
- * It needs a bit of help with memory management and resource deallocation, but otherwise it works. Good enough for 2.0.0a1.
+ * <p>
+ * All peers are served by this one thread through a Selector: accepting, connecting, reading and writing are all non-blocking, so a peer costs a
+ * socket and a few buffers rather than threads of its own. Each peer is a PeerConnection with its own write queue. Complete messages from every
+ * peer go into one queue, which the main loop drains with readMessages(); awaitMessages() lets the main loop sleep until something arrives
+ * instead of polling on a fixed interval.
  * <p>
  * Future plans include some form of UPNP support and NAT punchthroughts.
  */
 
 public class PeerNetwork extends Thread {
+    private static final int MAX_PEERS = 512;
+
     public int listenPort;
-    public boolean shouldRun = true;
-    public ArrayList<PeerThread> peerThreads;
+    public volatile boolean shouldRun = true;
 
-    public ArrayList<String> newPeers;
+    private Selector selector;
+    private CopyOnWriteArrayList<PeerConnection> peers;
+    private ArrayList<String> newPeers;
+    private LinkedBlockingQueue<PeerMessage> incoming;
+    private final Object messageSignal = new Object();
+    // Work handed to the selector thread by other threads
+    private ConcurrentLinkedQueue<PeerConnection> pendingRegistrations;
+    private ConcurrentLinkedQueue<PeerConnection> pendingInterestUpdates;
+    private ConcurrentLinkedQueue<PeerConnection> pendingCloses;
+
+    /**
+     * A message received from a peer, along with the peer it came from so that replies can go back to it.
+     */
+    public static class PeerMessage {
+        public final PeerConnection peer;
+        public final String data;
+
+        public PeerMessage(PeerConnection peer, String data) {
+            this.peer = peer;
+            this.data = data;
+        }
+    }
 
     /**
      * Default setting contructor
      **/
     public PeerNetwork() {
-        this.listenPort = 8015;
-        this.peerThreads = new ArrayList<PeerThread>();
+        this(8015);
+    }
+
+    /**
+     * Optional, currently-unused contructor for a non-default port selection
+     *
+     * @param port Port to listen on
+     **/
+    public PeerNetwork(int port) {
+        super("PeerNetwork");
+        this.listenPort = port;
+        this.peers = new CopyOnWriteArrayList<PeerConnection>();
         this.newPeers = new ArrayList<String>();
+        this.incoming = new LinkedBlockingQueue<PeerMessage>();
+        this.pendingRegistrations = new ConcurrentLinkedQueue<PeerConnection>();
+        this.pendingInterestUpdates = new ConcurrentLinkedQueue<PeerConnection>();
+        this.pendingCloses = new ConcurrentLinkedQueue<PeerConnection>();
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO OPEN NETWORK SELECTOR!");
+            e.printStackTrace();
+            System.exit(-1);
+        }
     }
 
     /**
-     * Attempts a connection to an external peer
+     * Attempts a connection to an external peer. The connection completes in the background; once it does, the peer is added to the peer list
+     * and reported through getNewPeers().
      *
      * @param peer Peer to connect to
      * @param port Port on peer to connect to
      */
     public void connectToPeer(String peer, int port) {
+        if (peers.size() >= MAX_PEERS) {
+            System.out.println("Not connecting to " + peer + ":" + port + ": already at " + MAX_PEERS + " peers");
+            return;
+        }
         try {
-            Socket socket = new Socket(peer, port);
-            String remoteHost = socket.getInetAddress() + "";
-            remoteHost = remoteHost.replace("/", "");
-            remoteHost = remoteHost.replace("\\", "");
-            int remotePort = socket.getPort();
-            newPeers.add(remoteHost + ":" + remotePort);
-            peerThreads.add(new PeerThread(socket));
-            peerThreads.get(peerThreads.size() - 1).start();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-            System.out.println("Unable to connect to " + peer + ":" + port);
+            InetSocketAddress remote = new InetSocketAddress(peer, port);
+            if (remote.isUnresolved()) {
+                System.out.println("Unable to connect to " + peer + ":" + port);
+                return;
+            }
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            PeerConnection connection = new PeerConnection(this, channel, remote, true);
+            channel.connect(remote);
+            pendingRegistrations.add(connection);
+            selector.wakeup();
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Unable to connect to " + peer + ":" + port);
@@ -55,26 +110,76 @@ public class PeerNetwork extends Thread {
     }
 
     /**
-     * Optional, currently-unused contructor for a non-default port selection
-     *
-     * @param port Port to listen on
-     **/
-    public PeerNetwork(int port) {
-        this.listenPort = port;
-        this.peerThreads = new ArrayList<PeerThread>();
-    }
-
-    /**
-     * Runs as a separate thread, constantly listening for peer connections.
+     * Runs as a separate thread, accepting peer connections and moving data to and from every peer.
      **/
     public void run() {
         try {
-            ServerSocket listenSocket = new ServerSocket(listenPort);
-            while (shouldRun) {
-                peerThreads.add(new PeerThread((listenSocket.accept())));
-                peerThreads.get(peerThreads.size() - 1).start();
+            ServerSocketChannel listenChannel = ServerSocketChannel.open();
+            listenChannel.configureBlocking(false);
+            listenChannel.socket().setReuseAddress(true);
+            listenChannel.socket().bind(new InetSocketAddress(listenPort));
+            listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            System.out.println("Unable to listen for peers on port " + listenPort + "; only outgoing connections will be made");
+            e.printStackTrace();
+        }
+        while (shouldRun) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            processPendingChanges();
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptPeer((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                PeerConnection connection = (PeerConnection) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        if (!connection.getChannel().finishConnect()) {
+                            continue;
+                        }
+                        peerConnected(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        ArrayList<String> messages = connection.readMessages();
+                        if (messages == null) {
+                            closePeer(connection);
+                            continue;
+                        }
+                        deliver(connection, messages);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.writeQueued();
+                    }
+                    if (key.isValid()) {
+                        key.interestOps(connection.getInterestOps());
+                    }
+                } catch (IOException e) {
+                    System.out.println("Lost connection to " + connection.getRemoteAddress() + ": " + e.getMessage());
+                    closePeer(connection);
+                } catch (RuntimeException e) {
+                    // A bug or a malformed message must only cost this peer its connection, not stop networking for every peer
+                    System.out.println("[CRITICAL ERROR] Error handling peer " + connection.getRemoteAddress() + ", disconnecting it!");
+                    e.printStackTrace();
+                    closePeer(connection);
+                }
             }
-            listenSocket.close();
+        }
+        for (int i = 0; i < peers.size(); i++) {
+            peers.get(i).close();
+        }
+        try {
+            selector.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -86,9 +191,10 @@ public class PeerNetwork extends Thread {
      * @param toBroadcast String to broadcast to peers
      **/
     public void broadcast(String toBroadcast) {
-        for (int i = 0; i < peerThreads.size(); i++) {
-            System.out.println("Sent:: " + toBroadcast);
-            peerThreads.get(i).send(toBroadcast);
+        System.out.println("Sent:: " + toBroadcast);
+        WireProtocol.OutgoingMessage message = new WireProtocol.OutgoingMessage(toBroadcast); // Encoded once for all binary peers
+        for (int i = 0; i < peers.size(); i++) {
+            peers.get(i).send(message);
         }
     }
 
@@ -99,9 +205,162 @@ public class PeerNetwork extends Thread {
      * @param toBroadcast  String to broadcast to peers
      * @param peerToIgnore Peer to not send broadcast too--usually the peer who sent information that is being rebroadcast
      */
-    public void broadcastIgnorePeer(String toBroadcast, String peerToIgnore) {
-        for (int i = 0; i < peerThreads.size(); i++) {
-            peerThreads.get(i).send(toBroadcast);
+    public void broadcastIgnorePeer(String toBroadcast, PeerConnection peerToIgnore) {
+        WireProtocol.OutgoingMessage message = new WireProtocol.OutgoingMessage(toBroadcast);
+        for (int i = 0; i < peers.size(); i++) {
+            if (peers.get(i) != peerToIgnore) {
+                peers.get(i).send(message);
+            }
+        }
+    }
+
+    /**
+     * Takes every message received so far, from all peers, in the order they arrived.
+     *
+     * @return ArrayList<PeerMessage> Received messages
+     */
+    public ArrayList<PeerMessage> readMessages() {
+        ArrayList<PeerMessage> messages = new ArrayList<PeerMessage>();
+        incoming.drainTo(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).peer.messageDelivered();
+        }
+        return messages;
+    }
+
+    /**
+     * Waits until a message from a peer is ready to be read, or until the timeout passes.
+     *
+     * @param timeoutMillis Longest time to wait, in milliseconds
+     */
+    public void awaitMessages(long timeoutMillis) {
+        synchronized (messageSignal) {
+            if (incoming.isEmpty()) {
+                try {
+                    messageSignal.wait(timeoutMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the addresses of outgoing connections made since the last call, as host:port.
+     *
+     * @return ArrayList<String> Newly connected peer addresses
+     */
+    public ArrayList<String> getNewPeers() {
+        synchronized (newPeers) {
+            ArrayList<String> connected = new ArrayList<String>(newPeers);
+            newPeers.clear();
+            return connected;
+        }
+    }
+
+    /**
+     * @return List<PeerConnection> The currently connected peers
+     */
+    public List<PeerConnection> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Asks the selector thread to recompute which operations a peer is waiting for, after its write queue or backlog changed.
+     *
+     * @param connection The peer
+     */
+    void requestInterestUpdate(PeerConnection connection) {
+        pendingInterestUpdates.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the selector thread to disconnect a peer.
+     *
+     * @param connection The peer
+     */
+    void requestClose(PeerConnection connection) {
+        pendingCloses.add(connection);
+        selector.wakeup();
+    }
+
+    private void processPendingChanges() {
+        PeerConnection connection;
+        while ((connection = pendingRegistrations.poll()) != null) {
+            try {
+                boolean connected = connection.getChannel().isConnected();
+                connection.setKey(connection.getChannel().register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection));
+                if (connected) {
+                    peerConnected(connection);
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to connect to " + connection.getRemoteAddress());
+                e.printStackTrace();
+                closePeer(connection);
+            }
+        }
+        while ((connection = pendingCloses.poll()) != null) {
+            closePeer(connection);
+        }
+        while ((connection = pendingInterestUpdates.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                key.interestOps(connection.getInterestOps());
+            }
+        }
+    }
+
+    private void acceptPeer(ServerSocketChannel listenChannel) {
+        try {
+            SocketChannel channel = listenChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            if (peers.size() >= MAX_PEERS) {
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            PeerConnection connection = new PeerConnection(this, channel, (InetSocketAddress) channel.socket().getRemoteSocketAddress(), false);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            peers.add(connection);
+            connection.send(WireProtocol.getHello());
+            System.out.println("Got connection from " + connection.getRemoteAddress() + ".");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void peerConnected(PeerConnection connection) {
+        connection.send(WireProtocol.getHello());
+        connection.getKey().interestOps(connection.getInterestOps());
+        peers.add(connection);
+        synchronized (newPeers) {
+            newPeers.add(connection.getRemoteAddress());
+        }
+        System.out.println("Connected to " + connection.getRemoteAddress() + ".");
+    }
+
+    private void deliver(PeerConnection connection, ArrayList<String> messages) {
+        if (messages.size() == 0) {
+            return;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            incoming.add(new PeerMessage(connection, messages.get(i)));
+        }
+        synchronized (messageSignal) {
+            messageSignal.notifyAll();
+        }
+    }
+
+    private void closePeer(PeerConnection connection) {
+        if (connection.isOpen()) {
+            connection.close();
+        }
+        if (peers.remove(connection)) {
+            System.out.println("Peer " + connection.getRemoteAddress() + " disconnected");
         }
     }
 }
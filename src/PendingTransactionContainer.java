@@ -2,68 +2,121 @@ import java.util.*;
 
 /**
  * Created by huy on 4/21/17.
+ *
+ * The pending transaction pool (mempool). Transactions are indexed by txid for O(1) duplicate detection and grouped into one queue per sending
+ * address, ordered by signature index--the order they have to go into a block in. Outstanding spends and pending receipts are kept per address,
+ * so balance checks and getPendingBalance() don't scan the pool.
+ *
+ * The pool is bounded by the total size of the transactions it holds. When it's full, the transaction with the lowest fee per byte among the
+ * last transaction of each sender's queue is evicted to make room--only queue tails are candidates, so eviction never leaves a gap in a sender's
+ * signature indexes.
  */
 public class PendingTransactionContainer {
-    public ArrayList<String> pendingTransactions;
+    public static final long DEFAULT_MAX_POOL_SIZE = 50000000L; // Characters of transaction text, roughly 10000 transactions
+
     private CurecoinDatabaseMaster databaseMaster;
+    private long maxPoolSize;
+
+    private HashMap<String, PoolEntry> entriesByTxid;
+    private LinkedHashMap<String, TreeMap<Long, PoolEntry>> queuesBySender;
+    private HashMap<String, Long> outstandingSpends;
+    private HashMap<String, Long> pendingReceipts;
+    private TreeSet<PoolEntry> evictionCandidates;
+    private long poolSize;
+    private long arrivalCounter;
+    private BlockTemplateBuilder templateBuilder;
+
+    /**
+     * A pooled transaction, with its text and fee rate worked out once on arrival.
+     */
+    static class PoolEntry {
+        final Transaction transaction;
+        final String text;
+        final double feeRate;
+        final long arrival;
 
-    //ArrayList holding objects that pair addresses with their pending transaction amounts, so transactions above an account's spendable balance are rejected.
+        PoolEntry(Transaction transaction, String text, long arrival) {
+            this.transaction = transaction;
+            this.text = text;
+            this.feeRate = (double) transaction.getFee() / text.length();
+            this.arrival = arrival;
+        }
+    }
 
-    public ArrayList<StringLongPair> accountBalanceDeltaTables;
+    /**
+     * Orders eviction candidates from lowest fee per byte to highest; among equal fee rates, the most recent arrival goes first.
+     */
+    private static final Comparator<PoolEntry> EVICTION_ORDER = new Comparator<PoolEntry>() {
+        public int compare(PoolEntry first, PoolEntry second) {
+            int byFeeRate = Double.compare(first.feeRate, second.feeRate);
+            if (byFeeRate != 0) {
+                return byFeeRate;
+            }
+            return Long.compare(second.arrival, first.arrival);
+        }
+    };
 
     public PendingTransactionContainer(CurecoinDatabaseMaster databaseMaster) {
+        this(databaseMaster, DEFAULT_MAX_POOL_SIZE);
+    }
+
+    /**
+     * @param databaseMaster Database to check balances and signature indexes against
+     * @param maxPoolSize    Maximum total length of all pooled transaction text
+     */
+    public PendingTransactionContainer(CurecoinDatabaseMaster databaseMaster, long maxPoolSize) {
         this.databaseMaster = databaseMaster;
-        this.pendingTransactions = new ArrayList<String>();
-        this.accountBalanceDeltaTables = new ArrayList<StringLongPair>();
+        this.maxPoolSize = maxPoolSize;
+        this.templateBuilder = new BlockTemplateBuilder(databaseMaster, this, BlockTemplateBuilder.DEFAULT_MAX_BLOCK_SIZE);
+        reset();
     }
 
     /**
-     * Adds a transaction to the pending transaction list if it is formatted correctly and accompanied by a correct signature. Does not check for account balances!
-     * Rejects duplicate transactions.
+     * Adds a transaction to the pending transaction list if it is formatted correctly and accompanied by a correct signature.
+     * Rejects duplicate transactions, transactions reusing a signature index that is already spent on-chain or already pending, and transactions
+     * that would take the sender's pending spends above its confirmed balance.
      * Transaction format:
      * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
-     * Additional work in the future on ths method will include keep
      *
      * @param transaction Transaction to add
      * @return boolean Whether adding the transaction was valid
      **/
-    public boolean addTransaction(String transaction) {
+    public synchronized boolean addTransaction(String transaction) {
         try {
-            for (int i = 0; i < pendingTransactions.size(); i++) {
-                if (pendingTransactions.get(i).equals(transaction)) {
-                    return false;
-                }
-            }
-            if (!TransactionUtility.isTransactionValid(transaction)) {
+            Transaction parsedTransaction = Transaction.fromString(transaction);
+            if (parsedTransaction == null) {
                 System.out.println("Throwing out a transaction deemed invalid");
                 return false;
             }
-            String[] transactionParts = transaction.split(";");
-            // We need to check make sure the input address isn'< sending coins the dont own></>
-            String inputAddress = transactionParts[0];
-            long inputAmount = Long.parseLong(transactionParts[1]);
-            // Check for the outstanding outgoing amount for this add
-            long outstandingOutgoingAmount = 0L;
-            int indexOfDelta = -1;
-            for (int i = 0; i < accountBalanceDeltaTables.size(); i++) {
-                if (accountBalanceDeltaTables.get(i).stringToHold.equals(inputAddress)) {
-                    outstandingOutgoingAmount = accountBalanceDeltaTables.get(i).longToHold;
-                    indexOfDelta = i;
-                    break;
-                }
+            if (entriesByTxid.containsKey(parsedTransaction.getTxid())) {
+                return false;
             }
-
+            String inputAddress = parsedTransaction.getInputAddress();
+            TreeMap<Long, PoolEntry> senderQueue = queuesBySender.get(inputAddress);
+            if (senderQueue != null && senderQueue.containsKey(parsedTransaction.getSignatureIndex())) {
+                return false; // Another transaction with the same signature index got here first
+            }
+            if (parsedTransaction.getSignatureIndex() <= databaseMaster.getAddressSignatureIndex(inputAddress)) {
+                return false; // Signature index already used on-chain
+            }
+            // We need to check make sure the input address isn't sending coins they don't own
+            long inputAmount = parsedTransaction.getInputAmount();
             long previousBalance = databaseMaster.getAddressBalance(inputAddress);
-            if (previousBalance < inputAmount + outstandingOutgoingAmount) {
-                System.out.println("Account " + inputAddress + " tried ");
+            if (previousBalance < inputAmount + getOutstandingSpend(inputAddress)) {
+                System.out.println("Account " + inputAddress + " tried to spend more than its balance");
                 return false;
             }
-            if (indexOfDelta >= 0) {
-                accountBalanceDeltaTables.get(indexOfDelta).longToHold += inputAmount;
-            } else {
-                accountBalanceDeltaTables.add(new StringLongPair(inputAddress, inputAmount));
+            // Signature verification is the expensive part, so it comes after all the cheap rejections
+            if (!TransactionUtility.isTransactionValid(parsedTransaction)) {
+                System.out.println("Throwing out a transaction deemed invalid");
+                return false;
+            }
+            PoolEntry entry = new PoolEntry(parsedTransaction, transaction, arrivalCounter++);
+            if (!makeRoomFor(entry)) {
+                System.out.println("Pending transaction pool is full; rejecting transaction with too low a fee");
+                return false;
             }
-            pendingTransactions.add(transaction);
+            insertEntry(entry);
             System.out.println("Added transaction " + transaction.substring(0, 20) + "...." + transaction.substring(transaction.length() - 20, transaction.length()));
         } catch (Exception e) {
             System.out.println("Anexception has occurred...");
@@ -76,9 +129,14 @@ public class PendingTransactionContainer {
     /**
      * Self-explanatory method called whenever the daemon desires to reset the pending transaction pool to be blank.
      */
-    public void reset() {
-        pendingTransactions = new ArrayList<String>();
-        accountBalanceDeltaTables = new ArrayList<StringLongPair>();
+    public synchronized void reset() {
+        entriesByTxid = new HashMap<String, PoolEntry>();
+        queuesBySender = new LinkedHashMap<String, TreeMap<Long, PoolEntry>>();
+        outstandingSpends = new HashMap<String, Long>();
+        pendingReceipts = new HashMap<String, Long>();
+        evictionCandidates = new TreeSet<PoolEntry>(EVICTION_ORDER);
+        poolSize = 0L;
+        templateBuilder.reset();
     }
 
     /**
@@ -87,14 +145,27 @@ public class PendingTransactionContainer {
      * @param transaction The transaction to remove
      * @return boolean Whether removal was successful
      */
-    public boolean removeTransaction(String transaction) {
-        for (int i = 0; i < pendingTransactions.size(); i++) {
-            if (pendingTransactions.get(i).equals(transaction)) {
-                pendingTransactions.remove(i);
-                return true;
-            }
+    public synchronized boolean removeTransaction(String transaction) {
+        Transaction parsedTransaction = Transaction.fromString(transaction);
+        if (parsedTransaction == null) {
+            return false;
+        }
+        return removeTransaction(parsedTransaction);
+    }
+
+    /**
+     * Removes a transaction from the pending transactions pool by txid
+     *
+     * @param transaction The transaction to remove
+     * @return boolean Whether removal was successful
+     */
+    public synchronized boolean removeTransaction(Transaction transaction) {
+        PoolEntry entry = entriesByTxid.get(transaction.getTxid());
+        if (entry == null) {
+            return false; // Transaction was not found in pending transaction
         }
-        return false; // Transaction was not found in pending transaction
+        removeEntry(entry);
+        return true;
     }
 
     /**
@@ -106,29 +177,45 @@ public class PendingTransactionContainer {
      * @return boolean Whether all transactions in the block were successfully removed
      */
     public boolean removeTransactionsInBlock(String rawBlock) {
-        // This try-catch methoud wraps around more than it needs to,
         try {
-            //We could use the raw String data, but it's easier to use a Block object to avoid repetition of code, and the verification is an added bonus.
-            Block tempBlock = new Block(rawBlock);
-            /* Transaction format:
-             * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
-             *
-             * We are removing only transactions that match the exact String from the block. If the block validation fails, NO transactions are removed from the pool.
-             * In a late-night coding session, not removing any transactions of an invalid block seemed like the bset idea--transactions should never be discarded
-             * if they haven't made it into the blockchain, and any block that doesn't validate won't make it through Blockchain's block screening, so these transactions
-             * that we aren't removing will never happen on-chain if we remove them from the pool when an invalid block says we should. Also closes a potential attack
-             * vector where someone could submit false blocks in order to be a nuisance and empty the pending transaction pool.
-             */
-            if (!tempBlock.validateBlock(databaseMaster.blockchain)) {
+            return removeTransactionsInBlock(new Block(rawBlock));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Removes every transaction included in a block from the pool, then drops any other pooled transactions whose signature index the block has
+     * now used up on-chain.
+     *
+     * We are removing only transactions that match the ones in the block. If the block validation fails, NO transactions are removed from the pool.
+     * Transactions should never be discarded if they haven't made it into the blockchain, and any block that doesn't validate won't make it through
+     * Blockchain's block screening. Also closes a potential attack vector where someone could submit false blocks in order to be a nuisance and
+     * empty the pending transaction pool.
+     *
+     * @param block The block holding transactions to remove
+     * @return boolean Whether all transactions in the block were successfully removed
+     */
+    public synchronized boolean removeTransactionsInBlock(Block block) {
+        try {
+            if (!block.validateBlock(databaseMaster.blockchain)) {
                 return false; // No transactions remove at all!
             }
-            ArrayList<String> transactions = tempBlock.transactions;
+            ArrayList<Transaction> transactions = block.getParsedTransactions();
+            if (transactions == null) {
+                return false;
+            }
             boolean allSuccessful = true;
             for (int i = 0; i < transactions.size(); i++) {
                 if (!removeTransaction(transactions.get(i))) {
                     allSuccessful = false; //This might happen if a transaction was in a block before it made it across the network to a peer, so not always a big deal!
                 }
             }
+            for (int i = 0; i < transactions.size(); i++) {
+                removeStaleTransactions(transactions.get(i).getInputAddress());
+            }
+            removeStaleTransactions(block.certificate.redeemAddress); // Mining the block used up one of the miner's signature indexes too
             return allSuccessful;
         } catch (Exception e) {
             e.printStackTrace();
@@ -137,37 +224,204 @@ public class PendingTransactionContainer {
     }
 
     /**
-     * This method scans through all of the pending transactions to calculate the total (net) balance change pending on an address. A negative value represents
-     * coins that were sent from the address in question, and a positive value represents coins awaiting confirmations to arrive.
+     * Drops pooled transactions that reuse a signature index already spent on chain by any of the given addresses. Called after the chain tip
+     * moves, including by a reorganization, whose new branch can spend indexes that no single block's removeTransactionsInBlock() sees.
+     *
+     * @param addresses Addresses whose on-chain signature count went up
+     */
+    public synchronized void removeStaleTransactions(Collection<String> addresses) {
+        for (String address : addresses) {
+            removeStaleTransactions(address);
+        }
+    }
+
+    /**
+     * Returns all pooled transactions, grouped by sending address and ordered by signature index within each address.
+     *
+     * @return ArrayList<String> Pending transactions, in an order suitable for block inclusion
+     */
+    public synchronized ArrayList<String> getPendingTransactions() {
+        ArrayList<String> pendingTransactions = new ArrayList<String>(entriesByTxid.size());
+        for (TreeMap<Long, PoolEntry> senderQueue : queuesBySender.values()) {
+            for (PoolEntry entry : senderQueue.values()) {
+                pendingTransactions.add(entry.text);
+            }
+        }
+        return pendingTransactions;
+    }
+
+    /**
+     * Returns the transactions to include in the next block: for each sender, the queued transactions that follow on from its on-chain signature
+     * index and fit its balance, picked by fee per byte up to the maximum block size. Kept up to date as the pool changes, so this is cheap to call.
+     *
+     * @return ArrayList<String> Transactions, in an order valid for block inclusion
+     */
+    public synchronized ArrayList<String> getBlockTemplate() {
+        return templateBuilder.getTemplate();
+    }
+
+    /**
+     * @param maxBlockSize Maximum total length of transaction text in a block template
+     */
+    public synchronized void setMaxBlockSize(int maxBlockSize) {
+        templateBuilder.setMaxBlockSize(maxBlockSize);
+    }
+
+    /**
+     * @param address Sending address
+     * @return Collection<PoolEntry> The address's pooled transactions in signature index order, or null if it has none
+     */
+    Collection<PoolEntry> getSenderQueue(String address) {
+        TreeMap<Long, PoolEntry> senderQueue = queuesBySender.get(address);
+        return senderQueue == null ? null : senderQueue.values();
+    }
+
+    /**
+     * @return Set<String> Every address with pooled transactions
+     */
+    Set<String> getSenders() {
+        return queuesBySender.keySet();
+    }
+
+    /**
+     * @param txid Transaction id to look for
+     * @return boolean Whether a transaction with that txid is pooled
+     */
+    public synchronized boolean containsTransaction(String txid) {
+        return entriesByTxid.containsKey(txid);
+    }
+
+    /**
+     * @return int Number of pooled transactions
+     */
+    public synchronized int getTransactionCount() {
+        return entriesByTxid.size();
+    }
+
+    /**
+     * Returns the total (net) balance change pending on an address. A negative value represents coins that were sent from the address in question,
+     * and a positive value represents coins awaiting confirmations to arrive.
      *
      * @param address Curecoin 2.0 address to search the pending transaction pool for
      * @return long The pending total (net) change for the address in question
      */
-    public long getPendingBalance(String address) {
-        long totalChange = 0L;
-        for (int i = 0; i < pendingTransactions.size(); i++) {
-            String transaction = pendingTransactions.get(i);
-            try {
-                if (transaction.contains(address)) {
-                    String[] transactionParts = transaction.split("l");
-                    String senderAddress = transactionParts[0];
-                    if (senderAddress.equals(address)) {
-                        totalChange -= Long.parseLong(transactionParts[1]);
-                    }
-                    for (int j = 2; j < transactionParts.length - 2; j += 2) {
-                        if (transactionParts[j].equals(address)) {
-                            totalChange += Long.parseLong(transactionParts[j + 1]);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println("Major problem: Tranasction in the pending transaction");
+    public synchronized long getPendingBalance(String address) {
+        Long receipts = pendingReceipts.get(address);
+        return (receipts == null ? 0L : receipts) - getOutstandingSpend(address);
+    }
+
+    private long getOutstandingSpend(String address) {
+        Long outstanding = outstandingSpends.get(address);
+        return outstanding == null ? 0L : outstanding;
+    }
+
+    private static void adjust(HashMap<String, Long> totals, String address, long adjustment) {
+        Long oldTotal = totals.get(address);
+        long newTotal = (oldTotal == null ? 0L : oldTotal) + adjustment;
+        if (newTotal == 0L) {
+            totals.remove(address);
+        } else {
+            totals.put(address, newTotal);
+        }
+    }
 
-                System.out.println("Trnasction int question: " + transaction);
+    /**
+     * Evicts the cheapest queue tails until entry fits, as long as each one evicted pays a lower fee rate than entry.
+     * <p>
+     * The evictions are planned before any is made: evicting a tail makes the transaction before it in the same sender's queue a candidate, so
+     * the plan walks the current candidates in eviction order alongside the ones it would expose. Nothing is evicted unless entry will fit
+     * afterwards, so a rejected transaction never costs the pool anything.
+     *
+     * @return boolean Whether there is now room for entry
+     */
+    private boolean makeRoomFor(PoolEntry entry) {
+        String inputAddress = entry.transaction.getInputAddress();
+        long needed = poolSize + entry.text.length() - maxPoolSize;
+        if (needed <= 0) {
+            return true;
+        }
+        ArrayList<PoolEntry> victims = new ArrayList<PoolEntry>();
+        Iterator<PoolEntry> candidates = evictionCandidates.iterator();
+        PoolEntry nextCandidate = candidates.hasNext() ? candidates.next() : null;
+        TreeSet<PoolEntry> exposed = new TreeSet<PoolEntry>(EVICTION_ORDER); // Tails the planned evictions would uncover
+        long freed = 0L;
+        while (freed < needed) {
+            PoolEntry cheapest;
+            if (nextCandidate != null && (exposed.isEmpty() || EVICTION_ORDER.compare(nextCandidate, exposed.first()) <= 0)) {
+                cheapest = nextCandidate;
+                nextCandidate = candidates.hasNext() ? candidates.next() : null;
+            } else if (!exposed.isEmpty()) {
+                cheapest = exposed.pollFirst();
+            } else {
+                return false;
+            }
+            if (cheapest.feeRate >= entry.feeRate || cheapest.transaction.getInputAddress().equals(inputAddress)) {
+                return false;
+            }
+            victims.add(cheapest);
+            freed += cheapest.text.length();
+            Map.Entry<Long, PoolEntry> previous = queuesBySender.get(cheapest.transaction.getInputAddress()).lowerEntry(cheapest.transaction.getSignatureIndex());
+            if (previous != null) {
+                exposed.add(previous.getValue());
             }
         }
-        return totalChange;
+        for (int i = 0; i < victims.size(); i++) {
+            removeEntry(victims.get(i)); // In planning order, so each is its sender's tail when it goes
+        }
+        return true;
+    }
+
+    private void insertEntry(PoolEntry entry) {
+        Transaction transaction = entry.transaction;
+        String inputAddress = transaction.getInputAddress();
+        TreeMap<Long, PoolEntry> senderQueue = queuesBySender.get(inputAddress);
+        if (senderQueue == null) {
+            senderQueue = new TreeMap<Long, PoolEntry>();
+            queuesBySender.put(inputAddress, senderQueue);
+        }
+        if (!senderQueue.isEmpty()) {
+            evictionCandidates.remove(senderQueue.lastEntry().getValue());
+        }
+        senderQueue.put(transaction.getSignatureIndex(), entry);
+        evictionCandidates.add(senderQueue.lastEntry().getValue());
+        entriesByTxid.put(transaction.getTxid(), entry);
+        adjust(outstandingSpends, inputAddress, transaction.getInputAmount());
+        for (int i = 0; i < transaction.getOutputCount(); i++) {
+            adjust(pendingReceipts, transaction.getOutputAddress(i), transaction.getOutputAmount(i));
+        }
+        poolSize += entry.text.length();
+        templateBuilder.senderChanged(inputAddress);
     }
 
+    private void removeEntry(PoolEntry entry) {
+        Transaction transaction = entry.transaction;
+        String inputAddress = transaction.getInputAddress();
+        TreeMap<Long, PoolEntry> senderQueue = queuesBySender.get(inputAddress);
+        evictionCandidates.remove(senderQueue.lastEntry().getValue());
+        senderQueue.remove(transaction.getSignatureIndex());
+        if (senderQueue.isEmpty()) {
+            queuesBySender.remove(inputAddress);
+        } else {
+            evictionCandidates.add(senderQueue.lastEntry().getValue());
+        }
+        entriesByTxid.remove(transaction.getTxid());
+        adjust(outstandingSpends, inputAddress, -transaction.getInputAmount());
+        for (int i = 0; i < transaction.getOutputCount(); i++) {
+            adjust(pendingReceipts, transaction.getOutputAddress(i), -transaction.getOutputAmount(i));
+        }
+        poolSize -= entry.text.length();
+        templateBuilder.senderChanged(inputAddress);
+    }
+
+    /**
+     * Drops pooled transactions from address whose signature index has already been used on-chain; they can never be included in a block now.
+     */
+    private void removeStaleTransactions(String address) {
+        TreeMap<Long, PoolEntry> senderQueue = queuesBySender.get(address);
+        long signatureCount = databaseMaster.getAddressSignatureIndex(address);
+        while (senderQueue != null && !senderQueue.isEmpty() && senderQueue.firstKey() <= signatureCount) {
+            removeEntry(senderQueue.firstEntry().getValue());
+            senderQueue = queuesBySender.get(address);
+        }
+    }
 }
@@ -39,7 +39,7 @@ public class RPCThread extends Thread {
                     out.println("getbalance <address>");
                     out.println("submittx <rawtx>");
                     out.println("submitcert <cert>");
-                    out.println("gethistory <address>");
+                    out.println("gethistory <address> [page] [pageSize]");
                     out.println("");
                 } else {
                     request = input;
@@ -0,0 +1,153 @@
+import javax.xml.bind.DatatypeConverter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of one block record inside a BlockStore segment. The record is not copied or parsed when the view is created--
+ * each field is decoded from the underlying (usually memory-mapped) buffer the first time it is asked for.
+ *
+ * Record layout (see BlockStore): [int payloadLength][32-byte block hash][int blockNum][payload], payload being the UTF-8 raw block:
+ * {timestamp:blockNum:previousBlockHash:difficulty:winningNonce},{ledgerHash},{transactions},{redeemAddress:arbitraryData:...},...
+ *
+ * The block hash and number come straight out of the fixed-width header. The other header fields only need the first {...} chunk of the
+ * payload, and getMiner() stops scanning at the certificate, so none of them touch the (large) transaction and signature data.
+ * Call toBlock() when the full Block object is really needed.
+ */
+public class StoredBlock {
+    private static final int HEADER_SIZE = 4 + 32 + 4;
+
+    private final ByteBuffer record;
+    private String blockHash;
+    private String[] headerParts;
+
+    /**
+     * @param record Buffer holding exactly one block record, starting at position 0
+     */
+    public StoredBlock(ByteBuffer record) {
+        this.record = record;
+    }
+
+    /**
+     * @return String Hex block hash, read from the record header
+     */
+    public String getBlockHash() {
+        if (blockHash == null) {
+            byte[] hash = new byte[32];
+            for (int i = 0; i < 32; i++) {
+                hash[i] = record.get(4 + i);
+            }
+            blockHash = DatatypeConverter.printHexBinary(hash);
+        }
+        return blockHash;
+    }
+
+    /**
+     * @return int Block number, read from the record header
+     */
+    public int getBlockNum() {
+        return record.getInt(4 + 32);
+    }
+
+    /**
+     * @return long Block timestamp
+     */
+    public long getTimestamp() {
+        return Long.parseLong(getHeaderParts()[0]);
+    }
+
+    /**
+     * @return String Hash of the previous block
+     */
+    public String getPreviousBlockHash() {
+        return getHeaderParts()[2];
+    }
+
+    /**
+     * @return long Difficulty the block was mined at
+     */
+    public long getDifficulty() {
+        return Long.parseLong(getHeaderParts()[3]);
+    }
+
+    /**
+     * @return int Winning nonce of the block's certificate
+     */
+    public int getWinningNonce() {
+        return Integer.parseInt(getHeaderParts()[4]);
+    }
+
+    /**
+     * Returns the redeem address of the block's certificate, which is the block miner. Skips over the transactions without decoding them.
+     *
+     * @return String Address of block miner
+     */
+    public String getMiner() {
+        int length = getPayloadLength();
+        int sectionsSeen = 0;
+        for (int i = HEADER_SIZE; i < HEADER_SIZE + length - 2; i++) {
+            // Sections are separated by "},{"; the certificate message is the fourth section
+            if (record.get(i) == '}' && record.get(i + 1) == ',' && record.get(i + 2) == '{') {
+                sectionsSeen++;
+                if (sectionsSeen == 3) {
+                    int start = i + 3;
+                    int end = start;
+                    while (end < HEADER_SIZE + length && record.get(end) != ':') {
+                        end++;
+                    }
+                    return decode(start, end - start);
+                }
+                i += 2;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the raw block String, exactly as it was stored. This is what gets sent to peers.
+     *
+     * @return String The raw block
+     */
+    public String getRawBlock() {
+        return decode(HEADER_SIZE, getPayloadLength());
+    }
+
+    /**
+     * Fully parses the record into a Block object.
+     *
+     * @return Block The parsed block
+     */
+    public Block toBlock() {
+        return new Block(getRawBlock());
+    }
+
+    private int getPayloadLength() {
+        return record.getInt(0);
+    }
+
+    /**
+     * Decodes the first {...} chunk of the payload into its colon-separated parts: timestamp, blockNum, previousBlockHash, difficulty, winningNonce
+     */
+    private String[] getHeaderParts() {
+        if (headerParts == null) {
+            int end = HEADER_SIZE + 1;
+            while (record.get(end) != '}') {
+                end++;
+            }
+            headerParts = decode(HEADER_SIZE + 1, end - HEADER_SIZE - 1).split(":");
+        }
+        return headerParts;
+    }
+
+    private String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = record.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -1,18 +0,0 @@
-/**
- * Created by huy on 4/21/17.
- */
-public class StringLongPair {
-    public String stringToHold;
-    public long longToHold;
-
-    /**
-     * A StringLongPair is... well... a pair containing a String and a Long
-     *
-     * @param stringToHold String to hold
-     * @param longToHold   Long to hold
-     **/
-    public StringLongPair(String stringToHold, long longToHold) {
-        this.stringToHold = stringToHold;
-        this.longToHold = longToHold;
-    }
-}
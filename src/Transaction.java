@@ -0,0 +1,306 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable, parsed transaction. The network and the block format carry transactions as text:
+ * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
+ * A Transaction is parsed from that text once, and from then on its fields are read directly instead of re-splitting the String on every access.
+ *
+ * Addresses are held as their UTF-8 bytes, amounts as longs and the signature as a decoded MerkleSignature. toString() rebuilds the exact text the
+ * transaction was parsed from, and toBytes()/fromBytes() provide a compact binary form. Only canonical text is accepted (no leading zeros,
+ * no plus signs)--the text is what gets signed, so it has to survive the round trip unchanged.
+ *
+ * The txid is the hex SHA256 of the text form, computed on first use and cached.
+ */
+public class Transaction {
+    private final byte[] inputAddress;
+    private final long inputAmount;
+    private final byte[][] outputAddresses;
+    private final long[] outputAmounts;
+    private final MerkleSignature signature;
+    private final long signatureIndex;
+    private String txid;
+
+    /**
+     * @param inputAddress    Address sending coins
+     * @param inputAmount     Total amount leaving inputAddress, including the fee
+     * @param outputAddresses Addresses receiving coins
+     * @param outputAmounts   Amounts, lined up with outputAddresses
+     * @param signature       Signature of the input address over getSignedMessage()
+     * @param signatureIndex  Index of the Lamport keypair used for signature
+     */
+    public Transaction(String inputAddress, long inputAmount, String[] outputAddresses, long[] outputAmounts, MerkleSignature signature, long signatureIndex) {
+        this.inputAddress = inputAddress.getBytes(StandardCharsets.UTF_8);
+        this.inputAmount = inputAmount;
+        this.outputAddresses = new byte[outputAddresses.length][];
+        for (int i = 0; i < outputAddresses.length; i++) {
+            this.outputAddresses[i] = outputAddresses[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.outputAmounts = outputAmounts.clone();
+        this.signature = signature;
+        this.signatureIndex = signatureIndex;
+    }
+
+    private Transaction(byte[] inputAddress, long inputAmount, byte[][] outputAddresses, long[] outputAmounts, MerkleSignature signature, long signatureIndex) {
+        this.inputAddress = inputAddress;
+        this.inputAmount = inputAmount;
+        this.outputAddresses = outputAddresses;
+        this.outputAmounts = outputAmounts;
+        this.signature = signature;
+        this.signatureIndex = signatureIndex;
+    }
+
+    /**
+     * Parses the text form of a transaction.
+     *
+     * @param transaction Transaction text
+     * @return Transaction The parsed transaction, or null if the text isn't a well-formed, canonical transaction
+     */
+    public static Transaction fromString(String transaction) {
+        try {
+            String[] transactionParts = transaction.split(";");
+            if (transactionParts.length % 2 != 0 || transactionParts.length < 6) {
+                return null; //Each address should line up with an output, an no explicit transaction is possible with fewr than six parts (See above)
+            }
+            for (int i = 0; i < transactionParts.length - 2; i += 2) {
+                if (transactionParts[i].getBytes(StandardCharsets.UTF_8).length > 255) {
+                    return null; // Far longer than any address; the binary form stores address lengths in one byte
+                }
+            }
+            int outputCount = (transactionParts.length - 4) / 2;
+            String[] outputAddresses = new String[outputCount];
+            long[] outputAmounts = new long[outputCount];
+            for (int i = 0; i < outputCount; i++) {
+                outputAddresses[i] = transactionParts[2 + i * 2];
+                outputAmounts[i] = Long.parseLong(transactionParts[3 + i * 2]);
+            }
+            Transaction parsed = new Transaction(transactionParts[0], Long.parseLong(transactionParts[1]), outputAddresses, outputAmounts,
+                    MerkleSignature.fromString(transactionParts[transactionParts.length - 2]), Long.parseLong(transactionParts[transactionParts.length - 1]));
+            if (!parsed.toString().equals(transaction)) {
+                return null; // Not canonical, so the text that was signed couldn't be reproduced
+            }
+            return parsed;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return String Address sending coins
+     */
+    public String getInputAddress() {
+        return new String(inputAddress, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return long Total amount leaving the input address, including the fee
+     */
+    public long getInputAmount() {
+        return inputAmount;
+    }
+
+    /**
+     * @return int Number of outputs
+     */
+    public int getOutputCount() {
+        return outputAddresses.length;
+    }
+
+    /**
+     * @param i Output number
+     * @return String Address receiving output i
+     */
+    public String getOutputAddress(int i) {
+        return new String(outputAddresses[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i Output number
+     * @return long Amount of output i
+     */
+    public long getOutputAmount(int i) {
+        return outputAmounts[i];
+    }
+
+    /**
+     * @return long Sum of all outputs
+     */
+    public long getOutputTotal() {
+        long outputTotal = 0L;
+        for (int i = 0; i < outputAmounts.length; i++) {
+            outputTotal += outputAmounts[i];
+        }
+        return outputTotal;
+    }
+
+    /**
+     * @return long Transaction fee: whatever is left of the input amount after all outputs
+     */
+    public long getFee() {
+        return inputAmount - getOutputTotal();
+    }
+
+    /**
+     * @return MerkleSignature Signature of the input address
+     */
+    public MerkleSignature getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return long Index of the Lamport keypair used for the signature
+     */
+    public long getSignatureIndex() {
+        return signatureIndex;
+    }
+
+    /**
+     * Checks whether the address sends or receives coins in this transaction, without building any Strings.
+     *
+     * @param address Address to look for
+     * @return boolean Whether address is the input or any output address
+     */
+    public boolean involvesAddress(String address) {
+        byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        if (Arrays.equals(inputAddress, addressBytes)) {
+            return true;
+        }
+        for (int i = 0; i < outputAddresses.length; i++) {
+            if (Arrays.equals(outputAddresses[i], addressBytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the part of the transaction covered by the signature: InputAddress;InputAmount;OutputAddress1;OutputAmount1...
+     *
+     * @return String The signed message
+     */
+    public String getSignedMessage() {
+        StringBuilder message = new StringBuilder(64 + outputAddresses.length * 64);
+        message.append(getInputAddress()).append(";").append(inputAmount);
+        for (int i = 0; i < outputAddresses.length; i++) {
+            message.append(";").append(getOutputAddress(i)).append(";").append(outputAmounts[i]);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Verifies the input address's signature over getSignedMessage(). Repeat checks are answered from the verified-signature cache.
+     *
+     * @param merkleAddressUtility Utility to verify with
+     * @return boolean Whether the signature is valid
+     */
+    public boolean verifySignature(MerkleAddressUtility merkleAddressUtility) {
+        return merkleAddressUtility.verifyMerkleSignature(getSignedMessage(), signature, getInputAddress(), signatureIndex);
+    }
+
+    /**
+     * Returns the transaction id: the hex SHA256 of the text form. Computed once per object.
+     *
+     * @return String Hex transaction id
+     */
+    public synchronized String getTxid() {
+        if (txid == null) {
+            txid = HashUtility.sha256Hex(toString());
+        }
+        return txid;
+    }
+
+    /**
+     * Rebuilds the exact text form of the transaction, as used on the network and in blocks.
+     *
+     * @return String Transaction text
+     */
+    public String toString() {
+        return getSignedMessage() + ";" + signature.toString() + ";" + signatureIndex;
+    }
+
+    /**
+     * Encodes the transaction in binary form: [input address][long input amount][short output count]([output address][long amount])*[signature][long signature index],
+     * with each address prefixed by its byte length.
+     *
+     * @return byte[] Binary transaction
+     */
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeTo(out);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the binary form of the transaction, see toBytes().
+     *
+     * @param out Stream to write to
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(inputAddress.length);
+        out.write(inputAddress);
+        out.writeLong(inputAmount);
+        out.writeShort(outputAddresses.length);
+        for (int i = 0; i < outputAddresses.length; i++) {
+            out.writeByte(outputAddresses[i].length);
+            out.write(outputAddresses[i]);
+            out.writeLong(outputAmounts[i]);
+        }
+        signature.writeTo(out);
+        out.writeLong(signatureIndex);
+    }
+
+    /**
+     * Decodes a transaction written by toBytes().
+     *
+     * @param bytes Binary transaction
+     * @return Transaction The transaction, or null if bytes is malformed
+     */
+    public static Transaction fromBytes(byte[] bytes) {
+        try {
+            return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a transaction written by writeTo().
+     *
+     * @param in Stream to read from, over an in-memory frame (see MerkleSignature.readFrom())
+     * @return Transaction The transaction
+     * @throws IOException If the transaction is malformed
+     */
+    public static Transaction readFrom(DataInputStream in) throws IOException {
+        byte[] inputAddress = new byte[MerkleSignature.checkLength(in, in.readUnsignedByte(), 1)];
+        in.readFully(inputAddress);
+        long inputAmount = in.readLong();
+        int outputCount = MerkleSignature.checkLength(in, in.readUnsignedShort(), 9); // Address length byte and amount, at least
+        byte[][] outputAddresses = new byte[outputCount][];
+        long[] outputAmounts = new long[outputCount];
+        for (int i = 0; i < outputCount; i++) {
+            outputAddresses[i] = new byte[MerkleSignature.checkLength(in, in.readUnsignedByte(), 1)];
+            in.readFully(outputAddresses[i]);
+            outputAmounts[i] = in.readLong();
+        }
+        MerkleSignature signature = MerkleSignature.readFrom(in);
+        long signatureIndex = in.readLong();
+        return new Transaction(inputAddress, inputAmount, outputAddresses, outputAmounts, signature, signatureIndex);
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof Transaction && ((Transaction) other).getTxid().equals(getTxid());
+    }
+
+    public int hashCode() {
+        return getTxid().hashCode();
+    }
+}
@@ -13,37 +13,39 @@ public class TransactionUtility {
      */
     public static boolean isTransactionValid(String transaction) {
         System.out.println("Checking transaction: " + transaction);
+        Transaction parsedTransaction = Transaction.fromString(transaction);
+        if (parsedTransaction == null) {
+            return false; //Each address should line up with an output, an no explicit transaction is possible with fewr than six parts (See above)
+        }
+        return isTransactionValid(parsedTransaction);
+    }
+
+    /**
+     * Tests whether an already-parsed transaction is valid. Doesn't test account balances, but tests addresses, amounts and signature verification
+     *
+     * @param transaction Transaction to test
+     * @return boolean Whether the transaction is formatted and signed correctly
+     */
+    public static boolean isTransactionValid(Transaction transaction) {
         MerkleAddressUtility merkleAddressUtility = new MerkleAddressUtility();
         try {
-            String[] transactionParts = transaction.split(";");
-            if (transactionParts.length % 2 != 0 || transactionParts.length < 6) {
-                return false; //Each address should line up with an output, an no explicit transaction is possible with fewr than six parts (See above)
+            if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getInputAddress())) {
+                return false; // Address in transaction is misform
             }
-
-            for (int i = 0; i < transactionParts.length - 2; i += 2) {
-                if (!merkleAddressUtility.isAddressFormattedCorrectly(transactionParts[i])) {
+            for (int i = 0; i < transaction.getOutputCount(); i++) {
+                if (!merkleAddressUtility.isAddressFormattedCorrectly(transaction.getOutputAddress(i))) {
                     return false; // Address in transaction is misform
                 }
-            }
-            long inputAmount = Long.parseLong(transactionParts[1]);
-            long outputAmount = 0L;
-            for (int i = 3; i < transactionParts.length - 2; i += 2) {
-                if (Long.parseLong(transactionParts[i]) <= 0) {
+                if (transaction.getOutputAmount(i) <= 0) {
                     return false;
                 }
-                outputAmount += Long.parseLong(transactionParts[i]);
             }
 
-            if (inputAmount - outputAmount < 0) {
+            if (transaction.getFee() < 0) {
                 return false; // Coin cant be created out of thin
             }
 
-            String transactionData = "";
-            for (int i = 0; i < transactionParts.length - 2; i++) {
-                transactionData += transactionParts[i] + ";";
-            }
-            transactionData = transactionData.substring(0, transactionData.length() - 1);
-            if (!merkleAddressUtility.verifyMerkleSignature(transactionData, transactionParts[transactionParts.length - 2], transactionParts[0], Long.parseLong(transactionParts[transactionParts.length - 1]))) {
+            if (!transaction.verifySignature(merkleAddressUtility)) {
                 return false; // Signature does'< match></>
             }
         } catch (Exception e) {
@@ -57,47 +59,33 @@ public class TransactionUtility {
      * As such, We want to order all transactions from the same address in order.
      * The order of transactions from different addresses does not matter--coins will not be received and spent in the same transaction.
      *
+     * Each transaction is parsed once; addresses are kept in order of first appearance, and each address's transactions are ordered by signature index.
+     *
      * @param transactionsToSort ArrayList<String> containing String representations of all the addresses to sort
      * @return ArrayList<String> All of the transactions sorted in order for block inclusion, with any self-invalidating transactions removed.
      */
     public static ArrayList<String> sortTransactionsBySignatureIndex(ArrayList<String> transactionsToSort) {
+        LinkedHashMap<String, TreeMap<Long, Transaction>> transactionsByAddress = new LinkedHashMap<String, TreeMap<Long, Transaction>>();
         for (int i = 0; i < transactionsToSort.size(); i++) {
-            if (!isTransactionValid(transactionsToSort.get(i))) {
-                transactionsToSort.remove(i);
-                i--; // Compensate fpr changing ArrayList size
+            Transaction transaction = Transaction.fromString(transactionsToSort.get(i));
+            if (transaction == null || !isTransactionValid(transaction)) {
+                continue;
+            }
+            TreeMap<Long, Transaction> addressTransactions = transactionsByAddress.get(transaction.getInputAddress());
+            if (addressTransactions == null) {
+                addressTransactions = new TreeMap<Long, Transaction>();
+                transactionsByAddress.put(transaction.getInputAddress(), addressTransactions);
+            }
+            if (!addressTransactions.containsKey(transaction.getSignatureIndex())) {
+                addressTransactions.put(transaction.getSignatureIndex(), transaction);
             }
+            // Otherwise: this should never happen--double-signed transaction. Discard the new one!
         }
         ArrayList<String> sortedTransactions = new ArrayList<String>();
-        for (int i = 0; i < transactionsToSort.size(); i++) {
-            System.out.println("spin1");
-            if (sortedTransactions.size() == 0) {
-                sortedTransactions.add(transactionsToSort.get(0));
-            } else {
-                String address = transactionsToSort.get(i).split(";")[0];
-                long index = Long.parseLong(transactionsToSort.get(i).split(";")[transactionsToSort.get(i).split(";").length - 1]);
-                boolean added = false;
-                for (int j = 0; j < sortedTransactions.size(); j++) {
-                    System.out.println("spin2");
-                    if (sortedTransactions.get(i).split(";")[0].equals((address))) {
-                        String[] parts = sortedTransactions.get(i).split(";");
-                        int indexToGrab = parts.length - 1;
-                        String sigIndexToParse = sortedTransactions.get(i).split(";")[indexToGrab];
-                        long existingSigIndex = Long.parseLong(sigIndexToParse);
-                        if (index < existingSigIndex) {
-                            // Insertion should occur before the currently-studied element
-                            sortedTransactions.add(j, transactionsToSort.get(i));
-                            added = true;
-                            break;
-                        } else if (index == existingSigIndex) {
-                            // This should never happen--double-signed transaction. Discart the new one!
-                            j = sortedTransactions.size();
-                        }
-                    }
-                }
-                if (!added) {
-                    sortedTransactions.add(transactionsToSort.get(i));
-                }
-            } 
+        for (TreeMap<Long, Transaction> addressTransactions : transactionsByAddress.values()) {
+            for (Transaction transaction : addressTransactions.values()) {
+                sortedTransactions.add(transaction.toString());
+            }
         }
         return sortedTransactions;
     }
@@ -0,0 +1,255 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary framing peers switch to once both sides have said they support it.
+ *
+ * Every connection starts out exchanging newline-terminated text. On connect, each side sends "HELLO_BINARY [version] [options...]". A peer that
+ * understands it answers the same way; old peers don't recognise the command and ignore it, so they keep talking text. Once a side has received
+ * the other's HELLO_BINARY, it sends one last text line, "BINARY_START", and frames everything it writes after that. A side reading "BINARY_START"
+ * reads frames from the next byte on. Each direction switches on its own, so nothing in flight is ever read in the wrong format.
+ *
+ * A frame is an 11-byte header followed by the payload:
+ * [byte version][byte type][byte flags][int payload length][int CRC32 of the uncompressed payload]
+ * TEXT frames carry any other message as its UTF-8 text; BLOCK and TRANSACTION frames carry the MessageCodec encoding, with signatures as raw
+ * bytes. If both sides offered "deflate", payloads above COMPRESSION_THRESHOLD bytes are compressed with one deflate stream per direction,
+ * flushed at the end of each frame, so later messages compress against what came before.
+ *
+ * One WireProtocol holds the compression state of one connection. Frames are built by whichever thread sends, under the connection's write
+ * lock, and decoded on the network thread.
+ */
+public class WireProtocol {
+    public static final int VERSION = 1;
+    public static final String HELLO = "HELLO_BINARY";
+    public static final String START = "BINARY_START";
+    public static final String DEFLATE = "deflate";
+    public static final String INVENTORY = "inv"; // Not part of the framing: tells the peer this node gossips through INV/GETDATA (see InventoryRelay)
+    public static final int HEADER_SIZE = 11;
+    public static final byte TYPE_TEXT = 0;
+    public static final byte TYPE_BLOCK = 1;
+    public static final byte TYPE_TRANSACTION = 2;
+    private static final byte FLAG_DEFLATE = 1;
+    private static final int COMPRESSION_THRESHOLD = 512;
+    private static final String BLOCK_PREFIX = "BLOCK ";
+    private static final String TRANSACTION_PREFIX = "TRANSACTION ";
+
+    private final boolean compressWrites;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] writeChunk = new byte[16 * 1024]; // Writes and reads happen on different threads, so each gets its own buffer
+    private final byte[] readChunk = new byte[16 * 1024];
+
+    /**
+     * A message on its way out, shared by every peer it's sent to so that the binary encoding is only worked out once.
+     */
+    public static class OutgoingMessage {
+        private final String line;
+        private byte[] textBytes;
+        private byte type = -1;
+        private byte[] body;
+
+        public OutgoingMessage(String line) {
+            this.line = line;
+        }
+
+        /**
+         * @return byte[] The message as a UTF-8 text line, terminator included
+         */
+        public synchronized byte[] getTextBytes() {
+            if (textBytes == null) {
+                textBytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            return textBytes;
+        }
+
+        /**
+         * @return byte The frame type this message is sent as
+         */
+        public synchronized byte getType() {
+            encode();
+            return type;
+        }
+
+        /**
+         * @return byte[] The uncompressed frame payload
+         */
+        public synchronized byte[] getBody() {
+            encode();
+            return body;
+        }
+
+        private void encode() {
+            if (type >= 0) {
+                return;
+            }
+            if (line.startsWith(BLOCK_PREFIX)) {
+                body = MessageCodec.encodeBlock(line.substring(BLOCK_PREFIX.length()));
+                type = TYPE_BLOCK;
+            } else if (line.startsWith(TRANSACTION_PREFIX)) {
+                body = MessageCodec.encodeTransaction(line.substring(TRANSACTION_PREFIX.length()));
+                type = TYPE_TRANSACTION;
+            }
+            if (body == null) {
+                body = line.getBytes(StandardCharsets.UTF_8);
+                type = TYPE_TEXT;
+            }
+        }
+    }
+
+    /**
+     * @param compressWrites Whether the peer accepts compressed frames
+     */
+    public WireProtocol(boolean compressWrites) {
+        this.compressWrites = compressWrites;
+        this.deflater = compressWrites ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        this.inflater = new Inflater(true);
+    }
+
+    /**
+     * @return String The handshake line this node sends on connect
+     */
+    public static String getHello() {
+        return HELLO + " " + VERSION + " " + DEFLATE + " " + INVENTORY;
+    }
+
+    /**
+     * @param helloLine A HELLO_BINARY line received from a peer
+     * @return boolean Whether the peer speaks a version of the binary protocol this node understands
+     */
+    public static boolean isSupported(String helloLine) {
+        String[] parts = helloLine.split(" ");
+        try {
+            return parts.length > 1 && Integer.parseInt(parts[1]) >= VERSION;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param helloLine A HELLO_BINARY line received from a peer
+     * @return boolean Whether the peer accepts compressed frames
+     */
+    public static boolean acceptsDeflate(String helloLine) {
+        return hasOption(helloLine, DEFLATE);
+    }
+
+    /**
+     * @param helloLine A HELLO_BINARY line received from a peer
+     * @return boolean Whether the peer announces inventory instead of pushing every block and transaction in full
+     */
+    public static boolean supportsInventory(String helloLine) {
+        return hasOption(helloLine, INVENTORY);
+    }
+
+    private static boolean hasOption(String helloLine, String option) {
+        String[] parts = helloLine.split(" ");
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].equals(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the frame for a message. Compressed frames advance the deflate stream, so frames must be written in the order they're built.
+     *
+     * @param message The message to frame
+     * @return ByteBuffer The frame, ready to write
+     */
+    public ByteBuffer encodeFrame(OutgoingMessage message) {
+        byte[] body = message.getBody();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        int checksum = (int) crc.getValue();
+        byte flags = 0;
+        byte[] payload = body;
+        int payloadLength = body.length;
+        if (compressWrites && body.length > COMPRESSION_THRESHOLD) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 64);
+            deflater.setInput(body);
+            int written;
+            do {
+                written = deflater.deflate(writeChunk, 0, writeChunk.length, Deflater.SYNC_FLUSH);
+                compressed.write(writeChunk, 0, written);
+            } while (written == writeChunk.length);
+            payload = compressed.toByteArray();
+            payloadLength = payload.length;
+            flags |= FLAG_DEFLATE;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        frame.put((byte) VERSION).put(message.getType()).put(flags).putInt(payloadLength).putInt(checksum);
+        frame.put(payload, 0, payloadLength);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Turns a received frame back into the text line the rest of the node works with.
+     *
+     * @param type     Frame type from the header
+     * @param flags    Frame flags from the header
+     * @param payload  The payload as received
+     * @param checksum CRC32 from the header
+     * @return String The message line
+     * @throws IOException If the frame is corrupt or of an unknown type
+     */
+    public String decodeFrame(byte type, byte flags, byte[] payload, int checksum) throws IOException {
+        byte[] body = payload;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            body = inflate(payload);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Frame checksum mismatch");
+        }
+        if (type == TYPE_TEXT) {
+            return new String(body, StandardCharsets.UTF_8);
+        } else if (type == TYPE_BLOCK) {
+            return BLOCK_PREFIX + MessageCodec.decodeBlock(body);
+        } else if (type == TYPE_TRANSACTION) {
+            return TRANSACTION_PREFIX + MessageCodec.decodeTransaction(body);
+        }
+        throw new IOException("Unknown frame type " + type);
+    }
+
+    /**
+     * Releases the native compression state.
+     */
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        inflater.end();
+    }
+
+    private byte[] inflate(byte[] payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length * 2);
+        inflater.setInput(payload);
+        try {
+            while (true) {
+                int read = inflater.inflate(readChunk);
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Unexpected deflate dictionary");
+                    }
+                    break; // Each frame ends on a flush, so no output means the payload is used up
+                }
+                body.write(readChunk, 0, read);
+                if (body.size() > PeerConnection.MAX_MESSAGE_SIZE) {
+                    throw new IOException("Inflated frame exceeds " + PeerConnection.MAX_MESSAGE_SIZE + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return body.toByteArray();
+    }
+}